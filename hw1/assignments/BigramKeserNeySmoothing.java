@@ -4,12 +4,18 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
-import nlp.langmodel.LanguageModel;
+import nlp.langmodel.EntropyPruner;
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.langmodel.NgramKeys;
+import nlp.langmodel.PrunableLanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.Indexer;
+import nlp.util.LongDoubleHashMap;
 
 
-class BigramKeserNeySmoothing implements LanguageModel {
+class BigramKeserNeySmoothing implements IncrementalLanguageModel,
+		PrunableLanguageModel {
 
 	static final String START = "<S>";
 	static final String STOP = "</S>";
@@ -25,17 +31,23 @@ class BigramKeserNeySmoothing implements LanguageModel {
 
 	double discount = 0.75;
 
+	Indexer<String> wordIndexer = new Indexer<String>();
+	double[] continuationProbabilities;
+	double[] lambdas;
+	LongDoubleHashMap bigramProbabilities;
+
 
 	public double getBigramProbability(
 			String previousWord, String word) {
-		double bigramProbability = bigramCounter.getCount(previousWord, word);
-		double continuationProbablitity = continuationCounter.getCount(word);
-		if (continuationProbablitity == 0){
-			continuationProbablitity = continuationCounter.getCount(UNKNOWN);
-		}
-
-		return bigramProbability + lambda(previousWord)*continuationProbablitity;
+		return getBigramProbability(getWordIndex(previousWord),
+				getWordIndex(word));
+	}
 
+	public double getBigramProbability(int previousWord, int word) {
+		double bigramProbability = bigramProbabilities.get(
+				NgramKeys.bigram(previousWord, word), 0.0);
+		return bigramProbability + lambdas[previousWord]
+				* continuationProbabilities[word];
 	}
 
 	private double lambda(String previousWord) {
@@ -47,19 +59,98 @@ class BigramKeserNeySmoothing implements LanguageModel {
 	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
 		double probability = 1.0;
-		String previousWord = stoppedSentence.get(0);
-		for (int i = 1; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
+		int previousWord = getWordIndex(START);
+		for (int i = 0; i <= sentence.size(); i++) {
+			int word = (i < sentence.size() ? getWordIndex(sentence.get(i))
+					: getStopIndex());
 			probability *= getBigramProbability(previousWord, word);
 			previousWord = word;
 		}
 		return probability;
 	}
 
+	public int getWordIndex(String word) {
+		int index = wordIndexer.indexOf(word);
+		return index < 0 ? wordIndexer.indexOf(UNKNOWN) : index;
+	}
+
+	public int getStopIndex() {
+		return wordIndexer.indexOf(STOP);
+	}
+
+	public long getStartState() {
+		return wordIndexer.indexOf(START);
+	}
+
+	public double getLogProbability(long state, int word) {
+		return Math.log(getBigramProbability((int) state, word));
+	}
+
+	public long getNextState(long state, int word) {
+		return word;
+	}
+
+	public int getNumNgrams() {
+		return bigramProbabilities.size();
+	}
+
+	/**
+	 * Entropy-prunes the bigrams. A pruned bigram is left to the
+	 * continuation term, whose weight lambda(h) is re-estimated; the stored
+	 * discounted values of kept bigrams are adjusted to the new lambda, so
+	 * their probabilities don't change.
+	 */
+	public int prune(double threshold) {
+		final int start = wordIndexer.indexOf(START);
+		final int stop = getStopIndex();
+		double continuationMass = 0.0;
+		for (int index = 0; index < continuationProbabilities.length; index++) {
+			if (index != start)
+				continuationMass += continuationProbabilities[index];
+		}
+		final double lowerMass = continuationMass;
+		final double totalCount = wordCounter.totalCount();
+		return new EntropyPruner() {
+			protected long getHistory(long ngram) {
+				return NgramKeys.previousWord(ngram);
+			}
+
+			protected double getProbability(long ngram) {
+				return getBigramProbability(NgramKeys.previousWord(ngram),
+						NgramKeys.lastWord(ngram));
+			}
+
+			protected double getLowerProbability(long ngram) {
+				return continuationProbabilities[NgramKeys.lastWord(ngram)];
+			}
+
+			protected double getLowerMass(long history) {
+				return lowerMass;
+			}
+
+			protected double getBackoffWeight(long history) {
+				return lambdas[(int) history];
+			}
+
+			protected void setBackoffWeight(long history, double weight) {
+				lambdas[(int) history] = weight;
+			}
+
+			protected double getHistoryProbability(long history) {
+				String word = wordIndexer.get(getHistoryWord((int) history,
+						start, stop));
+				return wordCounter.getCount(word) / totalCount;
+			}
+
+			protected void keepProbability(long ngram, double probability) {
+				bigramProbabilities.put(ngram, probability
+						- lambdas[NgramKeys.previousWord(ngram)]
+						* continuationProbabilities[NgramKeys.lastWord(ngram)]);
+			}
+		}.prune(bigramProbabilities, threshold);
+	}
+
 
 
 	String generateWord() {
@@ -117,6 +208,33 @@ class BigramKeserNeySmoothing implements LanguageModel {
 		//TODO: and (ii) should we adj for unknown worlds
 		bigramCounter.discount(discount);
 		normalizeDistributions();
+		indexDistributions();
+	}
+
+	private void indexDistributions() {
+		wordIndexer.add(START);
+		wordIndexer.add(STOP);
+		wordIndexer.add(UNKNOWN);
+		wordIndexer.addAll(wordCounter.keySet());
+		NgramKeys.checkNumWords(wordIndexer.size() + 1);
+		continuationProbabilities = new double[wordIndexer.size()];
+		lambdas = new double[wordIndexer.size()];
+		for (int index = 0; index < wordIndexer.size(); index++) {
+			String word = wordIndexer.get(index);
+			double continuationProbability = continuationCounter.getCount(word);
+			continuationProbabilities[index] = (continuationProbability == 0 ? continuationCounter
+					.getCount(UNKNOWN) : continuationProbability);
+			lambdas[index] = lambda(word);
+		}
+		bigramProbabilities = new LongDoubleHashMap(bigramCounter.totalSize());
+		for (String previousWord : bigramCounter.keySet()) {
+			Counter<String> counter = bigramCounter.getCounter(previousWord);
+			int previousIndex = wordIndexer.indexOf(previousWord);
+			for (String word : counter.keySet()) {
+				bigramProbabilities.put(NgramKeys.bigram(previousIndex,
+						wordIndexer.indexOf(word)), counter.getCount(word));
+			}
+		}
 	}
 
 
@@ -0,0 +1,211 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import nlp.langmodel.ExchangeClustering;
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.langmodel.NgramKeys;
+import nlp.util.Counter;
+import nlp.util.Indexer;
+import nlp.util.LongDoubleHashMap;
+
+/**
+ * A class-based bigram model, P(w | h) = P(c(w) | c(h)) P(w | c(w)), with the
+ * word classes learned by the exchange algorithm. The class transitions are
+ * interpolated with the class unigram distribution (weight LAMBDA on the
+ * bigram), so that every class follows every other. Unknown words are given a
+ * single fictitious count in the class holding the most singleton words. The
+ * model stores numClasses^2 transitions plus one emission per word, and the
+ * history it scores a word in is just the class of the previous word.
+ */
+class ClassBigramLanguageModel implements IncrementalLanguageModel {
+
+	static final String START = "<S>";
+	static final String STOP = "</S>";
+	static final String UNKNOWN = "*UNKNOWN*";
+	static final double LAMBDA = 0.9;
+
+	Counter<String> wordCounter = new Counter<String>();
+	Indexer<String> wordIndexer = new Indexer<String>();
+	int numClasses;
+	int[] wordClasses;
+	double[] classTransitions;
+	double[] wordEmissions;
+
+	public double getBigramProbability(String previousWord, String word) {
+		return getBigramProbability(getWordIndex(previousWord),
+				getWordIndex(word));
+	}
+
+	public double getBigramProbability(int previousWord, int word) {
+		return getClassBigramProbability(wordClasses[previousWord], word);
+	}
+
+	public double getSentenceProbability(List<String> sentence) {
+		double probability = 1.0;
+		long state = getStartState();
+		for (int i = 0; i <= sentence.size(); i++) {
+			int word = (i < sentence.size() ? getWordIndex(sentence.get(i))
+					: getStopIndex());
+			probability *= getClassBigramProbability((int) state, word);
+			state = getNextState(state, word);
+		}
+		return probability;
+	}
+
+	public int getWordIndex(String word) {
+		int index = wordIndexer.indexOf(word);
+		return index < 0 ? wordIndexer.indexOf(UNKNOWN) : index;
+	}
+
+	public int getStopIndex() {
+		return wordIndexer.indexOf(STOP);
+	}
+
+	public long getStartState() {
+		return wordClasses[wordIndexer.indexOf(START)];
+	}
+
+	public double getLogProbability(long state, int word) {
+		return Math.log(getClassBigramProbability((int) state, word));
+	}
+
+	double getClassBigramProbability(int previousClass, int word) {
+		return classTransitions[previousClass * numClasses + wordClasses[word]]
+				* wordEmissions[word];
+	}
+
+	public long getNextState(long state, int word) {
+		return wordClasses[word];
+	}
+
+	public int getWordClass(String word) {
+		return wordClasses[getWordIndex(word)];
+	}
+
+	public int getNumClasses() {
+		return numClasses;
+	}
+
+	int sample(double[] distribution, int offset, int length) {
+		double sample = Math.random();
+		double sum = 0.0;
+		for (int i = 0; i < length; i++) {
+			sum += distribution[offset + i];
+			if (sum > sample)
+				return i;
+		}
+		return length - 1;
+	}
+
+	public List<String> generateSentence() {
+		List<String> sentence = new ArrayList<String>();
+		int stop = getStopIndex();
+		int c = (int) getStartState();
+		while (true) {
+			c = sample(classTransitions, c * numClasses, numClasses);
+			// draw a word of the class
+			double sample = Math.random();
+			double sum = 0.0;
+			int word = stop;
+			for (int index = 0; index < wordIndexer.size(); index++) {
+				if (wordClasses[index] != c)
+					continue;
+				word = index;
+				sum += wordEmissions[index];
+				if (sum > sample)
+					break;
+			}
+			if (word == stop)
+				return sentence;
+			sentence.add(wordIndexer.get(word));
+		}
+	}
+
+	public ClassBigramLanguageModel(
+			Collection<List<String>> sentenceCollection, int numClasses,
+			int numIterations, int numThreads) {
+		this.numClasses = numClasses;
+		for (List<String> sentence : sentenceCollection) {
+			for (String word : sentence) {
+				wordCounter.incrementCount(word, 1.0);
+			}
+		}
+		wordIndexer.add(START);
+		wordIndexer.add(STOP);
+		wordIndexer.add(UNKNOWN);
+		wordIndexer.addAll(wordCounter.keySet());
+		wordCounter.incrementCount(STOP, sentenceCollection.size());
+
+		LongDoubleHashMap bigramCounts = new LongDoubleHashMap();
+		for (List<String> sentence : sentenceCollection) {
+			int previousWord = wordIndexer.indexOf(START);
+			for (int i = 0; i <= sentence.size(); i++) {
+				int word = (i < sentence.size() ? wordIndexer.indexOf(sentence
+						.get(i)) : getStopIndex());
+				bigramCounts.increment(NgramKeys.bigram(previousWord, word), 1.0);
+				previousWord = word;
+			}
+		}
+		wordClasses = new ExchangeClustering(wordIndexer.size(), bigramCounts,
+				numClasses).cluster(numIterations, numThreads);
+		estimateDistributions(bigramCounts);
+	}
+
+	private void estimateDistributions(LongDoubleHashMap bigramCounts) {
+		int unknown = wordIndexer.indexOf(UNKNOWN);
+		int[] singletons = new int[numClasses];
+		for (int index = 0; index < wordIndexer.size(); index++) {
+			if (wordCounter.getCount(wordIndexer.get(index)) == 1.0)
+				singletons[wordClasses[index]]++;
+		}
+		int unknownClass = 0;
+		for (int c = 1; c < numClasses; c++) {
+			if (singletons[c] > singletons[unknownClass])
+				unknownClass = c;
+		}
+		wordClasses[unknown] = unknownClass;
+		wordCounter.setCount(UNKNOWN, 1.0);
+
+		double[] classCounts = new double[numClasses];
+		for (int index = 0; index < wordIndexer.size(); index++) {
+			classCounts[wordClasses[index]] += wordCounter
+					.getCount(wordIndexer.get(index));
+		}
+		wordEmissions = new double[wordIndexer.size()];
+		for (int index = 0; index < wordIndexer.size(); index++) {
+			double classCount = classCounts[wordClasses[index]];
+			if (classCount > 0)
+				wordEmissions[index] = wordCounter.getCount(wordIndexer
+						.get(index))
+						/ classCount;
+		}
+
+		double[] historyCounts = new double[numClasses];
+		double[] classBigramCounts = new double[numClasses * numClasses];
+		for (int slot = 0; slot < bigramCounts.capacity(); slot++) {
+			if (!bigramCounts.isOccupied(slot))
+				continue;
+			long key = bigramCounts.keyAt(slot);
+			int previousClass = wordClasses[NgramKeys.previousWord(key)];
+			classBigramCounts[previousClass * numClasses
+					+ wordClasses[NgramKeys.lastWord(key)]] += bigramCounts
+					.valueAt(slot);
+			historyCounts[previousClass] += bigramCounts.valueAt(slot);
+		}
+		double totalCount = wordCounter.totalCount();
+		classTransitions = new double[numClasses * numClasses];
+		for (int previousClass = 0; previousClass < numClasses; previousClass++) {
+			for (int c = 0; c < numClasses; c++) {
+				double unigramProbability = classCounts[c] / totalCount;
+				int i = previousClass * numClasses + c;
+				classTransitions[i] = (historyCounts[previousClass] == 0 ? unigramProbability
+						: LAMBDA * classBigramCounts[i]
+								/ historyCounts[previousClass]
+								+ (1 - LAMBDA) * unigramProbability);
+			}
+		}
+	}
+}
@@ -4,15 +4,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
-import nlp.langmodel.LanguageModel;
+import nlp.langmodel.EntropyPruner;
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.langmodel.NgramKeys;
+import nlp.langmodel.PrunableLanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.Indexer;
+import nlp.util.LongDoubleHashMap;
 
 /**
  * A dummy language model -- uses empirical unigram counts, plus a single
  * ficticious count for unknown words.
  */
-class KatzBigramLanguageModel implements LanguageModel {
+class KatzBigramLanguageModel implements IncrementalLanguageModel,
+		PrunableLanguageModel {
 
 	static final String START = "<S>";
 	static final String STOP = "</S>";
@@ -26,49 +32,101 @@ class KatzBigramLanguageModel implements LanguageModel {
 	Counter<String> discountedWordCounter = new Counter<String>();
 	Counter<String> discountedBigramCounter = new Counter<String>();
 
+	Indexer<String> wordIndexer = new Indexer<String>();
+	double[] unigramProbabilities;
+	double[] backoffWeights;
+	LongDoubleHashMap bigramProbabilities;
+
 	public double getBigramProbability(String previousWord, String word) {
-		double bigramProbability = probabilities.getCount(previousWord + " "
-				+ word);
-		//if (Double.isNaN(bigramProbability)
-		//		|| Double.isInfinite(bigramProbability)
-		//		|| bigramProbability < 0)
-			//System.err.println("stop");
+		return getBigramProbability(getWordIndex(previousWord),
+				getWordIndex(word));
+	}
 
+	public double getBigramProbability(int previousWord, int word) {
+		double bigramProbability = bigramProbabilities.get(
+				NgramKeys.bigram(previousWord, word), 0.0);
 		if (bigramProbability != 0)
 			return bigramProbability;
-
-		double unigramProbability = probabilities.getCount(word);
-		if (unigramProbability == 0) {
-			// System.out.println("UNKNOWN Word: " + word);
-			unigramProbability = probabilities.getCount(UNKNOWN);
-		}
-		//if (Double.isNaN(unigramProbability)
-		//		|| Double.isInfinite(unigramProbability)
-		//		|| unigramProbability < 0)
-			//System.err.println("stop");
-
-		double backoff = backoffs.getCount(previousWord);
-		if (backoff == 0) {
-			if (probabilities.getCount(previousWord) == 0)
-				backoff = 1.0;
-		}
-		return unigramProbability * backoff;
+		return unigramProbabilities[word] * backoffWeights[previousWord];
 	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
 		double probability = 1.0;
-		String previousWord = stoppedSentence.get(0);
-		for (int i = 1; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
+		int previousWord = getWordIndex(START);
+		for (int i = 0; i <= sentence.size(); i++) {
+			int word = (i < sentence.size() ? getWordIndex(sentence.get(i))
+					: getStopIndex());
 			probability *= getBigramProbability(previousWord, word);
 			previousWord = word;
 		}
 		return probability;
 	}
 
+	public int getWordIndex(String word) {
+		int index = wordIndexer.indexOf(word);
+		return index < 0 ? wordIndexer.indexOf(UNKNOWN) : index;
+	}
+
+	public int getStopIndex() {
+		return wordIndexer.indexOf(STOP);
+	}
+
+	public long getStartState() {
+		return wordIndexer.indexOf(START);
+	}
+
+	public double getLogProbability(long state, int word) {
+		return Math.log(getBigramProbability((int) state, word));
+	}
+
+	public long getNextState(long state, int word) {
+		return word;
+	}
+
+	public int getNumNgrams() {
+		return bigramProbabilities.size();
+	}
+
+	/**
+	 * Entropy-prunes the bigrams; a pruned bigram backs off to the unigram
+	 * distribution with the history's (re-estimated) backoff weight.
+	 */
+	public int prune(double threshold) {
+		final int start = wordIndexer.indexOf(START);
+		final int stop = getStopIndex();
+		return new EntropyPruner() {
+			protected long getHistory(long ngram) {
+				return NgramKeys.previousWord(ngram);
+			}
+
+			protected double getProbability(long ngram) {
+				return bigramProbabilities.get(ngram, 0.0);
+			}
+
+			protected double getLowerProbability(long ngram) {
+				return unigramProbabilities[NgramKeys.lastWord(ngram)];
+			}
+
+			protected double getLowerMass(long history) {
+				// the backoff weights treat the unigrams as normalized
+				return 1.0;
+			}
+
+			protected double getBackoffWeight(long history) {
+				return backoffWeights[(int) history];
+			}
+
+			protected void setBackoffWeight(long history, double weight) {
+				backoffWeights[(int) history] = weight;
+			}
+
+			protected double getHistoryProbability(long history) {
+				return unigramProbabilities[getHistoryWord((int) history,
+						start, stop)];
+			}
+		}.prune(bigramProbabilities, threshold);
+	}
+
 	String generateWord() {
 		double sample = Math.random();
 		double sum = 0.0;
@@ -108,6 +166,41 @@ class KatzBigramLanguageModel implements LanguageModel {
 			}
 		}
 		normalizeDistributions();
+		indexDistributions();
+	}
+
+	private void indexDistributions() {
+		wordIndexer.add(START);
+		wordIndexer.add(STOP);
+		wordIndexer.add(UNKNOWN);
+		wordIndexer.addAll(wordCounter.keySet());
+		NgramKeys.checkNumWords(wordIndexer.size() + 1);
+		double unknownProbability = probabilities.getCount(UNKNOWN);
+		unigramProbabilities = new double[wordIndexer.size()];
+		backoffWeights = new double[wordIndexer.size()];
+		for (int index = 0; index < wordIndexer.size(); index++) {
+			String word = wordIndexer.get(index);
+			double probability = probabilities.getCount(word);
+			unigramProbabilities[index] = (probability == 0 ? unknownProbability
+					: probability);
+			// words without a backoff weight or a probability (START, and
+			// any unseen word) back off with weight one
+			double backoff = backoffs.getCount(word);
+			if (word.equals(UNKNOWN) || (backoff == 0 && probability == 0))
+				backoff = 1.0;
+			backoffWeights[index] = backoff;
+		}
+		bigramProbabilities = new LongDoubleHashMap(bigramCounter.totalSize());
+		for (String previousWord : bigramCounter.keySet()) {
+			int previousIndex = wordIndexer.indexOf(previousWord);
+			for (String word : bigramCounter.getCounter(previousWord).keySet()) {
+				double probability = probabilities.getCount(previousWord + " "
+						+ word);
+				if (probability != 0)
+					bigramProbabilities.put(NgramKeys.bigram(previousIndex,
+							wordIndexer.indexOf(word)), probability);
+			}
+		}
 	}
 
 	private void normalizeDistributions() {
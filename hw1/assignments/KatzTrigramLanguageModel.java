@@ -4,11 +4,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
-import nlp.langmodel.LanguageModel;
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.langmodel.NgramKeys;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.Indexer;
+import nlp.util.LongDoubleHashMap;
 
-class KatzTrigramLanguageModel implements LanguageModel {
+class KatzTrigramLanguageModel implements IncrementalLanguageModel {
 
 	static final String START = "<S>";
 	static final String STOP = "</S>";
@@ -20,40 +23,68 @@ class KatzTrigramLanguageModel implements LanguageModel {
 	CounterMap<String, String> bigramCounter = new CounterMap<String, String>();
 	CounterMap<String, String> trigramCounter = new CounterMap<String, String>();
 
+	Indexer<String> wordIndexer = new Indexer<String>();
+	double[] unigramProbabilities;
+	LongDoubleHashMap bigramProbabilities;
+	LongDoubleHashMap trigramProbabilities;
+
 	public double getTrigramProbability(String prePreviousWord,
 			String previousWord, String word) {
-		double trigramCount = trigramCounter.getCount(prePreviousWord
-				+ previousWord, word);
-		double bigramCount = bigramCounter.getCount(previousWord, word);
-		double unigramCount = wordCounter.getCount(word);
-		if (unigramCount == 0) {
+		if (!wordIndexer.contains(word))
 			System.out.println("UNKNOWN Word: " + word);
-			unigramCount = wordCounter.getCount(UNKNOWN);
-		}
-		return lambda1 * trigramCount + lambda2 * bigramCount
-				+ (1.0 - lambda1 - lambda2) * unigramCount;
+		return getTrigramProbability(getWordIndex(prePreviousWord),
+				getWordIndex(previousWord), getWordIndex(word));
+	}
+
+	public double getTrigramProbability(int prePreviousWord,
+			int previousWord, int word) {
+		double trigramProbability = trigramProbabilities.get(
+				NgramKeys.trigram(prePreviousWord, previousWord, word), 0.0);
+		double bigramProbability = bigramProbabilities.get(
+				NgramKeys.bigram(previousWord, word), 0.0);
+		return lambda1 * trigramProbability + lambda2 * bigramProbability
+				+ (1.0 - lambda1 - lambda2) * unigramProbabilities[word];
 	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
 		double probability = 1.0;
-		String prePreviousWord = stoppedSentence.get(0);
-		String previousWord = stoppedSentence.get(1);
-		for (int i = 2; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
-			probability *= getTrigramProbability(prePreviousWord, previousWord,
+		long state = getStartState();
+		for (int i = 0; i <= sentence.size(); i++) {
+			int word = (i < sentence.size() ? getWordIndex(sentence.get(i))
+					: getStopIndex());
+			probability *= getTrigramProbability(
+					NgramKeys.previousWord(state), NgramKeys.lastWord(state),
 					word);
-			prePreviousWord = previousWord;
-			previousWord = word;
+			state = getNextState(state, word);
 		}
 		if (probability == 0)
 			System.err.println("Underflow");
 		return probability;
 	}
 
+	public int getWordIndex(String word) {
+		int index = wordIndexer.indexOf(word);
+		return index < 0 ? wordIndexer.indexOf(UNKNOWN) : index;
+	}
+
+	public int getStopIndex() {
+		return wordIndexer.indexOf(STOP);
+	}
+
+	public long getStartState() {
+		int start = wordIndexer.indexOf(START);
+		return NgramKeys.bigram(start, start);
+	}
+
+	public double getLogProbability(long state, int word) {
+		return Math.log(getTrigramProbability(NgramKeys.previousWord(state),
+				NgramKeys.lastWord(state), word));
+	}
+
+	public long getNextState(long state, int word) {
+		return NgramKeys.shift(state, word);
+	}
+
 	String generateWord() {
 		double sample = Math.random();
 		double sum = 0.0;
@@ -88,14 +119,51 @@ class KatzTrigramLanguageModel implements LanguageModel {
 				String word = stoppedSentence.get(i);
 				wordCounter.incrementCount(word, 1.0);
 				bigramCounter.incrementCount(previousWord, word, 1.0);
-				trigramCounter.incrementCount(prePreviousWord + previousWord,
-						word, 1.0);
+				trigramCounter.incrementCount(prePreviousWord + " "
+						+ previousWord, word, 1.0);
 				prePreviousWord = previousWord;
 				previousWord = word;
 			}
 		}
 		wordCounter.incrementCount(UNKNOWN, 1.0);
 		normalizeDistributions();
+		indexDistributions();
+	}
+
+	private void indexDistributions() {
+		wordIndexer.add(START);
+		wordIndexer.add(STOP);
+		wordIndexer.add(UNKNOWN);
+		wordIndexer.addAll(wordCounter.keySet());
+		NgramKeys.checkNumWords(wordIndexer.size() + 1);
+		unigramProbabilities = new double[wordIndexer.size()];
+		for (int index = 0; index < wordIndexer.size(); index++) {
+			double probability = wordCounter.getCount(wordIndexer.get(index));
+			unigramProbabilities[index] = (probability == 0 ? wordCounter
+					.getCount(UNKNOWN) : probability);
+		}
+		bigramProbabilities = new LongDoubleHashMap(bigramCounter.totalSize());
+		for (String previousWord : bigramCounter.keySet()) {
+			Counter<String> counter = bigramCounter.getCounter(previousWord);
+			int previousIndex = wordIndexer.indexOf(previousWord);
+			for (String word : counter.keySet()) {
+				bigramProbabilities.put(NgramKeys.bigram(previousIndex,
+						wordIndexer.indexOf(word)), counter.getCount(word));
+			}
+		}
+		trigramProbabilities = new LongDoubleHashMap(
+				trigramCounter.totalSize());
+		for (String history : trigramCounter.keySet()) {
+			Counter<String> counter = trigramCounter.getCounter(history);
+			String[] historyWords = history.split(" ");
+			int prePreviousIndex = wordIndexer.indexOf(historyWords[0]);
+			int previousIndex = wordIndexer.indexOf(historyWords[1]);
+			for (String word : counter.keySet()) {
+				trigramProbabilities.put(NgramKeys.trigram(prePreviousIndex,
+						previousIndex, wordIndexer.indexOf(word)), counter
+						.getCount(word));
+			}
+		}
 	}
 
 	private void normalizeDistributions() {
@@ -0,0 +1,405 @@
+package nlp.assignments;
+
+import java.io.*;
+import java.util.*;
+
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.langmodel.LanguageModel;
+import nlp.langmodel.NgramKeys;
+import nlp.util.CommandLineUtils;
+
+/**
+ * Repeatable performance numbers for the language models. To run it, use
+ * <p/>
+ * java nlp.assignments.LanguageModelBenchmark [-models katz-bigram,sri]
+ * [-sentences 20000] [-output results.tsv] [-baseline old.tsv -tolerance 0.2]
+ * <p/>
+ * The corpus is synthetic (Zipfian unigrams with a preferred-successor bias,
+ * generated from a fixed seed), so the benchmark needs no data files. For
+ * each model it measures training throughput, per-token query latency for
+ * seen and unseen trigrams, getSentenceProbability latency by sentence length
+ * and the heap retained by the trained model. Timings are medians over the
+ * measured iterations, after warmup iterations. With -baseline, timings more
+ * than the tolerance worse than the baseline's are reported and the exit
+ * status is 1.
+ */
+public class LanguageModelBenchmark {
+
+	static final String[] ALL_MODELS = { "baseline", "bigram", "trigram",
+			"katz-bigram", "katz-trigram", "Keser-Ney-bigram",
+			"Keser-Ney-trigram", "class-bigram", "sketch", "sketch-cm",
+			"sri" };
+	static final int[] SENTENCE_LENGTHS = { 5, 10, 20, 40 };
+	static final int NUM_QUERIES = 100000;
+	static final int NUM_SENTENCE_QUERIES = 2000;
+
+	// results are accumulated here so the JIT can't drop the work
+	static volatile double sink;
+
+	/**
+	 * Deterministic synthetic sentences over words w0..w(V-1).
+	 */
+	static class ZipfianCorpus {
+		Random random;
+		double[] cumulative;
+		int vocabularySize;
+
+		int sampleRank(int limit) {
+			double target = random.nextDouble() * cumulative[limit - 1];
+			int index = Arrays.binarySearch(cumulative, 0, limit, target);
+			return index >= 0 ? index : Math.min(-index - 1, limit - 1);
+		}
+
+		int sampleWord(int previousWord) {
+			// half of the time pick one of the previous word's favorite
+			// successors, so that bigrams and trigrams repeat
+			if (previousWord >= 0 && random.nextBoolean())
+				return (previousWord * 31 + sampleRank(50)) % vocabularySize;
+			return sampleRank(vocabularySize);
+		}
+
+		List<String> sampleSentence(int length) {
+			List<String> sentence = new ArrayList<String>(length);
+			int previousWord = -1;
+			for (int i = 0; i < length; i++) {
+				int word = sampleWord(previousWord);
+				sentence.add("w" + word);
+				previousWord = word;
+			}
+			return sentence;
+		}
+
+		List<List<String>> sampleSentences(int numSentences) {
+			List<List<String>> sentences = new ArrayList<List<String>>();
+			for (int i = 0; i < numSentences; i++) {
+				sentences.add(sampleSentence(5 + random.nextInt(26)));
+			}
+			return sentences;
+		}
+
+		ZipfianCorpus(int vocabularySize, double exponent, long seed) {
+			this.vocabularySize = vocabularySize;
+			this.random = new Random(seed);
+			cumulative = new double[vocabularySize];
+			double sum = 0.0;
+			for (int rank = 0; rank < vocabularySize; rank++) {
+				sum += 1.0 / Math.pow(rank + 1, exponent);
+				cumulative[rank] = sum;
+			}
+		}
+	}
+
+	/**
+	 * Builds a model by name. The SRI model is read from an ARPA file written
+	 * from a Katz bigram model of the same corpus.
+	 */
+	static LanguageModel buildModel(String model,
+			Collection<List<String>> sentences, File arpaFile) {
+		if (model.equalsIgnoreCase("sri"))
+			return new SriLanguageModel(arpaFile.getPath());
+		return LanguageModelTester.getLanguageModel(model, sentences);
+	}
+
+	static void writeArpaFile(KatzBigramLanguageModel model, File file)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(
+				file)));
+		try {
+			for (int word = 0; word < model.wordIndexer.size(); word++) {
+				out.println(Math.log10(model.unigramProbabilities[word]) + "\t"
+						+ arpaWord(model.wordIndexer.get(word)) + "\t"
+						+ Math.log10(model.backoffWeights[word]));
+			}
+			for (int slot = 0; slot < model.bigramProbabilities.capacity(); slot++) {
+				if (!model.bigramProbabilities.isOccupied(slot))
+					continue;
+				long key = model.bigramProbabilities.keyAt(slot);
+				String previousWord = model.wordIndexer.get(NgramKeys
+						.previousWord(key));
+				String word = model.wordIndexer.get(NgramKeys
+						.lastWord(key));
+				out.println(Math.log10(model.bigramProbabilities.valueAt(slot))
+						+ "\t" + arpaWord(previousWord) + " " + arpaWord(word));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String arpaWord(String word) {
+		if (word.equals(KatzBigramLanguageModel.START))
+			return SriLanguageModel.START;
+		if (word.equals(KatzBigramLanguageModel.STOP))
+			return SriLanguageModel.STOP;
+		if (word.equals(KatzBigramLanguageModel.UNKNOWN))
+			return SriLanguageModel.UNKNOWN;
+		return word;
+	}
+
+	/**
+	 * Scores one trigram through the cheapest per-word entry point the model
+	 * has: word ids for incremental models, string n-grams otherwise.
+	 */
+	static double queryTrigram(LanguageModel model, String prePreviousWord,
+			String previousWord, String word, int[] ids) {
+		if (model instanceof IncrementalLanguageModel) {
+			IncrementalLanguageModel incrementalModel = (IncrementalLanguageModel) model;
+			long state = incrementalModel.getNextState(incrementalModel
+					.getNextState(incrementalModel.getStartState(), ids[0]),
+					ids[1]);
+			return incrementalModel.getLogProbability(state, ids[2]);
+		}
+		if (model instanceof EmpiricalTrigramLanguageModel)
+			return ((EmpiricalTrigramLanguageModel) model)
+					.getTrigramProbability(prePreviousWord, previousWord, word);
+		if (model instanceof EmpiricalBigramLanguageModel)
+			return ((EmpiricalBigramLanguageModel) model).getBigramProbability(
+					previousWord, word);
+		if (model instanceof EmpiricalUnigramLanguageModel)
+			return ((EmpiricalUnigramLanguageModel) model).getWordProbability(
+					Collections.singletonList(word), 0);
+		throw new IllegalArgumentException("No per-word query for " + model);
+	}
+
+	static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	static double[] measureTraining(String model, List<List<String>> sentences,
+			File arpaFile, int warmup, int iterations) {
+		double numTokens = 0.0;
+		for (List<String> sentence : sentences) {
+			numTokens += sentence.size() + 1;
+		}
+		double[] tokensPerSecond = new double[iterations];
+		for (int i = -warmup; i < iterations; i++) {
+			long start = System.nanoTime();
+			LanguageModel languageModel = buildModel(model, sentences, arpaFile);
+			long elapsed = System.nanoTime() - start;
+			sink += languageModel.hashCode();
+			if (i >= 0)
+				tokensPerSecond[i] = numTokens / (elapsed / 1e9);
+		}
+		return tokensPerSecond;
+	}
+
+	static double measureQueries(LanguageModel model, String[][] trigrams,
+			int[][] ids, int warmup, int iterations) {
+		double[] nanosPerQuery = new double[iterations];
+		for (int i = -warmup; i < iterations; i++) {
+			long start = System.nanoTime();
+			double sum = 0.0;
+			for (int q = 0; q < trigrams.length; q++) {
+				sum += queryTrigram(model, trigrams[q][0], trigrams[q][1],
+						trigrams[q][2], ids[q]);
+			}
+			long elapsed = System.nanoTime() - start;
+			sink += sum;
+			if (i >= 0)
+				nanosPerQuery[i] = (double) elapsed / trigrams.length;
+		}
+		return median(nanosPerQuery);
+	}
+
+	static double measureSentences(LanguageModel model,
+			List<List<String>> sentences, int warmup, int iterations) {
+		double[] nanosPerSentence = new double[iterations];
+		for (int i = -warmup; i < iterations; i++) {
+			long start = System.nanoTime();
+			double sum = 0.0;
+			for (List<String> sentence : sentences) {
+				sum += model.getSentenceProbability(sentence);
+			}
+			long elapsed = System.nanoTime() - start;
+			sink += sum;
+			if (i >= 0)
+				nanosPerSentence[i] = (double) elapsed / sentences.size();
+		}
+		return median(nanosPerSentence);
+	}
+
+	static String[][] sampleTrigrams(List<List<String>> sentences,
+			Set<String> seenTrigrams, ZipfianCorpus corpus, boolean seen) {
+		String[][] trigrams = new String[NUM_QUERIES][];
+		Random random = new Random(17);
+		int numTrigrams = 0;
+		while (numTrigrams < NUM_QUERIES) {
+			String[] trigram;
+			if (seen) {
+				List<String> sentence = sentences.get(random.nextInt(sentences
+						.size()));
+				int position = random.nextInt(sentence.size() - 2);
+				trigram = new String[] { sentence.get(position),
+						sentence.get(position + 1), sentence.get(position + 2) };
+			} else {
+				trigram = new String[] {
+						"w" + random.nextInt(corpus.vocabularySize),
+						"w" + random.nextInt(corpus.vocabularySize),
+						"w" + random.nextInt(corpus.vocabularySize) };
+				if (seenTrigrams.contains(trigram[0] + " " + trigram[1] + " "
+						+ trigram[2]))
+					continue;
+			}
+			trigrams[numTrigrams++] = trigram;
+		}
+		return trigrams;
+	}
+
+	static int[][] toModelIds(LanguageModel model, String[][] trigrams) {
+		int[][] ids = new int[trigrams.length][3];
+		if (model instanceof IncrementalLanguageModel) {
+			IncrementalLanguageModel incrementalModel = (IncrementalLanguageModel) model;
+			for (int q = 0; q < trigrams.length; q++) {
+				for (int i = 0; i < 3; i++) {
+					ids[q][i] = incrementalModel.getWordIndex(trigrams[q][i]);
+				}
+			}
+		}
+		return ids;
+	}
+
+	static Map<String, Double> readResults(String fileName) throws IOException {
+		Map<String, Double> results = new HashMap<String, Double>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length == 4)
+					results.put(fields[0] + "\t" + fields[1], Double
+							.parseDouble(fields[2]));
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> argMap = CommandLineUtils
+				.simpleCommandLineParser(args);
+		int numSentences = Integer.parseInt(CommandLineUtils
+				.getValueOrUseDefault(argMap, "-sentences", "20000"));
+		int vocabularySize = Integer.parseInt(CommandLineUtils
+				.getValueOrUseDefault(argMap, "-vocabulary", "10000"));
+		int warmup = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(
+				argMap, "-warmup", "2"));
+		int iterations = Integer.parseInt(CommandLineUtils
+				.getValueOrUseDefault(argMap, "-iterations", "5"));
+		double tolerance = Double.parseDouble(CommandLineUtils
+				.getValueOrUseDefault(argMap, "-tolerance", "0.2"));
+		String[] models = ALL_MODELS;
+		if (argMap.containsKey("-models"))
+			models = argMap.get("-models").split(",");
+
+		ZipfianCorpus corpus = new ZipfianCorpus(vocabularySize, 1.1, 42L);
+		List<List<String>> trainingSentences = corpus
+				.sampleSentences(numSentences);
+		Set<String> seenTrigrams = new HashSet<String>();
+		for (List<String> sentence : trainingSentences) {
+			for (int i = 2; i < sentence.size(); i++) {
+				seenTrigrams.add(sentence.get(i - 2) + " " + sentence.get(i - 1)
+						+ " " + sentence.get(i));
+			}
+		}
+		String[][] seenQueries = sampleTrigrams(trainingSentences,
+				seenTrigrams, corpus, true);
+		String[][] unseenQueries = sampleTrigrams(trainingSentences,
+				seenTrigrams, corpus, false);
+		Map<Integer, List<List<String>>> sentencesByLength = new TreeMap<Integer, List<List<String>>>();
+		for (int length : SENTENCE_LENGTHS) {
+			List<List<String>> sentences = new ArrayList<List<String>>();
+			for (int i = 0; i < NUM_SENTENCE_QUERIES; i++) {
+				sentences.add(corpus.sampleSentence(length));
+			}
+			sentencesByLength.put(length, sentences);
+		}
+		File arpaFile = File.createTempFile("benchmark", ".arpa");
+		arpaFile.deleteOnExit();
+		writeArpaFile(new KatzBigramLanguageModel(trainingSentences), arpaFile);
+
+		List<String> results = new ArrayList<String>();
+		for (String model : models) {
+			double[] trainingThroughput = measureTraining(model,
+					trainingSentences, arpaFile, warmup, iterations);
+			results.add(model + "\ttrain\t" + median(trainingThroughput)
+					+ "\ttokens/s");
+
+			long heapBefore = usedHeap();
+			LanguageModel languageModel = buildModel(model, trainingSentences,
+					arpaFile);
+			long heapAfter = usedHeap();
+			results.add(model + "\theap\t" + (heapAfter - heapBefore)
+					+ "\tbytes");
+
+			results.add(model
+					+ "\tquery-seen\t"
+					+ measureQueries(languageModel, seenQueries, toModelIds(
+							languageModel, seenQueries), warmup, iterations)
+					+ "\tns/query");
+			results.add(model
+					+ "\tquery-unseen\t"
+					+ measureQueries(languageModel, unseenQueries, toModelIds(
+							languageModel, unseenQueries), warmup, iterations)
+					+ "\tns/query");
+			for (Map.Entry<Integer, List<List<String>>> entry : sentencesByLength
+					.entrySet()) {
+				results.add(model
+						+ "\tsentence-"
+						+ entry.getKey()
+						+ "\t"
+						+ measureSentences(languageModel, entry.getValue(),
+								warmup, iterations) + "\tns/sentence");
+			}
+			sink += languageModel.hashCode();
+			for (int i = results.size() - 4 - SENTENCE_LENGTHS.length; i < results
+					.size(); i++) {
+				System.out.println(results.get(i));
+			}
+		}
+
+		if (argMap.containsKey("-output")) {
+			PrintWriter out = new PrintWriter(new FileWriter(argMap
+					.get("-output")));
+			for (String result : results) {
+				out.println(result);
+			}
+			out.close();
+		}
+
+		if (argMap.containsKey("-baseline")) {
+			Map<String, Double> baseline = readResults(argMap.get("-baseline"));
+			int numRegressions = 0;
+			for (String result : results) {
+				String[] fields = result.split("\t");
+				Double baselineValue = baseline.get(fields[0] + "\t" + fields[1]);
+				if (baselineValue == null || fields[1].equals("heap"))
+					continue;
+				double value = Double.parseDouble(fields[2]);
+				// throughput should not drop, latencies should not grow
+				double change = fields[1].equals("train") ? baselineValue
+						/ value - 1.0 : value / baselineValue - 1.0;
+				if (change > tolerance) {
+					numRegressions++;
+					System.out.println("REGRESSION: " + fields[0] + " "
+							+ fields[1] + " " + baselineValue + " -> " + value
+							+ " " + fields[3]);
+				}
+			}
+			if (numRegressions > 0)
+				System.exit(1);
+		}
+	}
+}
@@ -8,8 +8,13 @@ import java.util.*;
 import java.text.NumberFormat;
 import java.text.DecimalFormat;
 
+import nlp.io.BinaryCorpus;
+import nlp.langmodel.IncrementalLanguageModel;
 import nlp.langmodel.LanguageModel;
+import nlp.langmodel.PrunableLanguageModel;
 import nlp.util.CommandLineUtils;
+import nlp.util.Indexer;
+import nlp.util.Stopwatch;
 
 /**
  * This is the main harness for assignment 1. To run this harness, use
@@ -25,70 +30,237 @@ import nlp.util.CommandLineUtils;
 public class LanguageModelTester {
 
 	// HELPER CLASS FOR THE HARNESS, CAN IGNORE
+	/**
+	 * Word-level edit distance. The List version honors the (mutable) costs
+	 * below; the int[] versions work on word ids, assume unit costs, and come
+	 * in three flavors: a full two-row dynamic program, a banded (Ukkonen)
+	 * version which gives up once the distance exceeds a cutoff, and a
+	 * bit-parallel (Myers) version for sentences of at most 64 words. All of
+	 * them keep their work buffers in per-thread storage, so evaluating a
+	 * hypothesis allocates nothing.
+	 */
 	static class EditDistance {
 		static double INSERT_COST = 1.0;
 		static double DELETE_COST = 1.0;
 		static double SUBSTITUTE_COST = 1.0;
 
-		private double[][] initialize(double[][] d) {
-			for (int i = 0; i < d.length; i++) {
-				for (int j = 0; j < d[i].length; j++) {
-					d[i][j] = Double.NaN;
+		static final int MAX_BIT_PARALLEL_LENGTH = 64;
+
+		private static final int PEQ_TABLE_SIZE = 2 * MAX_BIT_PARALLEL_LENGTH;
+
+		private static class Buffers {
+			double[] previousCosts = new double[0];
+			double[] currentCosts = new double[0];
+			int[] previousRow = new int[0];
+			int[] currentRow = new int[0];
+			int[] peqSymbols = new int[PEQ_TABLE_SIZE];
+			long[] peqMasks = new long[PEQ_TABLE_SIZE];
+			int[] peqStamps = new int[PEQ_TABLE_SIZE];
+			int peqStamp = 0;
+
+			void ensureCapacity(int length) {
+				if (previousRow.length < length) {
+					int capacity = Math.max(length, 2 * previousRow.length);
+					previousCosts = new double[capacity];
+					currentCosts = new double[capacity];
+					previousRow = new int[capacity];
+					currentRow = new int[capacity];
 				}
 			}
-			return d;
 		}
 
+		private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+			protected Buffers initialValue() {
+				return new Buffers();
+			}
+		};
+
 		public double getDistance(List<? extends Object> firstList,
 				List<? extends Object> secondList) {
-			double[][] bestDistances = initialize(new double[firstList.size() + 1][secondList
-					.size() + 1]);
-			return getDistance(firstList, secondList, 0, 0, bestDistances);
+			int secondSize = secondList.size();
+			Buffers b = buffers.get();
+			b.ensureCapacity(secondSize + 1);
+			double[] previous = b.previousCosts;
+			double[] current = b.currentCosts;
+			previous[0] = 0.0;
+			for (int j = 1; j <= secondSize; j++) {
+				previous[j] = previous[j - 1] + DELETE_COST;
+			}
+			for (int i = 1; i <= firstList.size(); i++) {
+				Object first = firstList.get(i - 1);
+				current[0] = previous[0] + INSERT_COST;
+				for (int j = 1; j <= secondSize; j++) {
+					double distance = Math.min(previous[j] + INSERT_COST,
+							current[j - 1] + DELETE_COST);
+					double diagonal = previous[j - 1];
+					if (!first.equals(secondList.get(j - 1)))
+						diagonal += SUBSTITUTE_COST;
+					current[j] = Math.min(distance, diagonal);
+				}
+				double[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+			return previous[secondSize];
 		}
 
-		private double getDistance(List<? extends Object> firstList,
-				List<? extends Object> secondList, int firstPosition,
-				int secondPosition, double[][] bestDistances) {
-			if (firstPosition > firstList.size()
-					|| secondPosition > secondList.size())
-				return Double.POSITIVE_INFINITY;
-			if (firstPosition == firstList.size()
-					&& secondPosition == secondList.size())
-				return 0.0;
-			if (Double.isNaN(bestDistances[firstPosition][secondPosition])) {
-				double distance = Double.POSITIVE_INFINITY;
-				distance = Math.min(
-						distance,
-						INSERT_COST
-								+ getDistance(firstList, secondList,
-										firstPosition + 1, secondPosition,
-										bestDistances));
-				distance = Math.min(
-						distance,
-						DELETE_COST
-								+ getDistance(firstList, secondList,
-										firstPosition, secondPosition + 1,
-										bestDistances));
-				distance = Math.min(
-						distance,
-						SUBSTITUTE_COST
-								+ getDistance(firstList, secondList,
-										firstPosition + 1, secondPosition + 1,
-										bestDistances));
-				if (firstPosition < firstList.size()
-						&& secondPosition < secondList.size()) {
-					if (firstList.get(firstPosition).equals(
-							secondList.get(secondPosition))) {
-						distance = Math.min(
-								distance,
-								getDistance(firstList, secondList,
-										firstPosition + 1, secondPosition + 1,
-										bestDistances));
-					}
+		/**
+		 * Unit-cost distance between two word id sequences, using the
+		 * bit-parallel algorithm whenever the shorter one fits in a machine
+		 * word.
+		 */
+		public int getDistance(int[] first, int[] second) {
+			if (first.length < second.length) {
+				int[] swap = first;
+				first = second;
+				second = swap;
+			}
+			if (second.length <= MAX_BIT_PARALLEL_LENGTH)
+				return getBitParallelDistance(second, first);
+			return getFullDistance(first, second);
+		}
+
+		/**
+		 * Banded unit-cost distance. Returns the exact distance if it is at
+		 * most maxDistance, and otherwise some value greater than maxDistance
+		 * (without finishing the dynamic program).
+		 */
+		public int getDistance(int[] first, int[] second, int maxDistance) {
+			int n = first.length;
+			int m = second.length;
+			if (maxDistance >= Math.max(n, m))
+				return getDistance(first, second);
+			if (Math.abs(n - m) > maxDistance)
+				return maxDistance + 1;
+			int outside = maxDistance + 1;
+			Buffers b = buffers.get();
+			b.ensureCapacity(m + 2);
+			int[] previous = b.previousRow;
+			int[] current = b.currentRow;
+			int high = Math.min(m, maxDistance);
+			for (int j = 0; j <= high; j++) {
+				previous[j] = j;
+			}
+			if (high < m)
+				previous[high + 1] = outside;
+			for (int i = 1; i <= n; i++) {
+				int low = Math.max(0, i - maxDistance);
+				high = Math.min(m, i + maxDistance);
+				int rowMinimum = outside;
+				int firstWord = first[i - 1];
+				if (low == 0) {
+					current[0] = i;
+					rowMinimum = i;
+					low = 1;
+				} else {
+					current[low - 1] = outside;
+				}
+				for (int j = low; j <= high; j++) {
+					int distance = previous[j - 1];
+					if (firstWord != second[j - 1])
+						distance++;
+					distance = Math.min(distance, previous[j] + 1);
+					distance = Math.min(distance, current[j - 1] + 1);
+					if (distance > outside)
+						distance = outside;
+					current[j] = distance;
+					if (distance < rowMinimum)
+						rowMinimum = distance;
 				}
-				bestDistances[firstPosition][secondPosition] = distance;
+				if (high < m)
+					current[high + 1] = outside;
+				if (rowMinimum > maxDistance)
+					return outside;
+				int[] swap = previous;
+				previous = current;
+				current = swap;
 			}
-			return bestDistances[firstPosition][secondPosition];
+			return previous[m];
+		}
+
+		/**
+		 * Plain two-row unit-cost dynamic program.
+		 */
+		public int getFullDistance(int[] first, int[] second) {
+			int m = second.length;
+			Buffers b = buffers.get();
+			b.ensureCapacity(m + 1);
+			int[] previous = b.previousRow;
+			int[] current = b.currentRow;
+			for (int j = 0; j <= m; j++) {
+				previous[j] = j;
+			}
+			for (int i = 1; i <= first.length; i++) {
+				int firstWord = first[i - 1];
+				current[0] = i;
+				for (int j = 1; j <= m; j++) {
+					int distance = previous[j - 1];
+					if (firstWord != second[j - 1])
+						distance++;
+					distance = Math.min(distance, previous[j] + 1);
+					current[j] = Math.min(distance, current[j - 1] + 1);
+				}
+				int[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+			return previous[m];
+		}
+
+		/**
+		 * Myers' bit-vector algorithm (in Hyyro's formulation for global
+		 * distance). The pattern must have at most 64 words; the text may
+		 * have any length.
+		 */
+		public int getBitParallelDistance(int[] pattern, int[] text) {
+			int m = pattern.length;
+			if (m == 0)
+				return text.length;
+			if (m > MAX_BIT_PARALLEL_LENGTH)
+				throw new IllegalArgumentException("Pattern too long: " + m);
+			Buffers b = buffers.get();
+			int stamp = ++b.peqStamp;
+			for (int i = 0; i < m; i++) {
+				int slot = findPeqSlot(b, pattern[i], stamp);
+				if (b.peqStamps[slot] != stamp) {
+					b.peqStamps[slot] = stamp;
+					b.peqSymbols[slot] = pattern[i];
+					b.peqMasks[slot] = 0L;
+				}
+				b.peqMasks[slot] |= 1L << i;
+			}
+			long lastBit = 1L << (m - 1);
+			long positiveVertical = -1L;
+			long negativeVertical = 0L;
+			int score = m;
+			for (int j = 0; j < text.length; j++) {
+				int slot = findPeqSlot(b, text[j], stamp);
+				long equal = b.peqStamps[slot] == stamp ? b.peqMasks[slot] : 0L;
+				long xv = equal | negativeVertical;
+				long xh = (((equal & positiveVertical) + positiveVertical) ^ positiveVertical)
+						| equal;
+				long positiveHorizontal = negativeVertical
+						| ~(xh | positiveVertical);
+				long negativeHorizontal = positiveVertical & xh;
+				if ((positiveHorizontal & lastBit) != 0)
+					score++;
+				else if ((negativeHorizontal & lastBit) != 0)
+					score--;
+				positiveHorizontal = (positiveHorizontal << 1) | 1L;
+				negativeHorizontal = negativeHorizontal << 1;
+				positiveVertical = negativeHorizontal
+						| ~(xv | positiveHorizontal);
+				negativeVertical = positiveHorizontal & xv;
+			}
+			return score;
+		}
+
+		private static int findPeqSlot(Buffers b, int symbol, int stamp) {
+			int slot = (symbol * 0x9E3779B9) >>> 25;
+			while (b.peqStamps[slot] == stamp && b.peqSymbols[slot] != symbol) {
+				slot = (slot + 1) & (PEQ_TABLE_SIZE - 1);
+			}
+			return slot;
 		}
 	}
 
@@ -162,6 +334,16 @@ public class LanguageModelTester {
 					String fileName) {
 				return new SentenceCollection(fileName);
 			}
+
+			/**
+			 * Reads the sentences through a memory-mapped binary copy of the
+			 * file (fileName + ".bin"), which is written on first use.
+			 */
+			static Collection<List<String>> readBinarySentenceCollection(
+					String fileName) throws IOException {
+				return BinaryCorpus.openOrConvert(new SentenceCollection(
+						fileName), fileName, fileName + ".bin");
+			}
 		}
 
 	}
@@ -180,23 +362,97 @@ public class LanguageModelTester {
 		return perplexity;
 	}
 
+	/**
+	 * Maps the ids of a word indexer to the ids of an incremental model.
+	 */
+	static int[] getModelWordIds(IncrementalLanguageModel languageModel,
+			Indexer<String> wordIndexer) {
+		int[] modelWordIds = new int[wordIndexer.size()];
+		for (int i = 0; i < modelWordIds.length; i++) {
+			modelWordIds[i] = languageModel.getWordIndex(wordIndexer.get(i));
+		}
+		return modelWordIds;
+	}
+
+	/**
+	 * Returns the (natural) log probability of each n-best sentence, in the
+	 * order of getNBestSentences(). An incremental model is run over the
+	 * hypothesis trie, so a prefix shared by several hypotheses is scored
+	 * once; modelWordIds maps the list's word ids to the model's.
+	 */
+	static double[] getLanguageModelScores(LanguageModel languageModel,
+			SpeechNBestList speechNBestList, int[] modelWordIds) {
+		List<List<String>> guesses = speechNBestList.getNBestSentences();
+		double[] scores = new double[guesses.size()];
+		if (!(languageModel instanceof IncrementalLanguageModel)) {
+			for (int i = 0; i < scores.length; i++) {
+				scores[i] = Math.log(languageModel
+						.getSentenceProbability(guesses.get(i)));
+			}
+			return scores;
+		}
+		IncrementalLanguageModel incrementalModel = (IncrementalLanguageModel) languageModel;
+		int stop = incrementalModel.getStopIndex();
+		SpeechNBestList.HypothesisTrie trie = speechNBestList
+				.getHypothesisTrie();
+		int[] nodes = new int[trie.size()];
+		long[] states = new long[trie.size()];
+		double[] logProbabilities = new double[trie.size()];
+		int stackSize = 0;
+		nodes[stackSize] = SpeechNBestList.HypothesisTrie.ROOT;
+		states[stackSize] = incrementalModel.getStartState();
+		logProbabilities[stackSize] = 0.0;
+		stackSize++;
+		while (stackSize > 0) {
+			stackSize--;
+			int node = nodes[stackSize];
+			long state = states[stackSize];
+			double logProbability = logProbabilities[stackSize];
+			int hypothesis = trie.getHypothesis(node);
+			if (hypothesis != SpeechNBestList.HypothesisTrie.NONE)
+				scores[hypothesis] = logProbability
+						+ incrementalModel.getLogProbability(state, stop);
+			for (int child = trie.getFirstChild(node); child != SpeechNBestList.HypothesisTrie.NONE; child = trie
+					.getNextSibling(child)) {
+				int word = modelWordIds[trie.getWord(child)];
+				nodes[stackSize] = child;
+				states[stackSize] = incrementalModel.getNextState(state, word);
+				logProbabilities[stackSize] = logProbability
+						+ incrementalModel.getLogProbability(state, word);
+				stackSize++;
+			}
+		}
+		return scores;
+	}
+
 	static double calculateWordErrorRate(LanguageModel languageModel,
 			List<SpeechNBestList> speechNBestLists, boolean verbose) {
 		double totalDistance = 0.0;
 		double totalWords = 0.0;
 		EditDistance editDistance = new EditDistance();
+		int[] modelWordIds = null;
+		if (languageModel instanceof IncrementalLanguageModel
+				&& !speechNBestLists.isEmpty())
+			modelWordIds = getModelWordIds(
+					(IncrementalLanguageModel) languageModel, speechNBestLists
+							.get(0).getWordIndexer());
 		for (SpeechNBestList speechNBestList : speechNBestLists) {
 			List<String> correctSentence = speechNBestList.getCorrectSentence();
+			int[] correctIds = speechNBestList.getCorrectSentenceIds();
+			int[][] guessIds = speechNBestList.getNBestSentenceIds();
+			List<List<String>> guesses = speechNBestList.getNBestSentences();
+			double[] languageModelScores = getLanguageModelScores(
+					languageModel, speechNBestList, modelWordIds);
 			List<String> bestGuess = null;
 			double bestScore = Double.NEGATIVE_INFINITY;
 			double numWithBestScores = 0.0;
 			double distanceForBestScores = 0.0;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double score = Math.log(languageModel
-						.getSentenceProbability(guess))
-						+ (speechNBestList.getAcousticScore(guess) / 16.0);
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
+			for (int i = 0; i < guesses.size(); i++) {
+				List<String> guess = guesses.get(i);
+				double score = languageModelScores[i]
+						+ (speechNBestList.getAcousticScore(i) / 16.0);
+				double distance = editDistance.getDistance(correctIds,
+						guessIds[i]);
 
 				if (score == bestScore) {
 					numWithBestScores += 1.0;
@@ -243,16 +499,18 @@ public class LanguageModelTester {
 		double totalWords = 0.0;
 		EditDistance editDistance = new EditDistance();
 		for (SpeechNBestList speechNBestList : speechNBestLists) {
-			List<String> correctSentence = speechNBestList.getCorrectSentence();
-			double bestDistance = Double.POSITIVE_INFINITY;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
+			int[] correctIds = speechNBestList.getCorrectSentenceIds();
+			int bestDistance = Integer.MAX_VALUE;
+			for (int[] guessIds : speechNBestList.getNBestSentenceIds()) {
+				// only distances which beat the current best matter, so the
+				// banded version can stop early
+				int distance = editDistance.getDistance(correctIds, guessIds,
+						bestDistance - 1);
 				if (distance < bestDistance)
 					bestDistance = distance;
 			}
 			totalDistance += bestDistance;
-			totalWords += correctSentence.size();
+			totalWords += correctIds.length;
 		}
 		return totalDistance / totalWords;
 	}
@@ -263,16 +521,15 @@ public class LanguageModelTester {
 		double totalWords = 0.0;
 		EditDistance editDistance = new EditDistance();
 		for (SpeechNBestList speechNBestList : speechNBestLists) {
-			List<String> correctSentence = speechNBestList.getCorrectSentence();
-			double worstDistance = Double.NEGATIVE_INFINITY;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
+			int[] correctIds = speechNBestList.getCorrectSentenceIds();
+			int worstDistance = Integer.MIN_VALUE;
+			for (int[] guessIds : speechNBestList.getNBestSentenceIds()) {
+				int distance = editDistance.getDistance(correctIds, guessIds);
 				if (distance > worstDistance)
 					worstDistance = distance;
 			}
 			totalDistance += worstDistance;
-			totalWords += correctSentence.size();
+			totalWords += correctIds.length;
 		}
 		return totalDistance / totalWords;
 	}
@@ -283,17 +540,15 @@ public class LanguageModelTester {
 		double totalWords = 0.0;
 		EditDistance editDistance = new EditDistance();
 		for (SpeechNBestList speechNBestList : speechNBestLists) {
-			List<String> correctSentence = speechNBestList.getCorrectSentence();
+			int[] correctIds = speechNBestList.getCorrectSentenceIds();
 			double sumDistance = 0.0;
 			double numGuesses = 0.0;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
-				sumDistance += distance;
+			for (int[] guessIds : speechNBestList.getNBestSentenceIds()) {
+				sumDistance += editDistance.getDistance(correctIds, guessIds);
 				numGuesses += 1.0;
 			}
 			totalDistance += sumDistance / numGuesses;
-			totalWords += correctSentence.size();
+			totalWords += correctIds.length;
 		}
 		return totalDistance / totalWords;
 	}
@@ -341,6 +596,36 @@ public class LanguageModelTester {
 	}
 
 
+	/**
+	 * Prunes the model at each of the (increasing) thresholds in turn and
+	 * prints how the number of n-grams trades off against HUB perplexity and
+	 * word error rate.
+	 */
+	static void printPruningReport(PrunableLanguageModel languageModel,
+			List<SpeechNBestList> speechNBestLists, String thresholds) {
+		System.out.println("Threshold\tN-grams\tHUB Perplexity\tHUB WER");
+		printPruningReportLine("0", languageModel, speechNBestLists);
+		for (String threshold : thresholds.split(",")) {
+			languageModel.prune(Double.parseDouble(threshold));
+			printPruningReportLine(threshold, languageModel, speechNBestLists);
+		}
+	}
+
+	static void printPruningReportLine(String threshold,
+			PrunableLanguageModel languageModel,
+			List<SpeechNBestList> speechNBestLists) {
+		System.out.println(threshold
+				+ "\t"
+				+ languageModel.getNumNgrams()
+				+ "\t"
+				+ calculatePerplexity(languageModel,
+						extractCorrectSentenceList(speechNBestLists)) + "\t"
+				+ calculateWordErrorRate(languageModel, speechNBestLists, false));
+	}
+
+	// the fixed size of the count-min sketch of the sketch models
+	static final long SKETCH_MEMORY_BYTES = 16L << 20;
+
 	static LanguageModel getLanguageModel(String model, Collection<List<String>> trainingSentenceCollection){
 		if (model.equalsIgnoreCase("baseline")) {
 			return new EmpiricalUnigramLanguageModel(
@@ -360,6 +645,18 @@ public class LanguageModelTester {
 		} else if (model.equalsIgnoreCase("Keser-Ney-bigram")) {
 			return new BigramKeserNeySmoothing(
 					trainingSentenceCollection, 1);
+		} else if (model.equalsIgnoreCase("Keser-Ney-trigram")) {
+			return new TrigramKeserNeySmoothing(
+					trainingSentenceCollection, 0.6, 0.3);
+		} else if (model.equalsIgnoreCase("class-bigram")) {
+			return new ClassBigramLanguageModel(trainingSentenceCollection,
+					100, 10, Runtime.getRuntime().availableProcessors());
+		} else if (model.equalsIgnoreCase("sketch")) {
+			return new SketchLanguageModel(trainingSentenceCollection,
+					SKETCH_MEMORY_BYTES, true);
+		} else if (model.equalsIgnoreCase("sketch-cm")) {
+			return new SketchLanguageModel(trainingSentenceCollection,
+					SKETCH_MEMORY_BYTES, false);
 		} else {
 			throw new RuntimeException("Unknown model descriptor: " + model);
 		}
@@ -375,16 +672,25 @@ public class LanguageModelTester {
 		String model = "baseline";
 		boolean verbose = false;
 		boolean printTestReport = false;
+		boolean useBinaryCorpus = false;
 		if (argMap.containsKey("-path")) {
 			basePath = argMap.get("-path");
 		}
 		System.out.println("Using base path: " + basePath);
 
+		// Whether to read the training sentences from a binary corpus
+		if (argMap.containsKey("-binary")) {
+			useBinaryCorpus = true;
+		}
+
 		// Read in all the assignment data
 		String trainingSentencesFile = "/treebank-sentences-spoken-train.txt";
 		String speechNBestListsPath = "/wsj_n_bst";
-		Collection<List<String>> trainingSentenceCollection = SentenceCollection.Reader
-				.readSentenceCollection(basePath + trainingSentencesFile);
+		Collection<List<String>> trainingSentenceCollection = (useBinaryCorpus ? SentenceCollection.Reader
+				.readBinarySentenceCollection(basePath + trainingSentencesFile)
+				: SentenceCollection.Reader
+						.readSentenceCollection(basePath
+								+ trainingSentencesFile));
 		Set<String> trainingVocabulary = extractVocabulary(trainingSentenceCollection);
 		List<SpeechNBestList> speechNBestLists = SpeechNBestList.Reader
 				.readSpeechNBestLists(basePath + speechNBestListsPath,
@@ -452,9 +758,40 @@ public class LanguageModelTester {
 
 			// Build the language model
 			LanguageModel languageModel = getLanguageModel(model, trainingSentenceCollection);
+
+			// Fit the interpolation weights on the validation sentences, with
+			// the given number of history-count buckets
+			if (argMap.containsKey("-fitLambdas")) {
+				if (!(languageModel instanceof TrigramKeserNeySmoothing))
+					throw new RuntimeException("Can't fit weights of model: " + model);
+				Collection<List<String>> validationSentenceCollection = SentenceCollection.Reader
+						.readSentenceCollection(basePath
+								+ "/treebank-sentences-spoken-validate.txt");
+				TrigramKeserNeySmoothing trigramModel = (TrigramKeserNeySmoothing) languageModel;
+				Stopwatch stopwatch = new Stopwatch();
+				stopwatch.start();
+				double heldOutPerplexity = trigramModel.fitLambdas(
+						validationSentenceCollection,
+						Integer.parseInt(argMap.get("-fitLambdas")), 100);
+				stopwatch.stop();
+				System.out.println("Fit lambda 1 = "
+						+ Arrays.toString(trigramModel.getLambda1s())
+						+ ", lambda 2 = "
+						+ Arrays.toString(trigramModel.getLambda2s()) + " in "
+						+ stopwatch.getTotalElapsedTime() + "s");
+				System.out.println("Held-out Perplexity:  " + heldOutPerplexity);
+			}
 			//ouble wsjPerplexity = calculatePerplexity(languageModel, testSentenceCollection);
 			//System.out.println("WSJ Perplexity:  " + wsjPerplexity);
 			printReport(languageModel,speechNBestLists, verbose);
+
+			// Entropy-prune the model at a comma-separated list of thresholds
+			if (argMap.containsKey("-prune")) {
+				if (!(languageModel instanceof PrunableLanguageModel))
+					throw new RuntimeException("Model can't be pruned: " + model);
+				printPruningReport((PrunableLanguageModel) languageModel,
+						speechNBestLists, argMap.get("-prune"));
+			}
 		}
 
 
@@ -4,6 +4,7 @@ import java.io.StringReader;
 import java.util.*;
 
 import nlp.io.PennTreebankReader;
+import nlp.ling.SuffixTagModel;
 import nlp.ling.Tree;
 import nlp.ling.Trees;
 import nlp.parser.EnglishPennTreebankParseEvaluator;
@@ -227,10 +228,10 @@ public class PCFGParserTester {
 	static class Lexicon {
 		CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>();
 		double totalTokens = 0.0;
-		double totalWordTypes = 0.0;
 		Counter<String> tagCounter = new Counter<String>();
 		Counter<String> wordCounter = new Counter<String>();
-		Counter<String> typeTagCounter = new Counter<String>();
+		// tag guesses for rare and unknown words, from their suffixes
+		SuffixTagModel suffixTagModel = new SuffixTagModel(5, 10);
 
 		public Set<String> getAllTags() {
 			return tagCounter.keySet();
@@ -246,7 +247,7 @@ public class PCFGParserTester {
 			double c_tag_and_word = wordToTagCounters.getCount(word, tag);
 			if (c_word < 10) { // rare or unknown
 				c_word += 1.0;
-				c_tag_and_word += typeTagCounter.getCount(tag) / totalWordTypes;
+				c_tag_and_word += suffixTagModel.getProbability(word, tag);
 			}
 			double p_word = (1.0 + c_word) / (totalTokens + 1.0);
 			double p_tag_given_word = c_tag_and_word / c_word;
@@ -264,17 +265,15 @@ public class PCFGParserTester {
 					System.out.println(tag + " -> " + word + "1.0");
 				}
 			}
+			suffixTagModel.build();
 		}
 
 		private void tallyTagging(String word, String tag) {
-			if (!isKnown(word)) {
-				totalWordTypes += 1.0;
-				typeTagCounter.incrementCount(tag, 1.0);
-			}
 			totalTokens += 1.0;
 			tagCounter.incrementCount(tag, 1.0);
 			wordCounter.incrementCount(word, 1.0);
 			wordToTagCounters.incrementCount(word, tag, 1.0);
+			suffixTagModel.addTagging(word, tag);
 		}
 	}
 
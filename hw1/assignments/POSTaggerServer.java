@@ -0,0 +1,504 @@
+package nlp.assignments;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nlp.assignments.POSTaggerTester.LocalTrigramScorer;
+import nlp.assignments.POSTaggerTester.POSTagger;
+import nlp.assignments.POSTaggerTester.TaggedSentence;
+import nlp.assignments.POSTaggerTester.TrellisDecoder;
+import nlp.util.BoundedList;
+import nlp.util.CommandLineUtils;
+import nlp.util.ThreadPools;
+
+/**
+ * A long-running tagging service: the tagger is trained once, at startup,
+ * and then tags sentences sent to it over HTTP on the local host. To run it,
+ * use
+ * <p/>
+ * java nlp.assignments.POSTaggerServer -path /path/to/treebank [-port 8080]
+ * [-scorer mostFrequent] [-decoder viterbi] [-threads 4] [-maxBatch 256]
+ * [-maxDelay 2] [-timeout 30000] [-maxQueue 1024] [-scoreCache 65536]
+ * <p/>
+ * POST /tag takes one sentence per line, tokens separated by spaces, and
+ * answers with one line per sentence of word_TAG tokens (an empty line for a
+ * blank one); GET /stats reports request counts (all requests, and the
+ * rejected and failed ones among them), sentence and token counts,
+ * throughput, batch sizes and latency percentiles over all requests.
+ * Requests are handled on a fixed pool of threads, which hand their
+ * sentences to a single batcher: it collects the sentences of concurrent
+ * requests, for at most maxDelay milliseconds or maxBatch sentences, and tags
+ * them together with POSTagger's batch tagging on the tagging threads. A
+ * request which finds maxQueue requests already waiting for the batcher, or
+ * which waits longer than timeout milliseconds for its batch, is answered
+ * 503, and the batcher drops it unless it is already being tagged. Any scorer
+ * and decoder the tester knows can be served.
+ */
+public class POSTaggerServer {
+
+	static final int NUM_LATENCY_SAMPLES = 10000;
+
+	/**
+	 * The sentences of one request, waiting for their taggings.
+	 */
+	static class PendingRequest {
+		List<List<String>> sentences;
+		List<List<String>> taggings;
+		Throwable error;
+		CountDownLatch done = new CountDownLatch(1);
+		// set once the request has stopped waiting, so it needn't be tagged
+		AtomicBoolean abandoned = new AtomicBoolean();
+
+		PendingRequest(List<List<String>> sentences) {
+			this.sentences = sentences;
+		}
+	}
+
+	/**
+	 * The latencies of the last NUM_LATENCY_SAMPLES requests, in a ring, from
+	 * which percentiles are computed on demand.
+	 */
+	static class LatencyStats {
+		long[] samples = new long[NUM_LATENCY_SAMPLES];
+		int numSamples = 0;
+		int next = 0;
+
+		public synchronized void record(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % samples.length;
+			numSamples = Math.min(numSamples + 1, samples.length);
+		}
+
+		/**
+		 * The latencies at the given percentiles, in milliseconds (zero if
+		 * there are no samples yet).
+		 */
+		public double[] getPercentiles(double... percentiles) {
+			long[] sorted;
+			synchronized (this) {
+				sorted = Arrays.copyOf(samples, numSamples);
+			}
+			Arrays.sort(sorted);
+			double[] latencies = new double[percentiles.length];
+			for (int i = 0; i < percentiles.length; i++) {
+				if (sorted.length == 0)
+					continue;
+				int rank = (int) Math.ceil(percentiles[i] / 100.0
+						* sorted.length) - 1;
+				latencies[i] = sorted[Math.max(0, Math.min(rank,
+						sorted.length - 1))] / 1e6;
+			}
+			return latencies;
+		}
+	}
+
+	/**
+	 * Collects the sentences of concurrent requests into batches for the
+	 * tagger, on its own thread.
+	 */
+	static class BatchingTagger implements Runnable {
+		BlockingQueue<PendingRequest> queue;
+		POSTagger posTagger;
+		ExecutorService taggingExecutor;
+		int parallelism;
+		int maxBatchSentences;
+		long maxDelayNanos;
+		long timeoutNanos;
+		AtomicLong numBatches = new AtomicLong();
+		AtomicLong numBatchedSentences = new AtomicLong();
+
+		/**
+		 * Tags the sentences, waiting for the batch they end up in, for at
+		 * most the timeout; throws a RejectedExecutionException if the queue
+		 * of waiting requests is full.
+		 */
+		public List<List<String>> tag(List<List<String>> sentences)
+				throws InterruptedException, TimeoutException {
+			PendingRequest request = new PendingRequest(sentences);
+			if (!queue.offer(request))
+				throw new RejectedExecutionException(queue.size()
+						+ " requests already waiting");
+			if (!request.done.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+				request.abandoned.set(true);
+				throw new TimeoutException("No tagging after "
+						+ timeoutNanos / 1000000 + "ms");
+			}
+			if (request.error instanceof RuntimeException)
+				throw (RuntimeException) request.error;
+			if (request.error != null)
+				throw new RuntimeException(request.error);
+			return request.taggings;
+		}
+
+		public void run() {
+			List<PendingRequest> batch = new ArrayList<PendingRequest>();
+			List<List<String>> sentences = new ArrayList<List<String>>();
+			try {
+				while (true) {
+					PendingRequest first = queue.take();
+					if (first.abandoned.get())
+						continue;
+					batch.add(first);
+					int numSentences = first.sentences.size();
+					long deadline = System.nanoTime() + maxDelayNanos;
+					while (numSentences < maxBatchSentences) {
+						PendingRequest request = queue.poll(deadline
+								- System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (request == null)
+							break;
+						if (request.abandoned.get())
+							continue;
+						batch.add(request);
+						numSentences += request.sentences.size();
+					}
+					try {
+						// requests may have timed out while the batch filled
+						for (Iterator<PendingRequest> i = batch.iterator(); i
+								.hasNext();) {
+							PendingRequest request = i.next();
+							if (request.abandoned.get())
+								i.remove();
+							else
+								sentences.addAll(request.sentences);
+						}
+						if (!batch.isEmpty())
+							tagBatch(batch, sentences);
+					} catch (Throwable t) {
+						// fail the batch, but keep on batching
+						finishBatch(batch, null, t);
+					}
+					batch.clear();
+					sentences.clear();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void tagBatch(List<PendingRequest> batch,
+				List<List<String>> sentences) {
+			List<List<String>> taggings = null;
+			Throwable error = null;
+			try {
+				taggings = posTagger.tag(sentences, taggingExecutor,
+						parallelism);
+			} catch (Throwable t) {
+				error = t;
+			}
+			numBatches.incrementAndGet();
+			numBatchedSentences.addAndGet(sentences.size());
+			finishBatch(batch, taggings, error);
+		}
+
+		/**
+		 * Hands each request of the batch its taggings, or the error, and
+		 * wakes it.
+		 */
+		private void finishBatch(List<PendingRequest> batch,
+				List<List<String>> taggings, Throwable error) {
+			int offset = 0;
+			for (PendingRequest request : batch) {
+				int numSentences = request.sentences.size();
+				if (error == null)
+					request.taggings = new ArrayList<List<String>>(taggings
+							.subList(offset, offset + numSentences));
+				request.error = error;
+				offset += numSentences;
+				request.done.countDown();
+			}
+		}
+
+		public BatchingTagger(POSTagger posTagger,
+				ExecutorService taggingExecutor, int parallelism,
+				int maxBatchSentences, long maxDelayNanos, long timeoutNanos,
+				int maxQueuedRequests) {
+			this.queue = new LinkedBlockingQueue<PendingRequest>(
+					maxQueuedRequests);
+			this.posTagger = posTagger;
+			this.taggingExecutor = taggingExecutor;
+			this.parallelism = parallelism;
+			this.maxBatchSentences = maxBatchSentences;
+			this.maxDelayNanos = maxDelayNanos;
+			this.timeoutNanos = timeoutNanos;
+		}
+	}
+
+	/**
+	 * Handles POST /tag.
+	 */
+	static class TagHandler implements HttpHandler {
+		BatchingTagger batchingTagger;
+		LatencyStats latencyStats;
+		AtomicLong numRequests = new AtomicLong();
+		// requests refused for their form, and those which failed or timed
+		// out in tagging
+		AtomicLong numRejectedRequests = new AtomicLong();
+		AtomicLong numFailedRequests = new AtomicLong();
+		AtomicLong numSentences = new AtomicLong();
+		AtomicLong numTokens = new AtomicLong();
+
+		/**
+		 * Every request is counted, and its latency recorded, whether it
+		 * succeeds or not; a request which throws counts as failed.
+		 */
+		public void handle(HttpExchange exchange) throws IOException {
+			long startTime = System.nanoTime();
+			int status = 500;
+			try {
+				status = tag(exchange);
+			} finally {
+				numRequests.incrementAndGet();
+				if (status >= 500)
+					numFailedRequests.incrementAndGet();
+				else if (status >= 400)
+					numRejectedRequests.incrementAndGet();
+				latencyStats.record(System.nanoTime() - startTime);
+				exchange.close();
+			}
+		}
+
+		/**
+		 * Answers the request, and returns the status it was answered with.
+		 */
+		private int tag(HttpExchange exchange) throws IOException {
+			if (!exchange.getRequestMethod().equalsIgnoreCase("POST"))
+				return respond(exchange, 405, "Use POST\n");
+			List<List<String>> sentences = readSentences(exchange
+					.getRequestBody());
+			List<List<String>> taggings;
+			try {
+				taggings = batchingTagger.tag(sentences);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return respond(exchange, 503, "Interrupted\n");
+			} catch (TimeoutException e) {
+				return respond(exchange, 503, "Tagging timed out\n");
+			} catch (RejectedExecutionException e) {
+				return respond(exchange, 503, "Too many requests waiting\n");
+			} catch (RuntimeException e) {
+				return respond(exchange, 500, "Tagging failed: " + e + "\n");
+			}
+			StringBuilder response = new StringBuilder();
+			int tokens = 0;
+			for (int i = 0; i < sentences.size(); i++) {
+				List<String> words = sentences.get(i);
+				List<String> tags = taggings.get(i);
+				for (int position = 0; position < words.size(); position++) {
+					if (position > 0)
+						response.append(' ');
+					response.append(words.get(position)).append('_').append(
+							tags.get(position));
+				}
+				response.append('\n');
+				tokens += words.size();
+			}
+			numSentences.addAndGet(sentences.size());
+			numTokens.addAndGet(tokens);
+			return respond(exchange, 200, response.toString());
+		}
+
+		/**
+		 * One sentence per line, wrapped with the tagger's boundary words; a
+		 * blank line is an empty sentence, so that the answer has a line for
+		 * every line of the request.
+		 */
+		private List<List<String>> readSentences(InputStream in)
+				throws IOException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					in, "UTF-8"));
+			List<List<String>> sentences = new ArrayList<List<String>>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				List<String> words = (line.length() == 0 ? Collections
+						.<String> emptyList() : Arrays.asList(line
+						.split("\\s+")));
+				sentences.add(new BoundedList<String>(words,
+						POSTaggerTester.START_WORD, POSTaggerTester.STOP_WORD));
+			}
+			return sentences;
+		}
+
+		TagHandler(BatchingTagger batchingTagger, LatencyStats latencyStats) {
+			this.batchingTagger = batchingTagger;
+			this.latencyStats = latencyStats;
+		}
+	}
+
+	/**
+	 * Handles GET /stats.
+	 */
+	static class StatsHandler implements HttpHandler {
+		TagHandler tagHandler;
+		BatchingTagger batchingTagger;
+		LatencyStats latencyStats;
+		long startTime = System.nanoTime();
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				double seconds = (System.nanoTime() - startTime) / 1e9;
+				long numTokens = tagHandler.numTokens.get();
+				long numBatches = batchingTagger.numBatches.get();
+				double[] latencies = latencyStats.getPercentiles(50, 90, 99,
+						100);
+				StringBuilder stats = new StringBuilder();
+				stats.append("uptime_seconds ").append(seconds).append('\n');
+				stats.append("requests ").append(tagHandler.numRequests.get())
+						.append('\n');
+				stats.append("rejected_requests ").append(
+						tagHandler.numRejectedRequests.get()).append('\n');
+				stats.append("failed_requests ").append(
+						tagHandler.numFailedRequests.get()).append('\n');
+				stats.append("sentences ").append(
+						tagHandler.numSentences.get()).append('\n');
+				stats.append("tokens ").append(numTokens).append('\n');
+				stats.append("tokens_per_second ").append(
+						numTokens / Math.max(seconds, 1e-9)).append('\n');
+				stats.append("batches ").append(numBatches).append('\n');
+				stats.append("mean_batch_sentences ").append(
+						numBatches == 0 ? 0.0 : (double) batchingTagger.numBatchedSentences
+								.get()
+								/ numBatches).append('\n');
+				stats.append("latency_ms_p50 ").append(latencies[0]).append(
+						'\n');
+				stats.append("latency_ms_p90 ").append(latencies[1]).append(
+						'\n');
+				stats.append("latency_ms_p99 ").append(latencies[2]).append(
+						'\n');
+				stats.append("latency_ms_max ").append(latencies[3]).append(
+						'\n');
+				respond(exchange, 200, stats.toString());
+			} finally {
+				exchange.close();
+			}
+		}
+
+		StatsHandler(TagHandler tagHandler, BatchingTagger batchingTagger,
+				LatencyStats latencyStats) {
+			this.tagHandler = tagHandler;
+			this.batchingTagger = batchingTagger;
+			this.latencyStats = latencyStats;
+		}
+	}
+
+	/**
+	 * Sends the response, and returns its status.
+	 */
+	private static int respond(HttpExchange exchange, int status,
+			String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+		return status;
+	}
+
+	public static void main(String[] args) throws IOException {
+		// Parse command line flags and arguments
+		Map<String, String> argMap = CommandLineUtils
+				.simpleCommandLineParser(args);
+
+		// Set up default parameters and settings
+		String basePath = ".";
+		int port = 8080;
+		String scorer = "mostFrequent";
+		String decoder = "viterbi";
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		int numHandlerThreads = 64;
+		int maxBatchSentences = 256;
+		double maxDelayMillis = 2.0;
+		double timeoutMillis = 30000.0;
+		int maxQueuedRequests = 1024;
+		int scoreCacheSize = 1 << 16;
+
+		// Update defaults using command line specifications
+		if (argMap.containsKey("-path"))
+			basePath = argMap.get("-path");
+		if (argMap.containsKey("-port"))
+			port = Integer.parseInt(argMap.get("-port"));
+		if (argMap.containsKey("-scorer"))
+			scorer = argMap.get("-scorer");
+		if (argMap.containsKey("-decoder"))
+			decoder = argMap.get("-decoder");
+		// the threads tagging batches, and those handling requests
+		if (argMap.containsKey("-threads"))
+			numThreads = Integer.parseInt(argMap.get("-threads"));
+		if (argMap.containsKey("-handlerThreads"))
+			numHandlerThreads = Integer.parseInt(argMap
+					.get("-handlerThreads"));
+		// the most sentences in a batch, and the longest a batch waits
+		if (argMap.containsKey("-maxBatch"))
+			maxBatchSentences = Integer.parseInt(argMap.get("-maxBatch"));
+		if (argMap.containsKey("-maxDelay"))
+			maxDelayMillis = Double.parseDouble(argMap.get("-maxDelay"));
+		// the longest a request waits for its taggings
+		if (argMap.containsKey("-timeout"))
+			timeoutMillis = Double.parseDouble(argMap.get("-timeout"));
+		// the most requests waiting for the batcher
+		if (argMap.containsKey("-maxQueue"))
+			maxQueuedRequests = Integer.parseInt(argMap.get("-maxQueue"));
+		// the number of local score arrays to cache across sentences
+		if (argMap.containsKey("-scoreCache"))
+			scoreCacheSize = Integer.parseInt(argMap.get("-scoreCache"));
+
+		// Train the tagger, once
+		System.out.print("Training tagger (scorer " + scorer + ", decoder "
+				+ decoder + ")...");
+		List<TaggedSentence> trainTaggedSentences = POSTaggerTester
+				.readTaggedSentences(basePath, 200, 2199);
+		List<TaggedSentence> validationTaggedSentences = POSTaggerTester
+				.readTaggedSentences(basePath, 2200, 2299);
+		LocalTrigramScorer localTrigramScorer = POSTaggerTester
+				.getLocalTrigramScorer(scorer, numThreads, argMap);
+		TrellisDecoder trellisDecoder = POSTaggerTester.getTrellisDecoder(
+				decoder, argMap);
+		POSTagger posTagger = new POSTagger(localTrigramScorer, trellisDecoder);
+		posTagger.setScoreCacheSize(scoreCacheSize);
+		posTagger.train(trainTaggedSentences);
+		posTagger.validate(validationTaggedSentences);
+		System.out.println("done.");
+
+		// Serve
+		ExecutorService taggingExecutor = ThreadPools.newDaemonPool(
+				numThreads, "POSTagger");
+		BatchingTagger batchingTagger = new BatchingTagger(posTagger,
+				taggingExecutor, numThreads, maxBatchSentences,
+				(long) (maxDelayMillis * 1e6), (long) (timeoutMillis * 1e6),
+				maxQueuedRequests);
+		ThreadPools.daemonThreads("POSTaggerServer-batcher").newThread(
+				batchingTagger).start();
+		LatencyStats latencyStats = new LatencyStats();
+		TagHandler tagHandler = new TagHandler(batchingTagger, latencyStats);
+		final HttpServer server = HttpServer.create(new InetSocketAddress(
+				"localhost", port), 0);
+		server.createContext("/tag", tagHandler);
+		server.createContext("/stats", new StatsHandler(tagHandler,
+				batchingTagger, latencyStats));
+		server.setExecutor(ThreadPools.newDaemonPool(numHandlerThreads,
+				"POSTaggerServer-http"));
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.stop(0);
+			}
+		});
+		server.start();
+		System.out.println("Tagging on http://localhost:" + port + "/tag");
+	}
+}
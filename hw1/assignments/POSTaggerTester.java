@@ -1,10 +1,21 @@
 package nlp.assignments;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import nlp.io.IOUtils;
 import nlp.io.PennTreebankReader;
+import nlp.io.TaggedCorpus;
+import nlp.ling.SuffixTagModel;
 import nlp.ling.Tree;
 import nlp.ling.Trees;
+import nlp.math.DifferentiableFunction;
+import nlp.math.LBFGSMinimizer;
 import nlp.util.*;
 
 /**
@@ -81,48 +92,1276 @@ public class POSTaggerTester {
 	}
 
 	/**
-	 * States are pairs of tags along with a position index, representing the
-	 * two tags preceding that position. So, the START state, which can be
-	 * gotten by State.getStartState() is [START, START, 0]. To build an
-	 * arbitrary state, for example [DT, NN, 2], use the static factory method
-	 * State.buildState("DT", "NN", 2). There isnt' a single final state, since
-	 * sentences lengths vary, so State.getEndState(i) takes a parameter for the
-	 * length of the sentence.
+	 * States are pairs of tags: the two tags preceding a position of the
+	 * sentence. They are encoded as ints over a tag index, previousPreviousTag
+	 * * numTags + previousTag, and the position is given by the column of the
+	 * trellis the state is in. The START state is [START, START] in column 0,
+	 * and the STOP state is [STOP, STOP] in the last column.
 	 */
-	static class State {
+	static class States {
+		public static int buildState(int previousPreviousTag,
+				int previousTag, int numTags) {
+			return previousPreviousTag * numTags + previousTag;
+		}
+
+		public static int getPreviousPreviousTag(int state, int numTags) {
+			return state / numTags;
+		}
+
+		public static int getPreviousTag(int state, int numTags) {
+			return state % numTags;
+		}
+
+		public static int getNextState(int state, int tag, int numTags) {
+			return buildState(getPreviousTag(state, numTags), tag, numTags);
+		}
+	}
+
+	/**
+	 * A Trellis is a layered graph of tagger states with a start state and an
+	 * end state: column 0 holds just the start state, the last column just the
+	 * end state, and every transition leads from a state in one column to a
+	 * state in the next. States are stored as nodes numbered in column order
+	 * (so the start node is 0 and the end node is getNumNodes() - 1), and each
+	 * node's transitions are a contiguous range of the transition arrays. The
+	 * arrays are reused when a trellis is rebuilt.
+	 */
+	static class Trellis {
+		int numTags;
+		int numColumns;
+		int numNodes;
+		int numTransitions;
+		int[] columnStarts = new int[64];
+		int[] nodeStates = new int[1024];
+		int[] transitionStarts = new int[1025];
+		int[] transitionTargets = new int[4096];
+		double[] transitionScores = new double[4096];
+		// the node of each state in the column being built, valid where the
+		// state's stamp matches the column's
+		int[] stateNodes = new int[0];
+		int[] stateStamps = new int[0];
+		int columnStamp = 0;
+
+		public int getNumTags() {
+			return numTags;
+		}
+
+		public int getNumColumns() {
+			return numColumns;
+		}
+
+		public int getNumNodes() {
+			return numNodes;
+		}
+
+		public int getStartNode() {
+			return 0;
+		}
+
+		public int getEndNode() {
+			return numNodes - 1;
+		}
+
+		public int getColumnStart(int column) {
+			return columnStarts[column];
+		}
+
+		public int getColumnEnd(int column) {
+			return columnStarts[column + 1];
+		}
+
+		public int getState(int node) {
+			return nodeStates[node];
+		}
+
+		/**
+		 * The node's transitions are those from getFirstTransition(node) up to
+		 * getEndTransition(node).
+		 */
+		public int getFirstTransition(int node) {
+			return transitionStarts[node];
+		}
+
+		public int getEndTransition(int node) {
+			return transitionStarts[node + 1];
+		}
+
+		public int getTransitionTarget(int transition) {
+			return transitionTargets[transition];
+		}
+
+		public double getTransitionScore(int transition) {
+			return transitionScores[transition];
+		}
+
+		/**
+		 * The sum of the transition scores along a path of states, one per
+		 * column, or Double.NEGATIVE_INFINITY if the states aren't a path of
+		 * the trellis.
+		 */
+		public double getPathScore(int[] states) {
+			int node = getStartNode();
+			if (states.length != numColumns || getState(node) != states[0])
+				return Double.NEGATIVE_INFINITY;
+			double score = 0.0;
+			for (int column = 1; column < numColumns; column++) {
+				int nextTransition = -1;
+				for (int transition = getFirstTransition(node); transition < getEndTransition(node); transition++) {
+					if (getState(getTransitionTarget(transition)) == states[column]) {
+						nextTransition = transition;
+						break;
+					}
+				}
+				if (nextTransition < 0)
+					return Double.NEGATIVE_INFINITY;
+				score += getTransitionScore(nextTransition);
+				node = getTransitionTarget(nextTransition);
+			}
+			return score;
+		}
+
+		/**
+		 * Starts a new trellis whose column 0 holds the start state.
+		 */
+		void clear(int numTags) {
+			this.numTags = numTags;
+			int numStates = numTags * numTags;
+			if (stateNodes.length < numStates) {
+				stateNodes = new int[numStates];
+				stateStamps = new int[numStates];
+				columnStamp = 0;
+			}
+			numColumns = 1;
+			numNodes = 0;
+			numTransitions = 0;
+			columnStarts[0] = 0;
+			transitionStarts[0] = 0;
+			nextColumnStamp();
+			addNode(States.buildState(0, 0, numTags));
+			columnStarts[1] = numNodes;
+			nextColumnStamp();
+		}
+
+		/**
+		 * Adds a transition from a node of the last complete column to a state
+		 * of the column being built.
+		 */
+		void addTransition(int node, int nextState, double score) {
+			int nextNode;
+			if (stateStamps[nextState] == columnStamp) {
+				nextNode = stateNodes[nextState];
+			} else {
+				nextNode = addNode(nextState);
+			}
+			if (numTransitions == transitionTargets.length) {
+				transitionTargets = Arrays.copyOf(transitionTargets,
+						2 * numTransitions);
+				transitionScores = Arrays.copyOf(transitionScores,
+						2 * numTransitions);
+			}
+			transitionTargets[numTransitions] = nextNode;
+			transitionScores[numTransitions++] = score;
+		}
+
+		/**
+		 * Ends the transitions of a node; nodes must be ended in order.
+		 */
+		void endNode(int node) {
+			transitionStarts[node + 1] = numTransitions;
+		}
+
+		/**
+		 * Closes the column being built, once all nodes of the previous column
+		 * are ended.
+		 */
+		void endColumn() {
+			numColumns++;
+			if (numColumns + 1 >= columnStarts.length)
+				columnStarts = Arrays.copyOf(columnStarts, 2 * numColumns + 2);
+			columnStarts[numColumns] = numNodes;
+			nextColumnStamp();
+		}
+
+		/**
+		 * Ends the nodes of the last column, which have no transitions.
+		 */
+		void endTrellis() {
+			for (int node = columnStarts[numColumns - 1]; node < numNodes; node++) {
+				endNode(node);
+			}
+		}
+
+		private void nextColumnStamp() {
+			if (columnStamp == Integer.MAX_VALUE) {
+				Arrays.fill(stateStamps, 0);
+				columnStamp = 0;
+			}
+			columnStamp++;
+		}
+
+		private int addNode(int state) {
+			if (numNodes + 1 == nodeStates.length) {
+				int capacity = 2 * nodeStates.length;
+				nodeStates = Arrays.copyOf(nodeStates, capacity);
+				transitionStarts = Arrays.copyOf(transitionStarts, capacity + 1);
+			}
+			nodeStates[numNodes] = state;
+			stateNodes[state] = numNodes;
+			stateStamps[state] = columnStamp;
+			return numNodes++;
+		}
+	}
+
+	/**
+	 * A path through a trellis, as the states of its nodes, one per column,
+	 * with its score: the sum of the scores of its transitions.
+	 */
+	static class TrellisPath {
+		int[] states;
+		double score;
+
+		public int[] getStates() {
+			return states;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		public TrellisPath(int[] states, double score) {
+			this.states = states;
+			this.score = score;
+		}
+	}
+
+	/**
+	 * A TrellisDecoder takes a Trellis and returns a path through that trellis
+	 * as the states of its nodes, one per column, in which the first is the
+	 * state of trellis.getStartNode(), the last that of trellis.getEndNode(),
+	 * and each pair of nodes is connected in the trellis; along with the
+	 * path's score, so that it needn't be scored again.
+	 */
+	static interface TrellisDecoder {
+		TrellisPath getBestPath(Trellis trellis);
+	}
+
+	/**
+	 * A TrellisExpander adds the transitions of a node in the last complete
+	 * column of a trellis which is being built.
+	 */
+	static interface TrellisExpander {
+		void expand(Trellis trellis, int node);
+	}
+
+	/**
+	 * A LazyTrellisDecoder builds the trellis as it decodes, starting from
+	 * trellis.clear() and expanding only the nodes it wants to follow; every
+	 * node must still be ended (in order) and every column ended, through
+	 * numPositions columns after the start column.
+	 */
+	static interface LazyTrellisDecoder extends TrellisDecoder {
+		TrellisPath getBestPath(Trellis trellis, TrellisExpander expander,
+				int numPositions);
+	}
+
+	static class GreedyDecoder implements TrellisDecoder {
+		public TrellisPath getBestPath(Trellis trellis) {
+			int[] states = new int[trellis.getNumColumns()];
+			double score = 0.0;
+			int node = trellis.getStartNode();
+			states[0] = trellis.getState(node);
+			for (int column = 1; column < states.length; column++) {
+				int bestTransition = -1;
+				for (int transition = trellis.getFirstTransition(node); transition < trellis
+						.getEndTransition(node); transition++) {
+					if (bestTransition < 0
+							|| trellis.getTransitionScore(transition) > trellis
+									.getTransitionScore(bestTransition))
+						bestTransition = transition;
+				}
+				if (bestTransition < 0)
+					throw new IllegalArgumentException(
+							"Greedy path reaches a dead end");
+				score += trellis.getTransitionScore(bestTransition);
+				node = trellis.getTransitionTarget(bestTransition);
+				states[column] = trellis.getState(node);
+			}
+			return new TrellisPath(states, score);
+		}
+	}
+
+	/**
+	 * Finds the best path through a trellis by the Viterbi algorithm. Nodes
+	 * are numbered in column order, so a single pass over them in order
+	 * settles each node's best score before its transitions are relaxed.
+	 * Scores and backpointers live in primitive arrays which each thread
+	 * reuses across sentences.
+	 */
+	static class ViterbiDecoder implements TrellisDecoder {
+		static class Buffers {
+			double[] scores = new double[1024];
+			int[] backPointers = new int[1024];
+
+			void ensureCapacity(int numNodes) {
+				if (scores.length < numNodes) {
+					scores = new double[Math.max(numNodes, 2 * scores.length)];
+					backPointers = new int[scores.length];
+				}
+			}
+		}
+
+		ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+			protected Buffers initialValue() {
+				return new Buffers();
+			}
+		};
+
+		public TrellisPath getBestPath(Trellis trellis) {
+			Buffers buffers = this.buffers.get();
+			int numNodes = trellis.getNumNodes();
+			buffers.ensureCapacity(numNodes);
+			double[] scores = buffers.scores;
+			int[] backPointers = buffers.backPointers;
+			Arrays.fill(scores, 0, numNodes, Double.NEGATIVE_INFINITY);
+			scores[trellis.getStartNode()] = 0.0;
+			backPointers[trellis.getStartNode()] = -1;
+			for (int node = 0; node < numNodes; node++) {
+				double score = scores[node];
+				if (score == Double.NEGATIVE_INFINITY)
+					continue;
+				for (int transition = trellis.getFirstTransition(node); transition < trellis
+						.getEndTransition(node); transition++) {
+					int nextNode = trellis.getTransitionTarget(transition);
+					double nextScore = score
+							+ trellis.getTransitionScore(transition);
+					if (nextScore > scores[nextNode]) {
+						scores[nextNode] = nextScore;
+						backPointers[nextNode] = node;
+					}
+				}
+			}
+			int endNode = trellis.getEndNode();
+			if (scores[endNode] == Double.NEGATIVE_INFINITY)
+				throw new IllegalArgumentException(
+						"End state is unreachable from the start state");
+			int[] states = new int[trellis.getNumColumns()];
+			int node = endNode;
+			for (int column = states.length - 1; column >= 0; column--) {
+				states[column] = trellis.getState(node);
+				node = backPointers[node];
+			}
+			return new TrellisPath(states, scores[endNode]);
+		}
+	}
+
+	/**
+	 * Runs the forward-backward algorithm over a trellis to find the posterior
+	 * probability of every tag at every position, and decodes by taking the
+	 * most probable tag at each position in turn (which maximizes the
+	 * expected number of correct tags, though the tags needn't form a path of
+	 * the trellis, in which case the path's score is Double.NEGATIVE_INFINITY).
+	 * The sums are done in linear space, rescaled column by column: each
+	 * column's transition scores are shifted by their maximum before they are
+	 * exponentiated, once, and the forward scores of each column are
+	 * normalized to sum to one, so that nothing under- or overflows and no
+	 * per-transition logs are needed.
+	 */
+	static class ForwardBackwardDecoder implements TrellisDecoder {
+		static class Buffers {
+			double[] forward = new double[1024];
+			double[] backward = new double[1024];
+			double[] weights = new double[4096];
+			double[] columnNorms = new double[64];
+			double[] tagPosteriors = new double[4096];
+
+			void ensureCapacity(Trellis trellis) {
+				int numNodes = trellis.getNumNodes();
+				if (forward.length < numNodes) {
+					forward = new double[Math.max(numNodes, 2 * forward.length)];
+					backward = new double[forward.length];
+				}
+				int numTransitions = trellis.getEndTransition(trellis
+						.getEndNode());
+				if (weights.length < numTransitions)
+					weights = new double[Math.max(numTransitions,
+							2 * weights.length)];
+				int numColumns = trellis.getNumColumns();
+				if (columnNorms.length < numColumns)
+					columnNorms = new double[Math.max(numColumns,
+							2 * columnNorms.length)];
+				int numPosteriors = numColumns * trellis.getNumTags();
+				if (tagPosteriors.length < numPosteriors)
+					tagPosteriors = new double[Math.max(numPosteriors,
+							2 * tagPosteriors.length)];
+			}
+		}
+
+		ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+			protected Buffers initialValue() {
+				return new Buffers();
+			}
+		};
+
+		public TrellisPath getBestPath(Trellis trellis) {
+			Buffers buffers = this.buffers.get();
+			computeTagPosteriors(trellis, buffers);
+			int numTags = trellis.getNumTags();
+			int[] states = new int[trellis.getNumColumns()];
+			states[0] = trellis.getState(trellis.getStartNode());
+			for (int column = 1; column < states.length; column++) {
+				int offset = column * numTags;
+				int bestTag = 0;
+				for (int tag = 1; tag < numTags; tag++) {
+					if (buffers.tagPosteriors[offset + tag] > buffers.tagPosteriors[offset
+							+ bestTag])
+						bestTag = tag;
+				}
+				states[column] = States.getNextState(states[column - 1],
+						bestTag, numTags);
+			}
+			return new TrellisPath(states, trellis.getPathScore(states));
+		}
+
+		/**
+		 * The posterior probabilities of the tags at each column after the
+		 * start column, [column - 1][tag], where a column's tag is the last
+		 * tag of its states (so row i is the word at position i, and the last
+		 * rows are the stop positions).
+		 */
+		public double[][] getTagPosteriors(Trellis trellis) {
+			Buffers buffers = this.buffers.get();
+			computeTagPosteriors(trellis, buffers);
+			int numTags = trellis.getNumTags();
+			double[][] tagPosteriors = new double[trellis.getNumColumns() - 1][];
+			for (int column = 1; column < trellis.getNumColumns(); column++) {
+				tagPosteriors[column - 1] = Arrays.copyOfRange(
+						buffers.tagPosteriors, column * numTags, (column + 1)
+								* numTags);
+			}
+			return tagPosteriors;
+		}
+
+		/**
+		 * Fills the buffers' tagPosteriors, [column * numTags + tag].
+		 */
+		private void computeTagPosteriors(Trellis trellis, Buffers buffers) {
+			buffers.ensureCapacity(trellis);
+			double[] forward = buffers.forward;
+			double[] backward = buffers.backward;
+			double[] weights = buffers.weights;
+			double[] columnNorms = buffers.columnNorms;
+			int numColumns = trellis.getNumColumns();
+			Arrays.fill(forward, 0, trellis.getNumNodes(), 0.0);
+			forward[trellis.getStartNode()] = 1.0;
+			for (int column = 0; column < numColumns - 1; column++) {
+				int firstTransition = trellis.getFirstTransition(trellis
+						.getColumnStart(column));
+				int endTransition = trellis.getFirstTransition(trellis
+						.getColumnEnd(column));
+				double maxScore = Double.NEGATIVE_INFINITY;
+				for (int transition = firstTransition; transition < endTransition; transition++) {
+					maxScore = Math.max(maxScore, trellis
+							.getTransitionScore(transition));
+				}
+				// a column whose transitions all score -inf leads nowhere,
+				// rather than to exp(-inf + inf) = NaN
+				for (int transition = firstTransition; transition < endTransition; transition++) {
+					weights[transition] = (maxScore == Double.NEGATIVE_INFINITY ? 0.0
+							: Math.exp(trellis.getTransitionScore(transition)
+									- maxScore));
+				}
+				for (int node = trellis.getColumnStart(column); node < trellis
+						.getColumnEnd(column); node++) {
+					double score = forward[node];
+					for (int transition = trellis.getFirstTransition(node); transition < trellis
+							.getEndTransition(node); transition++) {
+						forward[trellis.getTransitionTarget(transition)] += score
+								* weights[transition];
+					}
+				}
+				double norm = 0.0;
+				for (int node = trellis.getColumnStart(column + 1); node < trellis
+						.getColumnEnd(column + 1); node++) {
+					norm += forward[node];
+				}
+				if (!(norm > 0.0))
+					throw new IllegalArgumentException(
+							"End state is unreachable from the start state");
+				for (int node = trellis.getColumnStart(column + 1); node < trellis
+						.getColumnEnd(column + 1); node++) {
+					forward[node] /= norm;
+				}
+				columnNorms[column] = norm;
+			}
+
+			backward[trellis.getEndNode()] = 1.0;
+			for (int column = numColumns - 2; column >= 0; column--) {
+				double norm = columnNorms[column];
+				for (int node = trellis.getColumnStart(column); node < trellis
+						.getColumnEnd(column); node++) {
+					double score = 0.0;
+					for (int transition = trellis.getFirstTransition(node); transition < trellis
+							.getEndTransition(node); transition++) {
+						score += weights[transition]
+								* backward[trellis.getTransitionTarget(transition)];
+					}
+					backward[node] = score / norm;
+				}
+			}
+
+			int numTags = trellis.getNumTags();
+			double[] tagPosteriors = buffers.tagPosteriors;
+			Arrays.fill(tagPosteriors, 0, numColumns * numTags, 0.0);
+			for (int column = 0; column < numColumns; column++) {
+				for (int node = trellis.getColumnStart(column); node < trellis
+						.getColumnEnd(column); node++) {
+					tagPosteriors[column * numTags
+							+ States.getPreviousTag(trellis.getState(node),
+									numTags)] += forward[node] * backward[node];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Beam search: keeps only the beamWidth best nodes of each column (and
+	 * of those, only the ones scoring within beamThreshold of the column's
+	 * best), found with a bounded heap, and expands just those, so the local
+	 * scorer is never called for pruned states. If the beam runs into a dead
+	 * end, the sentence is decoded again with every node expanded.
+	 */
+	static class BeamDecoder implements LazyTrellisDecoder {
+		static class Buffers {
+			double[] scores = new double[1024];
+			int[] backPointers = new int[1024];
+			boolean[] inBeam = new boolean[1024];
+			BoundedIntHeap beam;
+
+			void ensureCapacity(int numNodes) {
+				if (scores.length < numNodes) {
+					int capacity = Math.max(numNodes, 2 * scores.length);
+					scores = Arrays.copyOf(scores, capacity);
+					backPointers = Arrays.copyOf(backPointers, capacity);
+					inBeam = Arrays.copyOf(inBeam, capacity);
+				}
+			}
+
+			Buffers(int beamWidth) {
+				beam = new BoundedIntHeap(beamWidth);
+			}
+		}
+
+		int beamWidth;
+		double beamThreshold;
+		ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+			protected Buffers initialValue() {
+				return new Buffers(beamWidth);
+			}
+		};
+
+		public int getBeamWidth() {
+			return beamWidth;
+		}
+
+		public double getBeamThreshold() {
+			return beamThreshold;
+		}
+
+		/**
+		 * Decodes a trellis which is already fully built; beam search then only
+		 * saves the relaxation of pruned nodes.
+		 */
+		public TrellisPath getBestPath(Trellis trellis) {
+			return decode(trellis, null, trellis.getNumColumns() - 1,
+					beamWidth, beamThreshold);
+		}
+
+		public TrellisPath getBestPath(Trellis trellis,
+				TrellisExpander expander, int numPositions) {
+			TrellisPath path = decode(trellis, expander, numPositions,
+					beamWidth, beamThreshold);
+			if (path == null)
+				path = decode(trellis, expander, numPositions,
+						Integer.MAX_VALUE, Double.POSITIVE_INFINITY);
+			return path;
+		}
+
+		/**
+		 * Decodes with the given beam, building the trellis with the expander
+		 * unless it is null, and returns null at a dead end.
+		 */
+		private TrellisPath decode(Trellis trellis, TrellisExpander expander,
+				int numPositions, int beamWidth, double beamThreshold) {
+			Buffers buffers = this.buffers.get();
+			if (expander != null)
+				trellis.clear(trellis.getNumTags());
+			buffers.ensureCapacity(trellis.getNumNodes());
+			double[] scores = buffers.scores;
+			scores[trellis.getStartNode()] = 0.0;
+			buffers.backPointers[trellis.getStartNode()] = -1;
+			for (int position = 0; position < numPositions; position++) {
+				int columnStart = trellis.getColumnStart(position);
+				int columnEnd = trellis.getColumnEnd(position);
+				if (columnStart == columnEnd)
+					return null;
+				selectBeam(buffers, trellis, position, beamWidth,
+						beamThreshold);
+				boolean[] inBeam = buffers.inBeam;
+				for (int node = columnStart; node < columnEnd; node++) {
+					if (expander != null) {
+						if (inBeam[node])
+							expander.expand(trellis, node);
+						trellis.endNode(node);
+					}
+				}
+				if (expander != null)
+					trellis.endColumn();
+				int nextStart = trellis.getColumnStart(position + 1);
+				int nextEnd = trellis.getColumnEnd(position + 1);
+				buffers.ensureCapacity(nextEnd);
+				scores = buffers.scores;
+				int[] backPointers = buffers.backPointers;
+				Arrays.fill(scores, nextStart, nextEnd,
+						Double.NEGATIVE_INFINITY);
+				for (int node = columnStart; node < columnEnd; node++) {
+					if (!buffers.inBeam[node])
+						continue;
+					double score = scores[node];
+					for (int transition = trellis.getFirstTransition(node); transition < trellis
+							.getEndTransition(node); transition++) {
+						int nextNode = trellis.getTransitionTarget(transition);
+						double nextScore = score
+								+ trellis.getTransitionScore(transition);
+						if (nextScore > scores[nextNode]) {
+							scores[nextNode] = nextScore;
+							backPointers[nextNode] = node;
+						}
+					}
+				}
+			}
+			if (expander != null)
+				trellis.endTrellis();
+			int endNode = trellis.getEndNode();
+			if (trellis.getColumnStart(numPositions) > endNode
+					|| scores[endNode] == Double.NEGATIVE_INFINITY)
+				return null;
+			int[] states = new int[numPositions + 1];
+			int node = endNode;
+			for (int column = numPositions; column >= 0; column--) {
+				states[column] = trellis.getState(node);
+				node = buffers.backPointers[node];
+			}
+			return new TrellisPath(states, scores[endNode]);
+		}
+
+		/**
+		 * Marks the nodes of the column which make the beam.
+		 */
+		private void selectBeam(Buffers buffers, Trellis trellis,
+				int column, int beamWidth, double beamThreshold) {
+			int columnStart = trellis.getColumnStart(column);
+			int columnEnd = trellis.getColumnEnd(column);
+			double[] scores = buffers.scores;
+			boolean[] inBeam = buffers.inBeam;
+			double bestScore = Double.NEGATIVE_INFINITY;
+			for (int node = columnStart; node < columnEnd; node++) {
+				bestScore = Math.max(bestScore, scores[node]);
+			}
+			double minScore = bestScore - beamThreshold;
+			if (beamWidth >= columnEnd - columnStart) {
+				for (int node = columnStart; node < columnEnd; node++) {
+					inBeam[node] = scores[node] > Double.NEGATIVE_INFINITY
+							&& scores[node] >= minScore;
+				}
+				return;
+			}
+			BoundedIntHeap beam = buffers.beam;
+			beam.clear();
+			for (int node = columnStart; node < columnEnd; node++) {
+				inBeam[node] = false;
+				if (scores[node] > Double.NEGATIVE_INFINITY
+						&& scores[node] >= minScore)
+					beam.offer(node, scores[node]);
+			}
+			for (int i = 0; i < beam.size(); i++) {
+				inBeam[beam.getItem(i)] = true;
+			}
+		}
 
-		private static transient Interner<State> stateInterner = new Interner<State>(
-				new Interner.CanonicalFactory<State>() {
-					public State build(State state) {
-						return new State(state);
+		public BeamDecoder(int beamWidth, double beamThreshold) {
+			if (beamWidth < 1)
+				throw new IllegalArgumentException("Bad beam width: "
+						+ beamWidth);
+			this.beamWidth = beamWidth;
+			this.beamThreshold = beamThreshold;
+		}
+	}
+
+	/**
+	 * A bounded cache of local score arrays. It is split into independently
+	 * locked segments, so that tagging threads rarely contend for it, and
+	 * each segment into small sets of entries in primitive arrays, so that
+	 * neither lookups nor insertions allocate: a key lives in one set, and a
+	 * full set evicts its least recently used entry.
+	 */
+	static class LocalScoreCache {
+		static final int NUM_SEGMENTS = 16;
+		static final int SET_SIZE = 4;
+
+		static class Segment {
+			int numSets;
+			long[] keys;
+			// null for an empty entry
+			double[][] values;
+			long[] lastUses;
+			long clock = 0;
+
+			public synchronized double[] get(long key, long hash) {
+				int first = getSet(hash) * SET_SIZE;
+				for (int entry = first; entry < first + SET_SIZE; entry++) {
+					if (values[entry] != null && keys[entry] == key) {
+						lastUses[entry] = ++clock;
+						return values[entry];
+					}
+				}
+				return null;
+			}
+
+			public synchronized void put(long key, long hash,
+					double[] logScores) {
+				int first = getSet(hash) * SET_SIZE;
+				int victim = first;
+				for (int entry = first; entry < first + SET_SIZE; entry++) {
+					if (values[entry] == null || keys[entry] == key) {
+						victim = entry;
+						break;
+					}
+					if (lastUses[entry] < lastUses[victim])
+						victim = entry;
+				}
+				keys[victim] = key;
+				values[victim] = logScores;
+				lastUses[victim] = ++clock;
+			}
+
+			private int getSet(long hash) {
+				// the top bits chose the segment
+				return (int) ((hash & 0x0FFFFFFFFFFFFFFFL) % numSets);
+			}
+
+			Segment(int numSets) {
+				this.numSets = numSets;
+				keys = new long[numSets * SET_SIZE];
+				values = new double[numSets * SET_SIZE][];
+				lastUses = new long[numSets * SET_SIZE];
+			}
+		}
+
+		Segment[] segments = new Segment[NUM_SEGMENTS];
+		AtomicLong numHits = new AtomicLong();
+		AtomicLong numMisses = new AtomicLong();
+
+		public double[] get(long key) {
+			long hash = hash(key);
+			double[] logScores = getSegment(hash).get(key, hash);
+			(logScores != null ? numHits : numMisses).incrementAndGet();
+			return logScores;
+		}
+
+		public void put(long key, double[] logScores) {
+			long hash = hash(key);
+			getSegment(hash).put(key, hash, logScores);
+		}
+
+		private static long hash(long key) {
+			return key * 0x9E3779B97F4A7C15L;
+		}
+
+		private Segment getSegment(long hash) {
+			return segments[(int) (hash >>> 60) & (NUM_SEGMENTS - 1)];
+		}
+
+		public String toString() {
+			long hits = numHits.get();
+			long lookups = hits + numMisses.get();
+			return hits + " hits in " + lookups + " lookups ("
+					+ (lookups == 0 ? 0 : 100 * hits / lookups) + "%)";
+		}
+
+		public LocalScoreCache(int maxSize) {
+			int segmentSize = Math.max(1, maxSize / NUM_SEGMENTS);
+			int numSets = Math.max(1, (segmentSize + SET_SIZE - 1) / SET_SIZE);
+			for (int i = 0; i < NUM_SEGMENTS; i++) {
+				segments[i] = new Segment(numSets);
+			}
+		}
+	}
+
+	/**
+	 * A tagging of a sentence with its score, and the score of the sentence's
+	 * gold tagging (Double.NaN if it wasn't asked for).
+	 */
+	static class ScoredTagging {
+		List<String> tags;
+		double score;
+		double goldScore;
+
+		public List<String> getTags() {
+			return tags;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		public double getGoldScore() {
+			return goldScore;
+		}
+
+		public ScoredTagging(List<String> tags, double score, double goldScore) {
+			this.tags = tags;
+			this.score = score;
+			this.goldScore = goldScore;
+		}
+	}
+
+	static class POSTagger {
+
+		LocalTrigramScorer localTrigramScorer;
+		TrellisDecoder trellisDecoder;
+		// the tags seen in training, START_TAG and STOP_TAG first
+		Indexer<String> tagIndexer = new Indexer<String>();
+		// the words seen in training, for keying cached local scores
+		Indexer<String> wordIndexer = new Indexer<String>();
+		LocalScoreCache scoreCache;
+		ForwardBackwardDecoder posteriorDecoder = new ForwardBackwardDecoder();
+
+		/**
+		 * The state each tagging thread reuses from sentence to sentence: its
+		 * current sentence, its trellis, the word ids of the sentence, and the
+		 * local scores computed for the sentence so far.
+		 */
+		static class Buffers {
+			List<String> sentence;
+			Trellis trellis = new Trellis();
+			int[] wordIds = new int[64];
+			LongObjectHashMap<double[]> sentenceScores = new LongObjectHashMap<double[]>();
+		}
+
+		ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+			protected Buffers initialValue() {
+				return new Buffers();
+			}
+		};
+
+		/**
+		 * Caches up to maxSize local score arrays across sentences, if the
+		 * local scorer's scores only depend on the current word and tag
+		 * history; 0 turns the cache off.
+		 */
+		public void setScoreCacheSize(int maxSize) {
+			scoreCache = (maxSize > 0 ? new LocalScoreCache(maxSize) : null);
+		}
+
+		public LocalScoreCache getScoreCache() {
+			return scoreCache;
+		}
+
+		// chop up the training instances into local contexts and pass them on
+		// to the local scorer.
+		public void train(List<TaggedSentence> taggedSentences) {
+			tagIndexer.add(START_TAG);
+			tagIndexer.add(STOP_TAG);
+			wordIndexer.add(START_WORD);
+			wordIndexer.add(STOP_WORD);
+			for (TaggedSentence taggedSentence : taggedSentences) {
+				tagIndexer.addAll(taggedSentence.getTags());
+				wordIndexer.addAll(taggedSentence.getWords());
+			}
+			if (localTrigramScorer instanceof DenseLocalTrigramScorer)
+				((DenseLocalTrigramScorer) localTrigramScorer)
+						.setTagIndexer(tagIndexer);
+			if (localTrigramScorer instanceof ColumnarLocalTrigramScorer)
+				((ColumnarLocalTrigramScorer) localTrigramScorer)
+						.train(new LocalTrigramContextColumns(taggedSentences,
+								wordIndexer, tagIndexer));
+			else
+				localTrigramScorer
+						.train(extractLabeledLocalTrigramContexts(taggedSentences));
+		}
+
+		/**
+		 * Trains on a corpus: a columnar scorer gets its contexts straight
+		 * from the corpus's ids, any other scorer from views of its sentences.
+		 */
+		public void train(TaggedCorpus corpus) {
+			if (!(localTrigramScorer instanceof ColumnarLocalTrigramScorer)) {
+				train(getTaggedSentences(corpus));
+				return;
+			}
+			tagIndexer.add(START_TAG);
+			tagIndexer.add(STOP_TAG);
+			wordIndexer.add(START_WORD);
+			wordIndexer.add(STOP_WORD);
+			tagIndexer.addAll(corpus.getTagIndexer());
+			wordIndexer.addAll(corpus.getWordIndexer());
+			if (localTrigramScorer instanceof DenseLocalTrigramScorer)
+				((DenseLocalTrigramScorer) localTrigramScorer)
+						.setTagIndexer(tagIndexer);
+			((ColumnarLocalTrigramScorer) localTrigramScorer)
+					.train(new LocalTrigramContextColumns(corpus, wordIndexer,
+							tagIndexer));
+		}
+
+		// chop up the validation instances into local contexts and pass them on
+		// to the local scorer.
+		public void validate(List<TaggedSentence> taggedSentences) {
+			localTrigramScorer
+					.validate(extractLabeledLocalTrigramContexts(taggedSentences));
+		}
+
+		/**
+		 * The local contexts of the sentences, made one at a time as they are
+		 * iterated over (so that they needn't all be in memory at once), as
+		 * often as the scorer likes.
+		 */
+		private Iterable<LabeledLocalTrigramContext> extractLabeledLocalTrigramContexts(
+				final List<TaggedSentence> taggedSentences) {
+			return new Iterable<LabeledLocalTrigramContext>() {
+				public Iterator<LabeledLocalTrigramContext> iterator() {
+					return new LabeledLocalTrigramContextIterator(
+							taggedSentences.iterator());
+				}
+			};
+		}
+
+		/**
+		 * Builds a Trellis over a sentence, by starting at the start state, and
+		 * advancing through all legal extensions of each state already in the
+		 * trellis. You should not have to modify this code (or even read it,
+		 * really).
+		 */
+		private Trellis buildTrellis(List<String> sentence) {
+			Trellis trellis = startSentence(sentence).trellis;
+			TrellisExpander expander = getTrellisExpander(sentence);
+			for (int position = 0; position <= sentence.size() + 1; position++) {
+				int columnStart = trellis.getColumnStart(position);
+				int columnEnd = trellis.getColumnEnd(position);
+				for (int node = columnStart; node < columnEnd; node++) {
+					expander.expand(trellis, node);
+					trellis.endNode(node);
+				}
+				trellis.endColumn();
+			}
+			trellis.endTrellis();
+			// only the stop state may end the trellis
+			int lastColumn = trellis.getNumColumns() - 1;
+			int stopState = States.buildState(tagIndexer.indexOf(STOP_TAG),
+					tagIndexer.indexOf(STOP_TAG), tagIndexer.size());
+			if (trellis.getColumnEnd(lastColumn)
+					- trellis.getColumnStart(lastColumn) != 1
+					|| trellis.getState(trellis.getEndNode()) != stopState)
+				throw new IllegalStateException(
+						"Trellis doesn't end in the stop state");
+			return trellis;
+		}
+
+		/**
+		 * Expands trellis nodes over the sentence with the tags the local
+		 * scorer allows, and their log scores.
+		 */
+		private TrellisExpander getTrellisExpander(final List<String> sentence) {
+			return new TrellisExpander() {
+				public void expand(Trellis trellis, int node) {
+					int numTags = trellis.getNumTags();
+					int position = trellis.getNumColumns() - 1;
+					int state = trellis.getState(node);
+					double[] logScores = getLocalScores(sentence, position,
+							state);
+					for (int tag = 0; tag < numTags; tag++) {
+						if (logScores[tag] == Double.NEGATIVE_INFINITY)
+							continue;
+						trellis.addTransition(node, States.getNextState(state,
+								tag, numTags), logScores[tag]);
+					}
+				}
+			};
+		}
+
+		/**
+		 * Gets the calling thread ready for a new sentence, and returns its
+		 * buffers, with the trellis cleared.
+		 */
+		private Buffers startSentence(List<String> sentence) {
+			Buffers buffers = this.buffers.get();
+			buffers.sentence = sentence;
+			buffers.trellis.clear(tagIndexer.size());
+			buffers.sentenceScores.clear();
+			if (buffers.wordIds.length < sentence.size() + 2)
+				buffers.wordIds = new int[2 * (sentence.size() + 2)];
+			for (int position = 0; position < sentence.size() + 2; position++) {
+				buffers.wordIds[position] = wordIndexer.indexOf(sentence
+						.get(position));
+			}
+			return buffers;
+		}
+
+		/**
+		 * The log scores of the tags at a position of the current sentence of
+		 * the calling thread, given the state there, as an array over the tag
+		 * index (Double.NEGATIVE_INFINITY for tags not allowed), which must not
+		 * be modified. Scores are memoized for the sentence; for scorers which
+		 * only look at the current word, under the word rather than the
+		 * position, and across sentences too if there is a score cache.
+		 */
+		double[] getLocalScores(List<String> sentence, int position, int state) {
+			Buffers buffers = this.buffers.get();
+			long numStates = (long) tagIndexer.size() * tagIndexer.size();
+			int wordId = buffers.wordIds[position];
+			boolean wordLocal = localTrigramScorer instanceof WordLocalTrigramScorer;
+			long sentenceKey;
+			if (!wordLocal)
+				sentenceKey = position * numStates + state;
+			else if (wordId >= 0)
+				sentenceKey = wordId * numStates + state;
+			else
+				sentenceKey = (wordIndexer.size() + position) * numStates
+						+ state;
+			double[] logScores = buffers.sentenceScores.get(sentenceKey);
+			if (logScores != null)
+				return logScores;
+			boolean cacheable = (wordLocal && wordId >= 0 && scoreCache != null);
+			if (cacheable)
+				logScores = scoreCache.get(sentenceKey);
+			if (logScores == null) {
+				logScores = computeLocalScores(sentence, position, state);
+				if (cacheable)
+					scoreCache.put(sentenceKey, logScores);
+			}
+			buffers.sentenceScores.put(sentenceKey, logScores);
+			return logScores;
+		}
+
+		private double[] computeLocalScores(List<String> sentence,
+				int position, int state) {
+			int numTags = tagIndexer.size();
+			int previousPreviousTag = States.getPreviousPreviousTag(state,
+					numTags);
+			int previousTag = States.getPreviousTag(state, numTags);
+			double[] logScores = new double[numTags];
+			if (localTrigramScorer instanceof DenseLocalTrigramScorer) {
+				((DenseLocalTrigramScorer) localTrigramScorer).getLogScores(
+						sentence, position, previousPreviousTag, previousTag,
+						logScores);
+				return logScores;
+			}
+			Arrays.fill(logScores, Double.NEGATIVE_INFINITY);
+			Counter<String> tagScores = localTrigramScorer
+					.getLogScoreCounter(new LocalTrigramContext(sentence,
+							position, tagIndexer.get(previousPreviousTag),
+							tagIndexer.get(previousTag)));
+			for (Map.Entry<String, Double> tagScore : tagScores.getEntrySet()) {
+				int tag = tagIndexer.indexOf(tagScore.getKey());
+				if (tag >= 0)
+					logScores[tag] = tagScore.getValue();
+			}
+			return logScores;
+		}
+
+		// to tag a sentence: build its trellis and find a path through that
+		// trellis
+		public List<String> tag(List<String> sentence) {
+			return tagAndScore(sentence, null).getTags();
+		}
+
+		/**
+		 * Tags a sentence, and returns the tagging with its score from the
+		 * decoder, and the score of the gold tags unless they are null; the
+		 * gold tags are scored right after decoding, so that the local scores
+		 * the decoder computed are reused.
+		 */
+		public ScoredTagging tagAndScore(List<String> sentence,
+				List<String> goldTags) {
+			TrellisPath path;
+			if (trellisDecoder instanceof LazyTrellisDecoder) {
+				Trellis trellis = startSentence(sentence).trellis;
+				path = ((LazyTrellisDecoder) trellisDecoder).getBestPath(
+						trellis, getTrellisExpander(sentence),
+						sentence.size() + 2);
+			} else {
+				path = trellisDecoder.getBestPath(buildTrellis(sentence));
+			}
+			double goldScore = (goldTags == null ? Double.NaN : scoreTagging(
+					sentence, goldTags));
+			return new ScoredTagging(toTagList(path.getStates()), path
+					.getScore(), goldScore);
+		}
+
+		/**
+		 * The tags of the sentence's words along a path of states: the word at
+		 * position i gets the previous tag of the state in column i + 1.
+		 */
+		private List<String> toTagList(int[] states) {
+			int numTags = tagIndexer.size();
+			List<String> tags = new ArrayList<String>();
+			for (int column = 1; column < states.length - 2; column++) {
+				tags.add(tagIndexer.get(States.getPreviousTag(states[column],
+						numTags)));
+			}
+			return tags;
+		}
+
+		/**
+		 * The posterior probabilities of the tags of each word of the sentence,
+		 * [position][tag] over getTagIndexer(), by forward-backward over its
+		 * full trellis, whatever the tagger's decoder.
+		 */
+		public double[][] getTagPosteriors(List<String> sentence) {
+			return Arrays.copyOf(posteriorDecoder
+					.getTagPosteriors(buildTrellis(sentence)), sentence.size());
+		}
+
+		public Indexer<String> getTagIndexer() {
+			return tagIndexer;
+		}
+
+		/**
+		 * Tags the sentences on numThreads worker threads, and returns their
+		 * taggings in the same order.
+		 */
+		public List<List<String>> tag(List<? extends List<String>> sentences,
+				int numThreads) {
+			return getTags(tagAndScore(sentences, null, numThreads));
+		}
+
+		/**
+		 * Tags the sentences with parallelism tasks on the executor, each
+		 * taking the next untagged sentence until none are left, and returns
+		 * their taggings in the same order.
+		 */
+		public List<List<String>> tag(List<? extends List<String>> sentences,
+				ExecutorService executor, int parallelism) {
+			return getTags(tagAndScore(sentences, null, executor, parallelism));
+		}
+
+		private static List<List<String>> getTags(
+				List<ScoredTagging> scoredTaggings) {
+			List<List<String>> taggings = new ArrayList<List<String>>();
+			for (ScoredTagging scoredTagging : scoredTaggings) {
+				taggings.add(scoredTagging.getTags());
+			}
+			return taggings;
+		}
+
+		/**
+		 * Tags and scores the sentences, as tagAndScore(sentence, goldTags),
+		 * on numThreads worker threads, and returns their scored taggings in
+		 * the same order; goldTaggings may be null.
+		 */
+		public List<ScoredTagging> tagAndScore(
+				List<? extends List<String>> sentences,
+				List<? extends List<String>> goldTaggings, int numThreads) {
+			ExecutorService executor = ThreadPools.newDaemonPool(numThreads,
+					"POSTagger");
+			try {
+				return tagAndScore(sentences, goldTaggings, executor,
+						numThreads);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		/**
+		 * Tags and scores the sentences with parallelism tasks on the
+		 * executor, each taking the next untagged sentence until none are
+		 * left, and returns their scored taggings in the same order;
+		 * goldTaggings may be null.
+		 */
+		public List<ScoredTagging> tagAndScore(
+				final List<? extends List<String>> sentences,
+				final List<? extends List<String>> goldTaggings,
+				ExecutorService executor, int parallelism) {
+			final List<ScoredTagging> taggings = new ArrayList<ScoredTagging>(
+					Collections.nCopies(sentences.size(), (ScoredTagging) null));
+			final AtomicInteger nextSentence = new AtomicInteger();
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < Math.min(parallelism, sentences.size()); i++) {
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						int sentence;
+						while ((sentence = nextSentence.getAndIncrement()) < sentences
+								.size()) {
+							taggings.set(sentence, tagAndScore(sentences
+									.get(sentence), (goldTaggings == null ? null
+									: goldTaggings.get(sentence))));
+						}
+						return null;
 					}
 				});
+			}
+			ThreadPools.invokeAll(executor, tasks);
+			return taggings;
+		}
 
-		private static transient State tempState = new State();
+		/**
+		 * Scores a tagging for a sentence. Note that a tag sequence not
+		 * accepted by the markov process should receive a log score of
+		 * Double.NEGATIVE_INFINITY.
+		 */
+		public double scoreTagging(TaggedSentence taggedSentence) {
+			return scoreTagging(taggedSentence.getWords(), taggedSentence
+					.getTags());
+		}
 
-		public static State getStartState() {
-			return buildState(START_TAG, START_TAG, 0);
+		/**
+		 * Scores a tagging for a sentence from the memoized local scores: if
+		 * the sentence is the one the calling thread last tagged, the scores
+		 * its decoder computed are reused.
+		 */
+		public double scoreTagging(List<String> sentence, List<String> tags) {
+			if (buffers.get().sentence != sentence)
+				startSentence(sentence);
+			List<String> boundedTags = new BoundedList<String>(tags,
+					START_TAG, STOP_TAG);
+			int numTags = tagIndexer.size();
+			double logScore = 0.0;
+			for (int position = 0; position <= sentence.size() + 1; position++) {
+				int previousPreviousTag = tagIndexer.indexOf(boundedTags
+						.get(position - 2));
+				int previousTag = tagIndexer.indexOf(boundedTags
+						.get(position - 1));
+				int tag = tagIndexer.indexOf(boundedTags.get(position));
+				if (previousPreviousTag < 0 || previousTag < 0 || tag < 0)
+					return Double.NEGATIVE_INFINITY;
+				logScore += getLocalScores(sentence, position, States
+						.buildState(previousPreviousTag, previousTag, numTags))[tag];
+			}
+			return logScore;
 		}
 
-		public static State getStopState(int position) {
-			return buildState(STOP_TAG, STOP_TAG, position);
+		public POSTagger(LocalTrigramScorer localTrigramScorer,
+				TrellisDecoder trellisDecoder) {
+			this.localTrigramScorer = localTrigramScorer;
+			this.trellisDecoder = trellisDecoder;
 		}
+	}
+
+	/**
+	 * A LocalTrigramContext is a position in a sentence, along with the
+	 * previous two tags -- basically a FeatureVector.
+	 */
+	static class LocalTrigramContext {
+		List<String> words;
+		int position;
+		String previousTag;
+		String previousPreviousTag;
 
-		public static State buildState(String previousPreviousTag,
-				String previousTag, int position) {
-			tempState.setState(previousPreviousTag, previousTag, position);
-			return stateInterner.intern(tempState);
+		public List<String> getWords() {
+			return words;
 		}
 
-		public static List<String> toTagList(List<State> states) {
-			List<String> tags = new ArrayList<String>();
-			if (states.size() > 0) {
-				tags.add(states.get(0).getPreviousPreviousTag());
-				for (State state : states) {
-					tags.add(state.getPreviousTag());
-				}
-			}
-			return tags;
+		public String getCurrentWord() {
+			return words.get(position);
 		}
 
 		public int getPosition() {
@@ -137,492 +1376,1567 @@ public class POSTaggerTester {
 			return previousPreviousTag;
 		}
 
-		public State getNextState(String tag) {
-			return State.buildState(getPreviousTag(), tag, getPosition() + 1);
+		public String toString() {
+			return "[" + getPreviousPreviousTag() + ", " + getPreviousTag()
+					+ ", " + getCurrentWord() + "]";
 		}
 
-		public State getPreviousState(String tag) {
-			return State.buildState(tag, getPreviousPreviousTag(),
-					getPosition() - 1);
+		public LocalTrigramContext(List<String> words, int position,
+				String previousPreviousTag, String previousTag) {
+			this.words = words;
+			this.position = position;
+			this.previousTag = previousTag;
+			this.previousPreviousTag = previousPreviousTag;
 		}
+	}
 
-		public boolean equals(Object o) {
-			if (this == o)
-				return true;
-			if (!(o instanceof State))
-				return false;
+	/**
+	 * A LabeledLocalTrigramContext is a context plus the correct tag for that
+	 * position -- basically a LabeledFeatureVector
+	 */
+	static class LabeledLocalTrigramContext extends LocalTrigramContext {
+		String currentTag;
 
-			final State state = (State) o;
+		public String getCurrentTag() {
+			return currentTag;
+		}
 
-			if (position != state.position)
-				return false;
-			if (previousPreviousTag != null ? !previousPreviousTag
-					.equals(state.previousPreviousTag)
-					: state.previousPreviousTag != null)
-				return false;
-			if (previousTag != null ? !previousTag.equals(state.previousTag)
-					: state.previousTag != null)
-				return false;
+		public String toString() {
+			return "[" + getPreviousPreviousTag() + ", " + getPreviousTag()
+					+ ", " + getCurrentWord() + "_" + getCurrentTag() + "]";
+		}
+
+		public LabeledLocalTrigramContext(List<String> words, int position,
+				String previousPreviousTag, String previousTag,
+				String currentTag) {
+			super(words, position, previousPreviousTag, previousTag);
+			this.currentTag = currentTag;
+		}
+	}
 
+	static class LabeledLocalTrigramContextIterator implements
+			Iterator<LabeledLocalTrigramContext> {
+		Iterator<TaggedSentence> taggedSentences;
+		List<String> words;
+		List<String> tags;
+		int position;
+		int numPositions;
+
+		public boolean hasNext() {
+			while (position == numPositions) {
+				if (!taggedSentences.hasNext())
+					return false;
+				TaggedSentence taggedSentence = taggedSentences.next();
+				words = new BoundedList<String>(taggedSentence.getWords(),
+						START_WORD, STOP_WORD);
+				tags = new BoundedList<String>(taggedSentence.getTags(),
+						START_TAG, STOP_TAG);
+				position = 0;
+				numPositions = taggedSentence.size() + 2;
+			}
 			return true;
 		}
 
-		public int hashCode() {
-			int result;
-			result = position;
-			result = 29 * result
-					+ (previousTag != null ? previousTag.hashCode() : 0);
-			result = 29
-					* result
-					+ (previousPreviousTag != null ? previousPreviousTag
-							.hashCode() : 0);
-			return result;
+		public LabeledLocalTrigramContext next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			LabeledLocalTrigramContext labeledLocalTrigramContext = new LabeledLocalTrigramContext(
+					words, position, tags.get(position - 2), tags
+							.get(position - 1), tags.get(position));
+			position++;
+			return labeledLocalTrigramContext;
 		}
 
-		public String toString() {
-			return "[" + getPreviousPreviousTag() + ", " + getPreviousTag()
-					+ ", " + getPosition() + "]";
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
 
-		int position;
-		String previousTag;
-		String previousPreviousTag;
+		public LabeledLocalTrigramContextIterator(
+				Iterator<TaggedSentence> taggedSentences) {
+			this.taggedSentences = taggedSentences;
+		}
+	}
 
-		private void setState(String previousPreviousTag, String previousTag,
-				int position) {
-			this.previousPreviousTag = previousPreviousTag;
-			this.previousTag = previousTag;
-			this.position = position;
+	/**
+	 * The labeled local contexts of a corpus in columns of ints, five per
+	 * token: the word and tag ids over the tagger's indexes, and the position
+	 * of the context in its sentence. A sentence's contexts are consecutive,
+	 * so its other words can be found by offset. This is the form to train
+	 * on for scorers which pass over the data many times.
+	 */
+	static class LocalTrigramContextColumns {
+		Indexer<String> wordIndexer;
+		Indexer<String> tagIndexer;
+		int size;
+		int[] words;
+		int[] positions;
+		int[] previousPreviousTags;
+		int[] previousTags;
+		int[] tags;
+
+		public int size() {
+			return size;
+		}
+
+		public Indexer<String> getWordIndexer() {
+			return wordIndexer;
+		}
+
+		public Indexer<String> getTagIndexer() {
+			return tagIndexer;
+		}
+
+		public int getWord(int context) {
+			return words[context];
+		}
+
+		/**
+		 * The word offset positions away from the context's word, which is the
+		 * start or stop word outside the sentence.
+		 */
+		public int getWord(int context, int offset) {
+			int other = context + offset;
+			if (other >= 0 && other < size
+					&& positions[other] == positions[context] + offset)
+				return words[other];
+			return wordIndexer.indexOf(offset < 0 ? START_WORD : STOP_WORD);
+		}
+
+		public int getPosition(int context) {
+			return positions[context];
+		}
+
+		public int getPreviousPreviousTag(int context) {
+			return previousPreviousTags[context];
+		}
+
+		public int getPreviousTag(int context) {
+			return previousTags[context];
+		}
+
+		public int getTag(int context) {
+			return tags[context];
+		}
+
+		/**
+		 * Lays out the contexts, adding any words and tags the indexers lack;
+		 * the contexts must come a sentence at a time, in order.
+		 */
+		public LocalTrigramContextColumns(
+				Iterable<LabeledLocalTrigramContext> labeledLocalTrigramContexts,
+				Indexer<String> wordIndexer, Indexer<String> tagIndexer) {
+			this.wordIndexer = wordIndexer;
+			this.tagIndexer = tagIndexer;
+			for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
+				size++;
+			}
+			words = new int[size];
+			positions = new int[size];
+			previousPreviousTags = new int[size];
+			previousTags = new int[size];
+			tags = new int[size];
+			int context = 0;
+			for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
+				words[context] = wordIndexer
+						.addAndGetIndex(labeledLocalTrigramContext
+								.getCurrentWord());
+				positions[context] = labeledLocalTrigramContext.getPosition();
+				previousPreviousTags[context] = tagIndexer
+						.addAndGetIndex(labeledLocalTrigramContext
+								.getPreviousPreviousTag());
+				previousTags[context] = tagIndexer
+						.addAndGetIndex(labeledLocalTrigramContext
+								.getPreviousTag());
+				tags[context] = tagIndexer
+						.addAndGetIndex(labeledLocalTrigramContext
+								.getCurrentTag());
+				context++;
+			}
+		}
+
+		/**
+		 * The indexers must contain every word and tag of the sentences.
+		 */
+		public LocalTrigramContextColumns(List<TaggedSentence> taggedSentences,
+				Indexer<String> wordIndexer, Indexer<String> tagIndexer) {
+			this.wordIndexer = wordIndexer;
+			this.tagIndexer = tagIndexer;
+			for (TaggedSentence taggedSentence : taggedSentences) {
+				size += taggedSentence.size() + 2;
+			}
+			words = new int[size];
+			positions = new int[size];
+			previousPreviousTags = new int[size];
+			previousTags = new int[size];
+			tags = new int[size];
+			int context = 0;
+			int startTag = tagIndexer.indexOf(START_TAG);
+			for (TaggedSentence taggedSentence : taggedSentences) {
+				List<String> sentenceWords = taggedSentence.getWords();
+				List<String> sentenceTags = taggedSentence.getTags();
+				int previousPreviousTag = startTag;
+				int previousTag = startTag;
+				for (int position = 0; position < taggedSentence.size() + 2; position++) {
+					int tag = tagIndexer.indexOf(sentenceTags.get(position));
+					words[context] = wordIndexer.indexOf(sentenceWords
+							.get(position));
+					positions[context] = position;
+					previousPreviousTags[context] = previousPreviousTag;
+					previousTags[context] = previousTag;
+					tags[context] = tag;
+					previousPreviousTag = previousTag;
+					previousTag = tag;
+					context++;
+				}
+			}
+		}
+
+		/**
+		 * Lays out a corpus from its ids, translated once per word and tag
+		 * type; the indexers must contain every word and tag of the corpus,
+		 * and its boundary symbols must be the tagger's.
+		 */
+		public LocalTrigramContextColumns(TaggedCorpus corpus,
+				Indexer<String> wordIndexer, Indexer<String> tagIndexer) {
+			this.wordIndexer = wordIndexer;
+			this.tagIndexer = tagIndexer;
+			int[] wordIds = getIds(corpus.getWordIndexer(), wordIndexer);
+			int[] tagIds = getIds(corpus.getTagIndexer(), tagIndexer);
+			size = corpus.getNumTokens() + 2 * corpus.size();
+			words = new int[size];
+			positions = new int[size];
+			previousPreviousTags = new int[size];
+			previousTags = new int[size];
+			tags = new int[size];
+			int context = 0;
+			for (int sentence = 0; sentence < corpus.size(); sentence++) {
+				int numPositions = corpus.getSentenceLength(sentence) + 2;
+				for (int position = 0; position < numPositions; position++) {
+					words[context] = wordIds[corpus.getWord(sentence, position)];
+					positions[context] = position;
+					previousPreviousTags[context] = tagIds[corpus.getTag(
+							sentence, position - 2)];
+					previousTags[context] = tagIds[corpus.getTag(sentence,
+							position - 1)];
+					tags[context] = tagIds[corpus.getTag(sentence, position)];
+					context++;
+				}
+			}
 		}
 
-		private State() {
+		private static int[] getIds(Indexer<String> fromIndexer,
+				Indexer<String> toIndexer) {
+			int[] ids = new int[fromIndexer.size()];
+			for (int id = 0; id < ids.length; id++) {
+				ids[id] = toIndexer.indexOf(fromIndexer.get(id));
+			}
+			return ids;
+		}
+	}
+
+	/**
+	 * LocalTrigramScorers assign scores to tags occuring in specific
+	 * LocalTrigramContexts. Once trained, a scorer may be asked for scores
+	 * from many threads at once.
+	 */
+	static interface LocalTrigramScorer {
+		/**
+		 * The Counter returned should contain log probabilities, meaning if all
+		 * values are exponentiated and summed, they should sum to one. For
+		 * efficiency, the Counter can contain only the tags which occur in the
+		 * given context with non-zero model probability.
+		 */
+		Counter<String> getLogScoreCounter(
+				LocalTrigramContext localTrigramContext);
+
+		/**
+		 * The contexts may be iterated over any number of times, but are made
+		 * afresh on each pass, so scorers needing several should consider
+		 * ColumnarLocalTrigramScorer instead.
+		 */
+		void train(Iterable<LabeledLocalTrigramContext> localTrigramContexts);
+
+		void validate(Iterable<LabeledLocalTrigramContext> localTrigramContexts);
+	}
+
+	/**
+	 * LocalTrigramScorers which the tagger trains on the columnar form of the
+	 * training contexts (over its word and tag indexes) rather than on
+	 * LabeledLocalTrigramContexts.
+	 */
+	static interface ColumnarLocalTrigramScorer extends LocalTrigramScorer {
+		void train(LocalTrigramContextColumns localTrigramContexts);
+	}
+
+	/**
+	 * DenseLocalTrigramScorers can write the log scores of every tag straight
+	 * into an array over the tagger's tag index (Double.NEGATIVE_INFINITY for
+	 * tags not allowed), without building a Counter. The tagger hands its tag
+	 * index over before training.
+	 */
+	static interface DenseLocalTrigramScorer extends LocalTrigramScorer {
+		void setTagIndexer(Indexer<String> tagIndexer);
+
+		void getLogScores(List<String> words, int position,
+				int previousPreviousTag, int previousTag, double[] logScores);
+	}
+
+	/**
+	 * Marks LocalTrigramScorers whose scores depend only on the current word
+	 * and the previous two tags, not on the rest of the sentence, so that the
+	 * tagger may reuse them wherever the word recurs.
+	 */
+	static interface WordLocalTrigramScorer extends LocalTrigramScorer {
+	}
+
+	/**
+	 * The MostFrequentTagScorer gives each test word the tag it was seen with
+	 * most often in training (or, if the test word is unseen in training, the
+	 * tag its suffix suggests, by a SuffixTagModel of the rare training
+	 * words). This scorer actually does a little more
+	 * than its name claims -- if constructed with restrictTrigrams = true, it
+	 * will forbid illegal tag trigrams, otherwise it makes no use of tag
+	 * history information whatsoever.
+	 */
+	static class MostFrequentTagScorer implements DenseLocalTrigramScorer,
+			WordLocalTrigramScorer {
+		static final int MAX_SUFFIX_LENGTH = 5;
+		static final int RARE_WORD_COUNT = 10;
+
+		boolean restrictTrigrams; // if true, assign log score of
+									// Double.NEGATIVE_INFINITY to illegal tag
+									// trigrams.
+
+		Indexer<String> tagIndexer;
+		Indexer<String> wordIndexer = new Indexer<String>();
+		// each word's tags, in tag index order, with their log probabilities
+		int[][] wordTags;
+		double[][] wordTagLogScores;
+		SuffixTagModel unknownWordModel = new SuffixTagModel(
+				MAX_SUFFIX_LENGTH, RARE_WORD_COUNT);
+		// the tags of unknown words, in tag index order, and their indexes in
+		// the unknown word model
+		int[] unknownWordTags;
+		int[] unknownWordModelTags;
+		// bitsets over the tag index, maskLength longs each: the tags seen
+		// after each (previous previous tag, previous tag) state, and the tags
+		// of each word (the unknown word last)
+		int maskLength;
+		long[] seenTagTrigramMasks;
+		long[] wordTagMasks;
+
+		public int getHistorySize() {
+			return 2;
+		}
+
+		public void setTagIndexer(Indexer<String> tagIndexer) {
+			this.tagIndexer = tagIndexer;
+		}
+
+		public Counter<String> getLogScoreCounter(
+				LocalTrigramContext localTrigramContext) {
+			double[] logScores = new double[tagIndexer.size()];
+			getLogScores(localTrigramContext.getCurrentWord(), tagIndexer
+					.indexOf(localTrigramContext
+					.getPreviousPreviousTag()), tagIndexer
+					.indexOf(localTrigramContext.getPreviousTag()), logScores);
+			Counter<String> logScoreCounter = new Counter<String>();
+			for (int tag = 0; tag < logScores.length; tag++) {
+				if (logScores[tag] != Double.NEGATIVE_INFINITY)
+					logScoreCounter.setCount(tagIndexer.get(tag), logScores[tag]);
+			}
+			return logScoreCounter;
+		}
+
+		public void getLogScores(List<String> words, int position,
+				int previousPreviousTag, int previousTag, double[] logScores) {
+			getLogScores(words.get(position), previousPreviousTag,
+					previousTag, logScores);
+		}
+
+		/**
+		 * Fills in the log scores of the word's tags, keeping only those seen
+		 * after the previous two tags if trigrams are restricted and any of
+		 * them were. A negative previous tag is one never seen in training.
+		 */
+		private void getLogScores(String wordString, int previousPreviousTag,
+				int previousTag, double[] logScores) {
+			Arrays.fill(logScores, Double.NEGATIVE_INFINITY);
+			int word = wordIndexer.indexOf(wordString);
+			int[] tags = (word >= 0 ? wordTags[word] : unknownWordTags);
+			double[] tagLogScores = (word >= 0 ? wordTagLogScores[word] : null);
+			double[] unknownWordTagProbabilities = unknownWordModel
+					.getTagProbabilities();
+			int unknownWordTagOffset = (word >= 0 ? 0 : unknownWordModel
+					.getTagOffset(wordString));
+			int trigramMask = -1;
+			if (restrictTrigrams && previousPreviousTag >= 0 && previousTag >= 0) {
+				trigramMask = (previousPreviousTag * tagIndexer.size() + previousTag)
+						* maskLength;
+				int wordMask = (word >= 0 ? word : wordTags.length) * maskLength;
+				boolean anySeen = false;
+				for (int i = 0; i < maskLength && !anySeen; i++) {
+					anySeen = (seenTagTrigramMasks[trigramMask + i] & wordTagMasks[wordMask
+							+ i]) != 0;
+				}
+				if (!anySeen)
+					trigramMask = -1;
+			}
+			for (int i = 0; i < tags.length; i++) {
+				int tag = tags[i];
+				if (trigramMask < 0
+						|| (seenTagTrigramMasks[trigramMask + (tag >>> 6)] & (1L << tag)) != 0)
+					logScores[tag] = (word >= 0 ? tagLogScores[i] : Math
+							.log(unknownWordTagProbabilities[unknownWordTagOffset
+									+ unknownWordModelTags[i]]));
+			}
+		}
+
+		public void train(
+				Iterable<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+			if (tagIndexer == null) {
+				tagIndexer = new Indexer<String>();
+				tagIndexer.add(START_TAG);
+				tagIndexer.add(STOP_TAG);
+				for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
+					tagIndexer.add(labeledLocalTrigramContext.getCurrentTag());
+				}
+			}
+			int numTags = tagIndexer.size();
+			maskLength = (numTags + 63) >>> 6;
+			seenTagTrigramMasks = new long[numTags * numTags * maskLength];
+			// collect word-tag counts
+			CounterMap<String, String> wordsToTags = new CounterMap<String, String>();
+			for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
+				String word = labeledLocalTrigramContext.getCurrentWord();
+				String tag = labeledLocalTrigramContext.getCurrentTag();
+				wordsToTags.incrementCount(word, tag, 1.0);
+				unknownWordModel.addTagging(word, tag);
+				int state = tagIndexer.indexOf(labeledLocalTrigramContext
+						.getPreviousPreviousTag())
+						* numTags
+						+ tagIndexer.indexOf(labeledLocalTrigramContext
+								.getPreviousTag());
+				int tagIndex = tagIndexer.indexOf(tag);
+				seenTagTrigramMasks[state * maskLength + (tagIndex >>> 6)] |= 1L << tagIndex;
+			}
+			wordsToTags = Counters.conditionalNormalize(wordsToTags);
+			unknownWordModel.build();
+
+			wordIndexer.addAll(wordsToTags.keySet());
+			wordTags = new int[wordIndexer.size()][];
+			wordTagLogScores = new double[wordIndexer.size()][];
+			wordTagMasks = new long[(wordIndexer.size() + 1) * maskLength];
+			for (int word = 0; word < wordIndexer.size(); word++) {
+				Counter<String> tagCounter = wordsToTags.getCounter(wordIndexer
+						.get(word));
+				wordTags[word] = compileTags(tagCounter, word);
+				wordTagLogScores[word] = compileLogScores(tagCounter,
+						wordTags[word]);
+			}
+			Indexer<String> unknownWordModelTagIndexer = unknownWordModel
+					.getTagIndexer();
+			unknownWordTags = compileTags(new Counter<String>(
+					unknownWordModelTagIndexer), wordTags.length);
+			unknownWordModelTags = new int[unknownWordTags.length];
+			for (int i = 0; i < unknownWordTags.length; i++) {
+				unknownWordModelTags[i] = unknownWordModelTagIndexer
+						.indexOf(tagIndexer.get(unknownWordTags[i]));
+			}
+		}
+
+		// the counter's tags in index order, also set in the word's tag mask
+		private int[] compileTags(Counter<String> tagCounter, int word) {
+			int[] tags = new int[tagCounter.size()];
+			int numWordTags = 0;
+			for (String tag : tagCounter.keySet()) {
+				tags[numWordTags++] = tagIndexer.indexOf(tag);
+			}
+			Arrays.sort(tags);
+			for (int tag : tags) {
+				wordTagMasks[word * maskLength + (tag >>> 6)] |= 1L << tag;
+			}
+			return tags;
+		}
+
+		private double[] compileLogScores(Counter<String> tagCounter, int[] tags) {
+			double[] logScores = new double[tags.length];
+			for (int i = 0; i < tags.length; i++) {
+				logScores[i] = Math.log(tagCounter.getCount(tagIndexer
+						.get(tags[i])));
+			}
+			return logScores;
+		}
+
+		public void validate(
+				Iterable<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+			// no tuning for this dummy model!
 		}
 
-		private State(State state) {
-			setState(state.getPreviousPreviousTag(), state.getPreviousTag(),
-					state.getPosition());
+		public MostFrequentTagScorer(boolean restrictTrigrams) {
+			this.restrictTrigrams = restrictTrigrams;
 		}
 	}
 
 	/**
-	 * A Trellis is a graph with a start state an an end state, along with
-	 * successor and predecessor functions.
+	 * Extracts the features of a local context, hashed straight from the
+	 * characters (or tag ids) into one of 2^hashBits buckets, so that there
+	 * are no feature strings or feature index: the word itself, lower-cased,
+	 * its prefixes and suffixes, its shape (runs of upper-case, lower-case and
+	 * digit characters collapsed to X, x and d), whether it has a digit, a
+	 * hyphen or a capital, the words either side, and the previous tag and tag
+	 * bigram. For training, the features of each word type can be computed
+	 * once, and then looked up by word id.
 	 */
-	static class Trellis<S> {
-		S startState;
-		S endState;
-		CounterMap<S, S> forwardTransitions;
-		CounterMap<S, S> backwardTransitions;
+	static class HashedTagFeatures {
+		static final int BIAS = 1;
+		static final int WORD = 2;
+		static final int LOWER_CASE_WORD = 3;
+		static final int SHAPE = 4;
+		static final int HAS_DIGIT = 5;
+		static final int HAS_HYPHEN = 6;
+		static final int CAPITALIZED = 7;
+		static final int PREVIOUS_WORD = 8;
+		static final int NEXT_WORD = 9;
+		static final int PREVIOUS_TAG = 10;
+		static final int TAG_BIGRAM = 11;
+		static final int PREFIX = 16; // + length
+		static final int SUFFIX = 32; // + length
+		static final int MAX_PREFIX_LENGTH = 3;
+		static final int MAX_SUFFIX_LENGTH = 4;
+		static final int MAX_FEATURES = 32;
+
+		int hashMask;
+		// the features of each word type, for extraction by word id
+		int[][] wordFeatures;
+		int[] previousWordFeatures;
+		int[] nextWordFeatures;
 
 		/**
-		 * Get the unique start state for this trellis.
+		 * A thread's features for the position it is scoring: those of the
+		 * words, extracted once for all states of the position, followed by
+		 * room for the tag features; and scratch scores over the tags, which
+		 * the scorer may keep for the position.
 		 */
-		public S getStartState() {
-			return startState;
+		static class PositionFeatures {
+			List<String> words;
+			int position = -1;
+			boolean newPosition;
+			int[] features = new int[MAX_FEATURES];
+			int numWordFeatures;
+			double[] scores = new double[0];
+		}
+
+		ThreadLocal<PositionFeatures> positionFeatures = new ThreadLocal<PositionFeatures>() {
+			protected PositionFeatures initialValue() {
+				return new PositionFeatures();
+			}
+		};
+
+		public int getNumBuckets() {
+			return hashMask + 1;
+		}
+
+		/**
+		 * The calling thread's features for the position, with the word
+		 * features extracted unless they already were for it (in which case
+		 * newPosition is false), and scores over at least numTags tags.
+		 */
+		public PositionFeatures getPositionFeatures(List<String> words,
+				int position, int numTags) {
+			PositionFeatures positionFeatures = this.positionFeatures.get();
+			if (positionFeatures.scores.length < numTags)
+				positionFeatures.scores = new double[numTags];
+			positionFeatures.newPosition = (positionFeatures.words != words
+					|| positionFeatures.position != position);
+			if (positionFeatures.newPosition) {
+				positionFeatures.numWordFeatures = extractWordFeatures(words,
+						position, positionFeatures.features);
+				positionFeatures.words = words;
+				positionFeatures.position = position;
+			}
+			return positionFeatures;
+		}
+
+		/**
+		 * Writes the features of the word at the position and of its
+		 * neighbours, and returns how many there are.
+		 */
+		public int extractWordFeatures(List<String> words, int position,
+				int[] features) {
+			int numFeatures = extractWordFeatures(words.get(position),
+					features, 0);
+			features[numFeatures++] = hash(PREVIOUS_WORD, words
+					.get(position - 1));
+			features[numFeatures++] = hash(NEXT_WORD, words.get(position + 1));
+			return numFeatures;
 		}
 
-		public void setStartState(S startState) {
-			this.startState = startState;
+		/**
+		 * As extractWordFeatures(words, position, features), for the word
+		 * ids of a context, once precompute() has seen the word index.
+		 */
+		public int extractWordFeatures(LocalTrigramContextColumns contexts,
+				int context, int[] features) {
+			int[] currentWordFeatures = wordFeatures[contexts.getWord(context)];
+			int numFeatures = currentWordFeatures.length;
+			System.arraycopy(currentWordFeatures, 0, features, 0, numFeatures);
+			features[numFeatures++] = previousWordFeatures[contexts.getWord(
+					context, -1)];
+			features[numFeatures++] = nextWordFeatures[contexts.getWord(
+					context, 1)];
+			return numFeatures;
 		}
 
 		/**
-		 * Get the unique end state for this trellis.
+		 * Computes the features of every word of the index.
 		 */
-		public S getEndState() {
-			return endState;
+		public void precompute(Indexer<String> wordIndexer) {
+			int numWords = wordIndexer.size();
+			wordFeatures = new int[numWords][];
+			previousWordFeatures = new int[numWords];
+			nextWordFeatures = new int[numWords];
+			int[] features = new int[MAX_FEATURES];
+			for (int word = 0; word < numWords; word++) {
+				String wordString = wordIndexer.get(word);
+				wordFeatures[word] = Arrays.copyOf(features,
+						extractWordFeatures(wordString, features, 0));
+				previousWordFeatures[word] = hash(PREVIOUS_WORD, wordString);
+				nextWordFeatures[word] = hash(NEXT_WORD, wordString);
+			}
 		}
 
-		public void setStopState(S endState) {
-			this.endState = endState;
+		/**
+		 * Writes the features of the word on its own from the offset on, and
+		 * returns the offset after them.
+		 */
+		int extractWordFeatures(String word, int[] features, int offset) {
+			features[offset++] = hash(BIAS, "");
+			features[offset++] = hash(WORD, word);
+			int lowerCaseHash = seed(LOWER_CASE_WORD);
+			for (int i = 0; i < word.length(); i++) {
+				lowerCaseHash = step(lowerCaseHash, Character.toLowerCase(word
+						.charAt(i)));
+			}
+			features[offset++] = finish(lowerCaseHash);
+			for (int length = 1; length <= MAX_PREFIX_LENGTH
+					&& length < word.length(); length++) {
+				features[offset++] = hash(PREFIX + length, word, 0, length);
+			}
+			for (int length = 1; length <= MAX_SUFFIX_LENGTH
+					&& length < word.length(); length++) {
+				features[offset++] = hash(SUFFIX + length, word, word.length()
+						- length, word.length());
+			}
+			int shapeHash = seed(SHAPE);
+			char previousClass = 0;
+			boolean hasDigit = false;
+			boolean hasHyphen = false;
+			for (int i = 0; i < word.length(); i++) {
+				char c = word.charAt(i);
+				char characterClass = (Character.isUpperCase(c) ? 'X'
+						: Character.isLowerCase(c) ? 'x'
+								: Character.isDigit(c) ? 'd' : c);
+				if (characterClass != previousClass)
+					shapeHash = step(shapeHash, characterClass);
+				previousClass = characterClass;
+				hasDigit |= Character.isDigit(c);
+				hasHyphen |= (c == '-');
+			}
+			features[offset++] = finish(shapeHash);
+			if (hasDigit)
+				features[offset++] = hash(HAS_DIGIT, "");
+			if (hasHyphen)
+				features[offset++] = hash(HAS_HYPHEN, "");
+			if (word.length() > 0 && Character.isUpperCase(word.charAt(0)))
+				features[offset++] = hash(CAPITALIZED, "");
+			return offset;
 		}
 
 		/**
-		 * For a given state, returns a counter over what states can be next in
-		 * the markov process, along with the cost of that transition. Caution:
-		 * a state not in the counter is illegal, and should be considered to
-		 * have cost Double.NEGATIVE_INFINITY, but Counters score items they
-		 * don't contain as 0.
+		 * Writes the tag history features from the offset on, and returns the
+		 * offset after them.
 		 */
-		public Counter<S> getForwardTransitions(S state) {
-			return forwardTransitions.getCounter(state);
+		public int extractTagFeatures(int previousPreviousTag,
+				int previousTag, int[] features, int offset) {
+			features[offset++] = finish(step(seed(PREVIOUS_TAG), previousTag));
+			features[offset++] = finish(step(step(seed(TAG_BIGRAM),
+					previousPreviousTag), previousTag));
+			return offset;
+		}
+
+		private int hash(int template, String string) {
+			return hash(template, string, 0, string.length());
+		}
+
+		private int hash(int template, String string, int begin, int end) {
+			int h = seed(template);
+			for (int i = begin; i < end; i++) {
+				h = step(h, string.charAt(i));
+			}
+			return finish(h);
+		}
+
+		// FNV-1a over the template and characters, then a final mix
+		private static int seed(int template) {
+			return step(0x811C9DC5, template);
+		}
+
+		private static int step(int h, int value) {
+			return (h ^ value) * 0x01000193;
+		}
+
+		private int finish(int h) {
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			return h & hashMask;
+		}
 
+		public HashedTagFeatures(int hashBits) {
+			this.hashMask = (1 << hashBits) - 1;
 		}
+	}
+
+	/**
+	 * The tags each training word may take: those seen with it if it occurred
+	 * more than rareWordCount times, and otherwise (as for unknown words) the
+	 * tags of first occurrences of words, as arrays of tag ids in order.
+	 */
+	static class TagDictionary {
+		int[][] allowedTags;
+		int[] unknownWordTags;
 
 		/**
-		 * For a given state, returns a counter over what states can precede it
-		 * in the markov process, along with the cost of that transition.
+		 * The allowed tags of a word id, or of unknown words for a negative
+		 * one.
 		 */
-		public Counter<S> getBackwardTransitions(S state) {
-			return backwardTransitions.getCounter(state);
+		public int[] getAllowedTags(int word) {
+			return (word >= 0 && word < allowedTags.length ? allowedTags[word]
+					: unknownWordTags);
 		}
 
-		public void setTransitionCount(S start, S end, double count) {
-			forwardTransitions.setCount(start, end, count);
-			backwardTransitions.setCount(end, start, count);
+		private static int[] toTagArray(boolean[] tagFlags, int offset,
+				int numTags) {
+			int numAllowed = 0;
+			for (int tag = 0; tag < numTags; tag++) {
+				if (tagFlags[offset + tag])
+					numAllowed++;
+			}
+			int[] tags = new int[numAllowed];
+			numAllowed = 0;
+			for (int tag = 0; tag < numTags; tag++) {
+				if (tagFlags[offset + tag])
+					tags[numAllowed++] = tag;
+			}
+			return tags;
 		}
 
-		public Trellis() {
-			forwardTransitions = new CounterMap<S, S>();
-			backwardTransitions = new CounterMap<S, S>();
+		public TagDictionary(LocalTrigramContextColumns contexts,
+				int rareWordCount) {
+			int numWords = contexts.getWordIndexer().size();
+			int numTags = contexts.getTagIndexer().size();
+			int[] wordCounts = new int[numWords];
+			boolean[] wordTags = new boolean[numWords * numTags];
+			boolean[] firstOccurrenceTags = new boolean[numTags];
+			for (int context = 0; context < contexts.size(); context++) {
+				int word = contexts.getWord(context);
+				int tag = contexts.getTag(context);
+				if (wordCounts[word]++ == 0)
+					firstOccurrenceTags[tag] = true;
+				wordTags[word * numTags + tag] = true;
+			}
+			unknownWordTags = toTagArray(firstOccurrenceTags, 0, numTags);
+			allowedTags = new int[numWords][];
+			for (int word = 0; word < numWords; word++) {
+				allowedTags[word] = (wordCounts[word] > rareWordCount ? toTagArray(
+						wordTags, word * numTags, numTags)
+						: unknownWordTags);
+			}
 		}
 	}
 
 	/**
-	 * A TrellisDecoder takes a Trellis and returns a path through that trellis
-	 * in which the first item is trellis.getStartState(), the last is
-	 * trellis.getEndState(), and each pair of states is conntected in the
-	 * trellis.
+	 * A base for DenseLocalTrigramScorers which train on columns: it keeps
+	 * the tagger's tag index and the training word index, answers
+	 * getLogScoreCounter() from getLogScores(), and lays streamed training
+	 * contexts out in columns, so that subclasses need only implement
+	 * getLogScores() and estimate().
 	 */
-	static interface TrellisDecoder<S> {
-		List<S> getBestPath(Trellis<S> trellis);
-	}
-
-	static class GreedyDecoder<S> implements TrellisDecoder<S> {
-		public List<S> getBestPath(Trellis<S> trellis) {
-			List<S> states = new ArrayList<S>();
-			S currentState = trellis.getStartState();
-			states.add(currentState);
-			while (!currentState.equals(trellis.getEndState())) {
-				Counter<S> transitions = trellis
-						.getForwardTransitions(currentState);
-				S nextState = transitions.argMax();
-				states.add(nextState);
-				currentState = nextState;
-			}
-			return states;
-		}
-	}
-
-	static class POSTagger {
+	static abstract class ColumnarDenseLocalTrigramScorer implements
+			DenseLocalTrigramScorer, ColumnarLocalTrigramScorer {
+		Indexer<String> tagIndexer;
+		Indexer<String> wordIndexer;
+		int numTags;
 
-		LocalTrigramScorer localTrigramScorer;
-		TrellisDecoder<State> trellisDecoder;
+		public int getHistorySize() {
+			return 2;
+		}
 
-		// chop up the training instances into local contexts and pass them on
-		// to the local scorer.
-		public void train(List<TaggedSentence> taggedSentences) {
-			localTrigramScorer
-					.train(extractLabeledLocalTrigramContexts(taggedSentences));
+		public void setTagIndexer(Indexer<String> tagIndexer) {
+			this.tagIndexer = tagIndexer;
 		}
 
-		// chop up the validation instances into local contexts and pass them on
-		// to the local scorer.
-		public void validate(List<TaggedSentence> taggedSentences) {
-			localTrigramScorer
-					.validate(extractLabeledLocalTrigramContexts(taggedSentences));
+		public Counter<String> getLogScoreCounter(
+				LocalTrigramContext localTrigramContext) {
+			double[] logScores = new double[numTags];
+			getLogScores(localTrigramContext.getWords(), localTrigramContext
+					.getPosition(), tagIndexer.indexOf(localTrigramContext
+					.getPreviousPreviousTag()), tagIndexer
+					.indexOf(localTrigramContext.getPreviousTag()), logScores);
+			Counter<String> logScoreCounter = new Counter<String>();
+			for (int tag = 0; tag < numTags; tag++) {
+				if (logScores[tag] != Double.NEGATIVE_INFINITY)
+					logScoreCounter.setCount(tagIndexer.get(tag), logScores[tag]);
+			}
+			return logScoreCounter;
 		}
 
-		private List<LabeledLocalTrigramContext> extractLabeledLocalTrigramContexts(
-				List<TaggedSentence> taggedSentences) {
-			List<LabeledLocalTrigramContext> localTrigramContexts = new ArrayList<LabeledLocalTrigramContext>();
-			for (TaggedSentence taggedSentence : taggedSentences) {
-				localTrigramContexts
-						.addAll(extractLabeledLocalTrigramContexts(taggedSentence));
+		public void train(
+				Iterable<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+			if (tagIndexer == null) {
+				tagIndexer = new Indexer<String>();
+				tagIndexer.add(START_TAG);
+				tagIndexer.add(STOP_TAG);
 			}
-			return localTrigramContexts;
+			train(new LocalTrigramContextColumns(labeledLocalTrigramContexts,
+					new Indexer<String>(), tagIndexer));
 		}
 
-		private List<LabeledLocalTrigramContext> extractLabeledLocalTrigramContexts(
-				TaggedSentence taggedSentence) {
-			List<LabeledLocalTrigramContext> labeledLocalTrigramContexts = new ArrayList<LabeledLocalTrigramContext>();
-			List<String> words = new BoundedList<String>(
-					taggedSentence.getWords(), START_WORD, STOP_WORD);
-			List<String> tags = new BoundedList<String>(
-					taggedSentence.getTags(), START_TAG, STOP_TAG);
-			for (int position = 0; position <= taggedSentence.size() + 1; position++) {
-				labeledLocalTrigramContexts.add(new LabeledLocalTrigramContext(
-						words, position, tags.get(position - 2), tags
-								.get(position - 1), tags.get(position)));
+		public void train(LocalTrigramContextColumns contexts) {
+			tagIndexer = contexts.getTagIndexer();
+			wordIndexer = contexts.getWordIndexer();
+			numTags = tagIndexer.size();
+			estimate(contexts);
+		}
+
+		/**
+		 * Fits the scorer to the training contexts, once the indexes are set.
+		 */
+		abstract void estimate(LocalTrigramContextColumns contexts);
+	}
+
+	/**
+	 * A maximum entropy model of each tag given its local context, over
+	 * HashedTagFeatures. The weights are one flat array, bucket * numTags +
+	 * tag, so the scores of all tags in a context are summed in one pass over
+	 * its features' rows. Tags are restricted by a TagDictionary (words seen
+	 * once count as unknown), both in training and in scoring, and the model
+	 * is normalized over the allowed tags. It's trained by L-BFGS on the
+	 * L2-penalized conditional log-likelihood.
+	 */
+	static class HashedMaxEntScorer extends
+			ColumnarDenseLocalTrigramScorer {
+		static final int RARE_WORD_COUNT = 1;
+
+		HashedTagFeatures features;
+		double sigma;
+		int numIterations;
+		double[] weights;
+		TagDictionary tagDictionary;
+
+		public void getLogScores(List<String> words, int position,
+				int previousPreviousTag, int previousTag, double[] logScores) {
+			HashedTagFeatures.PositionFeatures buffers = features
+					.getPositionFeatures(words, position, numTags);
+			int numFeatures = features.extractTagFeatures(previousPreviousTag,
+					previousTag, buffers.features, buffers.numWordFeatures);
+			int[] tags = tagDictionary.getAllowedTags(wordIndexer
+					.indexOf(words.get(position)));
+			Arrays.fill(logScores, Double.NEGATIVE_INFINITY);
+			double logNormalizer = computeScores(weights, buffers.features,
+					numFeatures, tags, buffers.scores);
+			for (int tag : tags) {
+				logScores[tag] = buffers.scores[tag] - logNormalizer;
 			}
-			return labeledLocalTrigramContexts;
 		}
 
 		/**
-		 * Builds a Trellis over a sentence, by starting at the state State, and
-		 * advancing through all legal extensions of each state already in the
-		 * trellis. You should not have to modify this code (or even read it,
-		 * really).
+		 * Sums the weights of the features for every tag into scores, and
+		 * returns the log of the sum of the exponentiated scores of the given
+		 * tags.
 		 */
-		private Trellis<State> buildTrellis(List<String> sentence) {
-			Trellis<State> trellis = new Trellis<State>();
-			trellis.setStartState(State.getStartState());
-			State stopState = State.getStopState(sentence.size() + 2);
-			trellis.setStopState(stopState);
-			Set<State> states = Collections.singleton(State.getStartState());
-			for (int position = 0; position <= sentence.size() + 1; position++) {
-				Set<State> nextStates = new HashSet<State>();
-				for (State state : states) {
-					if (state.equals(stopState))
-						continue;
-					LocalTrigramContext localTrigramContext = new LocalTrigramContext(
-							sentence, position, state.getPreviousPreviousTag(),
-							state.getPreviousTag());
-					Counter<String> tagScores = localTrigramScorer
-							.getLogScoreCounter(localTrigramContext);
-					for (String tag : tagScores.keySet()) {
-						double score = tagScores.getCount(tag);
-						State nextState = state.getNextState(tag);
-						trellis.setTransitionCount(state, nextState, score);
-						nextStates.add(nextState);
-					}
+		private double computeScores(double[] weights, int[] features,
+				int numFeatures, int[] tags, double[] scores) {
+			Arrays.fill(scores, 0, numTags, 0.0);
+			for (int i = 0; i < numFeatures; i++) {
+				int row = features[i] * numTags;
+				for (int tag = 0; tag < numTags; tag++) {
+					scores[tag] += weights[row + tag];
 				}
-				// System.out.println("States: "+nextStates);
-				states = nextStates;
 			}
-			return trellis;
+			double maxScore = Double.NEGATIVE_INFINITY;
+			for (int tag : tags) {
+				maxScore = Math.max(maxScore, scores[tag]);
+			}
+			double sum = 0.0;
+			for (int tag : tags) {
+				sum += Math.exp(scores[tag] - maxScore);
+			}
+			return maxScore + Math.log(sum);
 		}
 
-		// to tag a sentence: build its trellis and find a path through that
-		// trellis
-		public List<String> tag(List<String> sentence) {
-			Trellis<State> trellis = buildTrellis(sentence);
-			List<State> states = trellisDecoder.getBestPath(trellis);
-			List<String> tags = State.toTagList(states);
-			tags = stripBoundaryTags(tags);
-			return tags;
+		void estimate(LocalTrigramContextColumns contexts) {
+			tagDictionary = new TagDictionary(contexts, RARE_WORD_COUNT);
+			features.precompute(wordIndexer);
+			ObjectiveFunction objective = new ObjectiveFunction(contexts);
+			weights = new LBFGSMinimizer(numIterations).minimize(objective,
+					new double[objective.dimension()], 1e-4);
 		}
 
 		/**
-		 * Scores a tagging for a sentence. Note that a tag sequence not
-		 * accepted by the markov process should receive a log score of
-		 * Double.NEGATIVE_INFINITY.
+		 * The negative conditional log-likelihood of the training tags, plus
+		 * the sum of the squared weights over 2 sigma^2.
 		 */
-		public double scoreTagging(TaggedSentence taggedSentence) {
-			double logScore = 0.0;
-			List<LabeledLocalTrigramContext> labeledLocalTrigramContexts = extractLabeledLocalTrigramContexts(taggedSentence);
-			for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
-				Counter<String> logScoreCounter = localTrigramScorer
-						.getLogScoreCounter(labeledLocalTrigramContext);
-				String currentTag = labeledLocalTrigramContext.getCurrentTag();
-				if (logScoreCounter.containsKey(currentTag)) {
-					logScore += logScoreCounter.getCount(currentTag);
-				} else {
-					logScore += Double.NEGATIVE_INFINITY;
+		class ObjectiveFunction implements DifferentiableFunction {
+			LocalTrigramContextColumns contexts;
+
+			double lastValue;
+			double[] lastDerivative;
+			double[] lastX;
+
+			public int dimension() {
+				return features.getNumBuckets() * numTags;
+			}
+
+			public double valueAt(double[] x) {
+				ensureCache(x);
+				return lastValue;
+			}
+
+			public double[] derivativeAt(double[] x) {
+				ensureCache(x);
+				return lastDerivative;
+			}
+
+			private void ensureCache(double[] x) {
+				if (lastX == null || !Arrays.equals(lastX, x)) {
+					lastDerivative = new double[dimension()];
+					lastValue = calculate(x, lastDerivative);
+					lastX = x;
 				}
 			}
-			return logScore;
+
+			private double calculate(double[] x, double[] derivative) {
+				double value = 0.0;
+				int[] contextFeatures = new int[HashedTagFeatures.MAX_FEATURES];
+				double[] scores = new double[numTags];
+				for (int context = 0; context < contexts.size(); context++) {
+					int[] tags = tagDictionary.getAllowedTags(contexts
+							.getWord(context));
+					if (tags.length == 1)
+						continue; // nothing to learn
+					int numFeatures = features.extractWordFeatures(contexts,
+							context, contextFeatures);
+					numFeatures = features.extractTagFeatures(contexts
+							.getPreviousPreviousTag(context), contexts
+							.getPreviousTag(context), contextFeatures,
+							numFeatures);
+					double logNormalizer = computeScores(x, contextFeatures,
+							numFeatures, tags, scores);
+					int goldTag = contexts.getTag(context);
+					value -= scores[goldTag] - logNormalizer;
+					for (int i = 0; i < numFeatures; i++) {
+						int row = contextFeatures[i] * numTags;
+						for (int tag : tags) {
+							derivative[row + tag] += Math.exp(scores[tag]
+									- logNormalizer);
+						}
+						derivative[row + goldTag] -= 1.0;
+					}
+				}
+				double penalty = 0.0;
+				for (int i = 0; i < x.length; i++) {
+					penalty += x[i] * x[i];
+					derivative[i] += x[i] / (sigma * sigma);
+				}
+				return value + penalty / (2 * sigma * sigma);
+			}
+
+			public ObjectiveFunction(LocalTrigramContextColumns contexts) {
+				this.contexts = contexts;
+			}
 		}
 
-		private List<String> stripBoundaryTags(List<String> tags) {
-			return tags.subList(2, tags.size() - 2);
+		public void validate(
+				Iterable<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+			// the penalty is fixed by sigma
 		}
 
-		public POSTagger(LocalTrigramScorer localTrigramScorer,
-				TrellisDecoder<State> trellisDecoder) {
-			this.localTrigramScorer = localTrigramScorer;
-			this.trellisDecoder = trellisDecoder;
+		public HashedMaxEntScorer(int hashBits, double sigma, int numIterations) {
+			this.features = new HashedTagFeatures(hashBits);
+			this.sigma = sigma;
+			this.numIterations = numIterations;
 		}
 	}
 
 	/**
-	 * A LocalTrigramContext is a position in a sentence, along with the
-	 * previous two tags -- basically a FeatureVector.
+	 * A structured perceptron over HashedTagFeatures: each training sentence
+	 * is decoded with the current weights (Viterbi over a trellis restricted
+	 * by a TagDictionary), and on a mistake the features of the gold local
+	 * contexts are rewarded and those of the guessed ones penalized. Training
+	 * uses iterative parameter mixing (McDonald et al., 2010): each epoch, the
+	 * shuffled sentences are split into one shard per thread, each thread
+	 * trains its own copy of the mixed weights on its shard, and the copies
+	 * are averaged into the next epoch's weights. The tagger scores with the
+	 * average of the weights over all training steps, which each thread
+	 * keeps lazily: alongside every update it adds the update times the step
+	 * number to a second array, from which the sum of its weights over the
+	 * epoch follows at the end, so an update only costs its number of
+	 * features. The scores are linear, not log probabilities.
 	 */
-	static class LocalTrigramContext {
-		List<String> words;
-		int position;
-		String previousTag;
-		String previousPreviousTag;
-
-		public List<String> getWords() {
-			return words;
+	static class PerceptronScorer extends
+			ColumnarDenseLocalTrigramScorer {
+		static final int RARE_WORD_COUNT = 1;
+		static final long SHUFFLE_SEED = 0;
+
+		HashedTagFeatures features;
+		int numEpochs;
+		int numThreads;
+		double[] weights;
+		TagDictionary tagDictionary;
+
+		public void getLogScores(List<String> words, int position,
+				int previousPreviousTag, int previousTag, double[] logScores) {
+			HashedTagFeatures.PositionFeatures buffers = features
+					.getPositionFeatures(words, position, numTags);
+			// the word features' scores are shared by all states of the
+			// position
+			if (buffers.newPosition)
+				sumRows(weights, buffers.features, 0, buffers.numWordFeatures,
+						buffers.scores);
+			System.arraycopy(buffers.scores, 0, logScores, 0, numTags);
+			int numFeatures = features.extractTagFeatures(previousPreviousTag,
+					previousTag, buffers.features, buffers.numWordFeatures);
+			addRows(weights, buffers.features, buffers.numWordFeatures,
+					numFeatures, logScores);
+			restrict(tagDictionary.getAllowedTags(wordIndexer.indexOf(words
+					.get(position))), logScores);
+		}
+
+		private void sumRows(double[] weights, int[] features, int begin,
+				int end, double[] scores) {
+			Arrays.fill(scores, 0, numTags, 0.0);
+			addRows(weights, features, begin, end, scores);
+		}
+
+		private void addRows(double[] weights, int[] features, int begin,
+				int end, double[] scores) {
+			for (int i = begin; i < end; i++) {
+				int row = features[i] * numTags;
+				for (int tag = 0; tag < numTags; tag++) {
+					scores[tag] += weights[row + tag];
+				}
+			}
 		}
 
-		public String getCurrentWord() {
-			return words.get(position);
+		// sets the scores of the tags not allowed to negative infinity
+		private void restrict(int[] allowedTags, double[] scores) {
+			int next = 0;
+			for (int tag = 0; tag < numTags; tag++) {
+				if (next < allowedTags.length && allowedTags[next] == tag)
+					next++;
+				else
+					scores[tag] = Double.NEGATIVE_INFINITY;
+			}
 		}
 
-		public int getPosition() {
-			return position;
-		}
+		void estimate(LocalTrigramContextColumns contexts) {
+			tagDictionary = new TagDictionary(contexts, RARE_WORD_COUNT);
+			features.precompute(wordIndexer);
+			List<Integer> sentenceStarts = new ArrayList<Integer>();
+			for (int context = 0; context < contexts.size(); context++) {
+				if (contexts.getPosition(context) == 0)
+					sentenceStarts.add(context);
+			}
+			sentenceStarts.add(contexts.size());
+			List<Integer> sentences = new ArrayList<Integer>();
+			for (int sentence = 0; sentence + 1 < sentenceStarts.size(); sentence++) {
+				sentences.add(sentence);
+			}
 
-		public String getPreviousTag() {
-			return previousTag;
+			int dimension = features.getNumBuckets() * numTags;
+			double[] mixedWeights = new double[dimension];
+			double[] weightSums = new double[dimension];
+			long numSteps = 0;
+			List<Shard> shards = new ArrayList<Shard>();
+			for (int i = 0; i < numThreads; i++) {
+				shards.add(new Shard(contexts, sentenceStarts, mixedWeights));
+			}
+			ExecutorService executor = ThreadPools.newDaemonPool(numThreads,
+					"PerceptronScorer");
+			Random random = new Random(SHUFFLE_SEED);
+			try {
+				for (int epoch = 0; epoch < numEpochs; epoch++) {
+					Collections.shuffle(sentences, random);
+					for (int i = 0; i < numThreads; i++) {
+						shards.get(i).sentences = sentences.subList(i
+								* sentences.size() / numThreads, (i + 1)
+								* sentences.size() / numThreads);
+					}
+					int numMistakes = 0;
+					for (int shardMistakes : ThreadPools.invokeAll(executor,
+							shards)) {
+						numMistakes += shardMistakes;
+					}
+					// mix the shards' weights, and add up their sums
+					Arrays.fill(mixedWeights, 0.0);
+					for (Shard shard : shards) {
+						shard.addWeightSums(weightSums);
+						for (int i = 0; i < dimension; i++) {
+							mixedWeights[i] += shard.weights[i] / numThreads;
+						}
+					}
+					numSteps += sentences.size();
+					System.out.println("[PerceptronScorer] Epoch " + epoch
+							+ ": " + numMistakes + " of " + sentences.size()
+							+ " sentences mistagged");
+				}
+			} finally {
+				executor.shutdown();
+			}
+			weights = weightSums;
+			for (int i = 0; i < dimension; i++) {
+				weights[i] /= numSteps;
+			}
 		}
 
-		public String getPreviousPreviousTag() {
-			return previousPreviousTag;
-		}
+		/**
+		 * One thread's share of an epoch: perceptron passes over its
+		 * sentences, starting from the mixed weights, returning the number of
+		 * sentences it got wrong.
+		 */
+		class Shard implements Callable<Integer> {
+			LocalTrigramContextColumns contexts;
+			List<Integer> sentenceStarts;
+			double[] mixedWeights;
+			List<Integer> sentences;
+			double[] weights;
+			// the updates, each times the step it was made at
+			double[] stepWeightedUpdates;
+			Trellis trellis = new Trellis();
+			TrellisDecoder decoder = new ViterbiDecoder();
+			int[] features = new int[HashedTagFeatures.MAX_FEATURES];
+			double[] wordScores;
+			double[] scores;
+
+			public Integer call() {
+				System.arraycopy(mixedWeights, 0, weights, 0, weights.length);
+				Arrays.fill(stepWeightedUpdates, 0.0);
+				int numMistakes = 0;
+				int step = 0;
+				for (int sentence : sentences) {
+					step++;
+					int start = sentenceStarts.get(sentence);
+					int end = sentenceStarts.get(sentence + 1);
+					int[] states = decoder.getBestPath(
+							buildTrellis(start, end)).getStates();
+					boolean mistake = false;
+					for (int context = start; context < end; context++) {
+						int state = states[context - start];
+						int previousPreviousTag = States
+								.getPreviousPreviousTag(state, numTags);
+						int previousTag = States.getPreviousTag(state, numTags);
+						int tag = States.getPreviousTag(
+								states[context - start + 1], numTags);
+						if (previousPreviousTag == contexts
+								.getPreviousPreviousTag(context)
+								&& previousTag == contexts.getPreviousTag(context)
+								&& tag == contexts.getTag(context))
+							continue;
+						mistake = true;
+						update(context, contexts
+								.getPreviousPreviousTag(context), contexts
+								.getPreviousTag(context), contexts
+								.getTag(context), 1.0, step);
+						update(context, previousPreviousTag, previousTag, tag,
+								-1.0, step);
+					}
+					if (mistake)
+						numMistakes++;
+				}
+				return numMistakes;
+			}
 
-		public String toString() {
-			return "[" + getPreviousPreviousTag() + ", " + getPreviousTag()
-					+ ", " + getCurrentWord() + "]";
-		}
+			private void update(int context, int previousPreviousTag,
+					int previousTag, int tag, double delta, int step) {
+				int numFeatures = extractFeatures(context,
+						previousPreviousTag, previousTag);
+				for (int i = 0; i < numFeatures; i++) {
+					int index = features[i] * numTags + tag;
+					weights[index] += delta;
+					stepWeightedUpdates[index] += step * delta;
+				}
+			}
 
-		public LocalTrigramContext(List<String> words, int position,
-				String previousPreviousTag, String previousTag) {
-			this.words = words;
-			this.position = position;
-			this.previousTag = previousTag;
-			this.previousPreviousTag = previousPreviousTag;
-		}
-	}
+			private int extractFeatures(int context, int previousPreviousTag,
+					int previousTag) {
+				int numFeatures = PerceptronScorer.this.features
+						.extractWordFeatures(contexts, context, features);
+				return PerceptronScorer.this.features.extractTagFeatures(
+						previousPreviousTag, previousTag, features, numFeatures);
+			}
 
-	/**
-	 * A LabeledLocalTrigramContext is a context plus the correct tag for that
-	 * position -- basically a LabeledFeatureVector
-	 */
-	static class LabeledLocalTrigramContext extends LocalTrigramContext {
-		String currentTag;
+			private Trellis buildTrellis(int start, int end) {
+				trellis.clear(numTags);
+				for (int context = start; context < end; context++) {
+					int numWordFeatures = PerceptronScorer.this.features
+							.extractWordFeatures(contexts, context, features);
+					sumRows(weights, features, 0, numWordFeatures, wordScores);
+					int[] tags = tagDictionary.getAllowedTags(contexts
+							.getWord(context));
+					int position = context - start;
+					for (int node = trellis.getColumnStart(position); node < trellis
+							.getColumnEnd(position); node++) {
+						int state = trellis.getState(node);
+						System.arraycopy(wordScores, 0, scores, 0, numTags);
+						int numFeatures = PerceptronScorer.this.features
+								.extractTagFeatures(States
+										.getPreviousPreviousTag(state, numTags),
+										States.getPreviousTag(state, numTags),
+										features, numWordFeatures);
+						addRows(weights, features, numWordFeatures,
+								numFeatures, scores);
+						for (int tag : tags) {
+							trellis.addTransition(node, States.getNextState(
+									state, tag, numTags), scores[tag]);
+						}
+						trellis.endNode(node);
+					}
+					trellis.endColumn();
+				}
+				trellis.endTrellis();
+				return trellis;
+			}
 
-		public String getCurrentTag() {
-			return currentTag;
+			/**
+			 * Adds the sum of this shard's weights over the steps of its last
+			 * epoch, n w + (w - w0) - u for n steps from the mixed weights w0
+			 * to w, with u the step-weighted updates.
+			 */
+			void addWeightSums(double[] weightSums) {
+				int numSteps = sentences.size();
+				for (int i = 0; i < weights.length; i++) {
+					weightSums[i] += numSteps * weights[i]
+							+ (weights[i] - mixedWeights[i])
+							- stepWeightedUpdates[i];
+				}
+			}
+
+			public Shard(LocalTrigramContextColumns contexts,
+					List<Integer> sentenceStarts, double[] mixedWeights) {
+				this.contexts = contexts;
+				this.sentenceStarts = sentenceStarts;
+				this.mixedWeights = mixedWeights;
+				this.weights = new double[mixedWeights.length];
+				this.stepWeightedUpdates = new double[mixedWeights.length];
+				this.wordScores = new double[numTags];
+				this.scores = new double[numTags];
+			}
 		}
 
-		public String toString() {
-			return "[" + getPreviousPreviousTag() + ", " + getPreviousTag()
-					+ ", " + getCurrentWord() + "_" + getCurrentTag() + "]";
+		public void validate(
+				Iterable<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+			// the number of epochs is fixed
 		}
 
-		public LabeledLocalTrigramContext(List<String> words, int position,
-				String previousPreviousTag, String previousTag,
-				String currentTag) {
-			super(words, position, previousPreviousTag, previousTag);
-			this.currentTag = currentTag;
+		public PerceptronScorer(int hashBits, int numEpochs, int numThreads) {
+			this.features = new HashedTagFeatures(hashBits);
+			this.numEpochs = numEpochs;
+			this.numThreads = numThreads;
 		}
 	}
 
 	/**
-	 * LocalTrigramScorers assign scores to tags occuring in specific
-	 * LocalTrigramContexts.
+	 * A trigram hidden Markov model: the score of a tag is log P(tag |
+	 * previous two tags) + log P(word | tag), so the scores are joint, not
+	 * conditional, log probabilities. The transitions are interpolated
+	 * trigram, bigram and unigram tag models, with the weights set by deleted
+	 * interpolation (Brants, 2000), and are all precomputed at training time
+	 * into a dense numTags^3 array of log probabilities, indexed by
+	 * (previousPreviousTag * numTags + previousTag) * numTags + tag. The
+	 * emissions of each training word are arrays of its tags and their log
+	 * probabilities; those of unknown words come from a SuffixTagModel, as
+	 * P(tag | suffix) / P(tag).
 	 */
-	static interface LocalTrigramScorer {
+	static class HmmTrigramScorer extends ColumnarDenseLocalTrigramScorer
+			implements WordLocalTrigramScorer {
+		static final int MAX_SUFFIX_LENGTH = 5;
+		static final int RARE_WORD_COUNT = 10;
+
+		double[] transitionLogProbabilities;
+		double[] lambdas = new double[3]; // unigram, bigram, trigram
+		int[][] wordTags;
+		double[][] wordLogEmissions;
+		SuffixTagModel unknownWordModel;
+		// the tags of unknown words, and their log emissions less the log
+		// suffix probability, log 1 / P(tag)
+		int[] unknownWordTags;
+		int[] unknownWordModelTags;
+		double[] unknownWordLogTagPriors;
+
+		public double[] getLambdas() {
+			return lambdas;
+		}
+
 		/**
-		 * The Counter returned should contain log probabilities, meaning if all
-		 * values are exponentiated and summed, they should sum to one. For
-		 * efficiency, the Counter can contain only the tags which occur in the
-		 * given context with non-zero model probability.
+		 * The previous tags must be ones seen in training.
 		 */
-		Counter<String> getLogScoreCounter(
-				LocalTrigramContext localTrigramContext);
-
-		void train(List<LabeledLocalTrigramContext> localTrigramContexts);
-
-		void validate(List<LabeledLocalTrigramContext> localTrigramContexts);
-	}
-
-	/**
-	 * The MostFrequentTagScorer gives each test word the tag it was seen with
-	 * most often in training (or the tag with the most seen word types if the
-	 * test word is unseen in training. This scorer actually does a little more
-	 * than its name claims -- if constructed with restrictTrigrams = true, it
-	 * will forbid illegal tag trigrams, otherwise it makes no use of tag
-	 * history information whatsoever.
-	 */
-	static class MostFrequentTagScorer implements LocalTrigramScorer {
-
-		boolean restrictTrigrams; // if true, assign log score of
-									// Double.NEGATIVE_INFINITY to illegal tag
-									// trigrams.
-
-		CounterMap<String, String> wordsToTags = new CounterMap<String, String>();
-		Counter<String> unknownWordTags = new Counter<String>();
-		Set<String> seenTagTrigrams = new HashSet<String>();
-
-		public int getHistorySize() {
-			return 2;
+		public void getLogScores(List<String> words, int position,
+				int previousPreviousTag, int previousTag, double[] logScores) {
+			Arrays.fill(logScores, Double.NEGATIVE_INFINITY);
+			int transitions = (previousPreviousTag * numTags + previousTag)
+					* numTags;
+			String wordString = words.get(position);
+			int word = wordIndexer.indexOf(wordString);
+			if (word >= 0) {
+				int[] tags = wordTags[word];
+				double[] logEmissions = wordLogEmissions[word];
+				for (int i = 0; i < tags.length; i++) {
+					logScores[tags[i]] = transitionLogProbabilities[transitions
+							+ tags[i]]
+							+ logEmissions[i];
+				}
+				return;
+			}
+			double[] tagProbabilities = unknownWordModel.getTagProbabilities();
+			int offset = unknownWordModel.getTagOffset(wordString);
+			for (int i = 0; i < unknownWordTags.length; i++) {
+				int tag = unknownWordTags[i];
+				logScores[tag] = transitionLogProbabilities[transitions + tag]
+						+ Math.log(tagProbabilities[offset
+								+ unknownWordModelTags[i]])
+						+ unknownWordLogTagPriors[i];
+			}
 		}
 
-		public Counter<String> getLogScoreCounter(
-				LocalTrigramContext localTrigramContext) {
-			int position = localTrigramContext.getPosition();
-			String word = localTrigramContext.getWords().get(position);
-			Counter<String> tagCounter = unknownWordTags;
-			if (wordsToTags.keySet().contains(word)) {
-				tagCounter = wordsToTags.getCounter(word);
-			}
-			Set<String> allowedFollowingTags = allowedFollowingTags(
-					tagCounter.keySet(),
-					localTrigramContext.getPreviousPreviousTag(),
-					localTrigramContext.getPreviousTag());
-			Counter<String> logScoreCounter = new Counter<String>();
-			for (String tag : tagCounter.keySet()) {
-				double logScore = Math.log(tagCounter.getCount(tag));
-				if (!restrictTrigrams || allowedFollowingTags.isEmpty()
-						|| allowedFollowingTags.contains(tag))
-					logScoreCounter.setCount(tag, logScore);
+		void estimate(LocalTrigramContextColumns contexts) {
+			double[] trigramCounts = new double[numTags * numTags * numTags];
+			double[] bigramCounts = new double[numTags * numTags];
+			double[] unigramCounts = new double[numTags];
+			LongDoubleHashMap wordTagCounts = new LongDoubleHashMap();
+			unknownWordModel = new SuffixTagModel(MAX_SUFFIX_LENGTH,
+					RARE_WORD_COUNT);
+			for (int context = 0; context < contexts.size(); context++) {
+				int previousPreviousTag = contexts
+						.getPreviousPreviousTag(context);
+				int previousTag = contexts.getPreviousTag(context);
+				int tag = contexts.getTag(context);
+				int word = contexts.getWord(context);
+				trigramCounts[(previousPreviousTag * numTags + previousTag)
+						* numTags + tag]++;
+				bigramCounts[previousTag * numTags + tag]++;
+				unigramCounts[tag]++;
+				wordTagCounts.increment((long) word * numTags + tag, 1.0);
+				unknownWordModel.addTagging(wordIndexer.get(word), tagIndexer
+						.get(tag));
+			}
+			estimateTransitions(trigramCounts, bigramCounts, unigramCounts,
+					contexts.size());
+			estimateEmissions(wordTagCounts, unigramCounts);
+		}
+
+		private void estimateTransitions(double[] trigramCounts,
+				double[] bigramCounts, double[] unigramCounts,
+				double totalCount) {
+			double[] trigramHistoryCounts = new double[numTags * numTags];
+			double[] bigramHistoryCounts = new double[numTags];
+			for (int history = 0; history < numTags * numTags; history++) {
+				for (int tag = 0; tag < numTags; tag++) {
+					trigramHistoryCounts[history] += trigramCounts[history
+							* numTags + tag];
+				}
+			}
+			for (int previousTag = 0; previousTag < numTags; previousTag++) {
+				for (int tag = 0; tag < numTags; tag++) {
+					bigramHistoryCounts[previousTag] += bigramCounts[previousTag
+							* numTags + tag];
+				}
 			}
-			return logScoreCounter;
-		}
 
-		private Set<String> allowedFollowingTags(Set<String> tags,
-				String previousPreviousTag, String previousTag) {
-			Set<String> allowedTags = new HashSet<String>();
-			for (String tag : tags) {
-				String trigramString = makeTrigramString(previousPreviousTag,
-						previousTag, tag);
-				if (seenTagTrigrams.contains((trigramString))) {
-					allowedTags.add(tag);
+			// deleted interpolation: each trigram votes, with its count, for
+			// the order which best predicts it when it's held out
+			Arrays.fill(lambdas, 0.0);
+			for (int history = 0; history < numTags * numTags; history++) {
+				int previousTag = history % numTags;
+				for (int tag = 0; tag < numTags; tag++) {
+					double count = trigramCounts[history * numTags + tag];
+					if (count == 0.0)
+						continue;
+					double[] heldOutEstimates = {
+							ratio(unigramCounts[tag] - 1, totalCount - 1),
+							ratio(bigramCounts[previousTag * numTags + tag] - 1,
+									bigramHistoryCounts[previousTag] - 1),
+							ratio(count - 1, trigramHistoryCounts[history] - 1) };
+					int best = 0;
+					for (int order = 1; order < 3; order++) {
+						if (heldOutEstimates[order] > heldOutEstimates[best])
+							best = order;
+					}
+					lambdas[best] += count;
+				}
+			}
+			double lambdaSum = lambdas[0] + lambdas[1] + lambdas[2];
+			for (int order = 0; order < 3; order++) {
+				lambdas[order] /= lambdaSum;
+			}
+
+			transitionLogProbabilities = new double[numTags * numTags * numTags];
+			for (int history = 0; history < numTags * numTags; history++) {
+				int previousTag = history % numTags;
+				for (int tag = 0; tag < numTags; tag++) {
+					double probability = lambdas[0] * unigramCounts[tag]
+							/ totalCount + lambdas[1]
+							* ratio(bigramCounts[previousTag * numTags + tag],
+									bigramHistoryCounts[previousTag])
+							+ lambdas[2]
+							* ratio(trigramCounts[history * numTags + tag],
+									trigramHistoryCounts[history]);
+					transitionLogProbabilities[history * numTags + tag] = Math
+							.log(probability);
 				}
 			}
-			return allowedTags;
 		}
 
-		private String makeTrigramString(String previousPreviousTag,
-				String previousTag, String currentTag) {
-			return previousPreviousTag + " " + previousTag + " " + currentTag;
+		private static double ratio(double numerator, double denominator) {
+			return (denominator > 0.0 ? numerator / denominator : 0.0);
 		}
 
-		public void train(
-				List<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
-			// collect word-tag counts
-			for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
-				String word = labeledLocalTrigramContext.getCurrentWord();
-				String tag = labeledLocalTrigramContext.getCurrentTag();
-				if (!wordsToTags.keySet().contains(word)) {
-					// word is currently unknown, so tally its tag in the
-					// unknown tag counter
-					unknownWordTags.incrementCount(tag, 1.0);
-				}
-				wordsToTags.incrementCount(word, tag, 1.0);
-				seenTagTrigrams.add(makeTrigramString(
-						labeledLocalTrigramContext.getPreviousPreviousTag(),
-						labeledLocalTrigramContext.getPreviousTag(),
-						labeledLocalTrigramContext.getCurrentTag()));
+		private void estimateEmissions(LongDoubleHashMap wordTagCounts,
+				double[] unigramCounts) {
+			int numWords = wordIndexer.size();
+			int[] numWordTags = new int[numWords];
+			for (int slot = 0; slot < wordTagCounts.capacity(); slot++) {
+				if (wordTagCounts.isOccupied(slot))
+					numWordTags[(int) (wordTagCounts.keyAt(slot) / numTags)]++;
+			}
+			wordTags = new int[numWords][];
+			wordLogEmissions = new double[numWords][];
+			for (int word = 0; word < numWords; word++) {
+				wordTags[word] = new int[numWordTags[word]];
+				wordLogEmissions[word] = new double[numWordTags[word]];
+				numWordTags[word] = 0;
+			}
+			for (int slot = 0; slot < wordTagCounts.capacity(); slot++) {
+				if (!wordTagCounts.isOccupied(slot))
+					continue;
+				int word = (int) (wordTagCounts.keyAt(slot) / numTags);
+				int tag = (int) (wordTagCounts.keyAt(slot) % numTags);
+				int i = numWordTags[word]++;
+				wordTags[word][i] = tag;
+				wordLogEmissions[word][i] = Math.log(wordTagCounts.valueAt(slot)
+						/ unigramCounts[tag]);
 			}
-			wordsToTags = Counters.conditionalNormalize(wordsToTags);
-			unknownWordTags = Counters.normalize(unknownWordTags);
-		}
 
-		public void validate(
-				List<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
-			// no tuning for this dummy model!
+			unknownWordModel.build();
+			Indexer<String> unknownWordModelTagIndexer = unknownWordModel
+					.getTagIndexer();
+			int numUnknownWordTags = unknownWordModelTagIndexer.size();
+			unknownWordTags = new int[numUnknownWordTags];
+			unknownWordModelTags = new int[numUnknownWordTags];
+			unknownWordLogTagPriors = new double[numUnknownWordTags];
+			double totalCount = 0.0;
+			for (double count : unigramCounts) {
+				totalCount += count;
+			}
+			for (int i = 0; i < numUnknownWordTags; i++) {
+				int tag = tagIndexer.indexOf(unknownWordModelTagIndexer.get(i));
+				unknownWordTags[i] = tag;
+				unknownWordModelTags[i] = i;
+				unknownWordLogTagPriors[i] = -Math.log(unigramCounts[tag]
+						/ totalCount);
+			}
 		}
 
-		public MostFrequentTagScorer(boolean restrictTrigrams) {
-			this.restrictTrigrams = restrictTrigrams;
+		public void validate(
+				Iterable<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+			// the interpolation weights are set in training
 		}
 	}
 
-	private static List<TaggedSentence> readTaggedSentences(String path,
+	static List<TaggedSentence> readTaggedSentences(String path,
 			int low, int high) {
+		return getTaggedSentences(readTaggedCorpus(path, low, high));
+	}
+
+	static TaggedCorpus readTaggedCorpus(String path, int low, int high) {
 		Collection<Tree<String>> trees = PennTreebankReader.readTrees(path,
 				low, high);
-		List<TaggedSentence> taggedSentences = new ArrayList<TaggedSentence>();
+		TaggedCorpus corpus = new TaggedCorpus(START_WORD, STOP_WORD,
+				START_TAG, STOP_TAG);
 		Trees.TreeTransformer<String> treeTransformer = new Trees.EmptyNodeStripper();
 		for (Tree<String> tree : trees) {
 			tree = treeTransformer.transformTree(tree);
-			List<String> words = new BoundedList<String>(new ArrayList<String>(
-					tree.getYield()), START_WORD, STOP_WORD);
-			List<String> tags = new BoundedList<String>(new ArrayList<String>(
-					tree.getPreTerminalYield()), START_TAG, STOP_TAG);
-			taggedSentences.add(new TaggedSentence(words, tags));
+			corpus.add(tree.getYield(), tree.getPreTerminalYield());
+		}
+		return corpus;
+	}
+
+	/**
+	 * Reads the sentences through a binary copy of the corpus in the
+	 * treebank directory (tagged-low-high.bin), which is (re)written, through
+	 * a temporary file, if it is missing or older than any of the tree files.
+	 */
+	static TaggedCorpus readBinaryTaggedCorpus(String path, int low, int high)
+			throws IOException {
+		File binaryFile = new File(path, "tagged-" + low + "-" + high + ".bin");
+		if (binaryFile.exists()
+				&& binaryFile.lastModified() >= PennTreebankReader
+						.lastModified(path, low, high))
+			return TaggedCorpus.read(binaryFile.getPath());
+		TaggedCorpus corpus = readTaggedCorpus(path, low, high);
+		File tempFile = File.createTempFile(binaryFile.getName(), ".tmp",
+				binaryFile.getAbsoluteFile().getParentFile());
+		try {
+			corpus.write(tempFile.getPath());
+			IOUtils.replaceFile(tempFile, binaryFile);
+		} finally {
+			tempFile.delete();
+		}
+		return corpus;
+	}
+
+	/**
+	 * The sentences of a corpus, as views of its ids which are padded with
+	 * the start and stop symbols.
+	 */
+	static List<TaggedSentence> getTaggedSentences(TaggedCorpus corpus) {
+		List<TaggedSentence> taggedSentences = new ArrayList<TaggedSentence>();
+		for (int sentence = 0; sentence < corpus.size(); sentence++) {
+			taggedSentences.add(new TaggedSentence(corpus.getWords(sentence),
+					corpus.getTags(sentence)));
 		}
 		return taggedSentences;
 	}
 
 	private static void evaluateTagger(POSTagger posTagger,
 			List<TaggedSentence> taggedSentences,
-			Set<String> trainingVocabulary, boolean verbose) {
+			Set<String> trainingVocabulary, int numThreads, boolean verbose) {
 		double numTags = 0.0;
 		double numTagsCorrect = 0.0;
 		double numUnknownWords = 0.0;
 		double numUnknownWordsCorrect = 0.0;
 		int numDecodingInversions = 0;
+		List<List<String>> sentences = new ArrayList<List<String>>();
+		List<List<String>> goldTaggings = new ArrayList<List<String>>();
+		int numTokens = 0;
 		for (TaggedSentence taggedSentence : taggedSentences) {
+			sentences.add(taggedSentence.getWords());
+			goldTaggings.add(taggedSentence.getTags());
+			numTokens += taggedSentence.size();
+		}
+		long startTime = System.nanoTime();
+		List<ScoredTagging> taggings = posTagger.tagAndScore(sentences,
+				goldTaggings, numThreads);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.println("Tagged " + numTokens + " tokens on " + numThreads
+				+ " threads in " + seconds + "s ("
+				+ (int) (numTokens / seconds) + " tokens/sec)");
+		for (int i = 0; i < taggedSentences.size(); i++) {
+			TaggedSentence taggedSentence = taggedSentences.get(i);
 			List<String> words = taggedSentence.getWords();
 			List<String> goldTags = taggedSentence.getTags();
-			List<String> guessedTags = posTagger.tag(words);
+			List<String> guessedTags = taggings.get(i).getTags();
 			for (int position = 0; position < words.size() - 1; position++) {
 				String word = words.get(position);
 				String goldTag = goldTags.get(position);
@@ -636,9 +2950,8 @@ public class POSTaggerTester {
 					numUnknownWords += 1.0;
 				}
 			}
-			double scoreOfGoldTagging = posTagger.scoreTagging(taggedSentence);
-			double scoreOfGuessedTagging = posTagger
-					.scoreTagging(new TaggedSentence(words, guessedTags));
+			double scoreOfGoldTagging = taggings.get(i).getGoldScore();
+			double scoreOfGuessedTagging = taggings.get(i).getScore();
 			if (scoreOfGoldTagging > scoreOfGuessedTagging) {
 				numDecodingInversions++;
 				if (verbose)
@@ -707,7 +3020,66 @@ public class POSTaggerTester {
 		return vocabulary;
 	}
 
-	public static void main(String[] args) {
+	static TrellisDecoder getTrellisDecoder(String decoder,
+			Map<String, String> argMap) {
+		if (decoder.equalsIgnoreCase("greedy")) {
+			return new GreedyDecoder();
+		} else if (decoder.equalsIgnoreCase("viterbi")) {
+			return new ViterbiDecoder();
+		} else if (decoder.equalsIgnoreCase("posterior")) {
+			return new ForwardBackwardDecoder();
+		} else if (decoder.equalsIgnoreCase("beam")) {
+			// the number of states kept per position, and how far below the
+			// best state's log score a kept state may be
+			int beamWidth = 5;
+			double beamThreshold = Double.POSITIVE_INFINITY;
+			if (argMap.containsKey("-beamWidth"))
+				beamWidth = Integer.parseInt(argMap.get("-beamWidth"));
+			if (argMap.containsKey("-beamThreshold"))
+				beamThreshold = Double.parseDouble(argMap
+						.get("-beamThreshold"));
+			return new BeamDecoder(beamWidth, beamThreshold);
+		} else {
+			throw new RuntimeException("Unknown decoder descriptor: " + decoder);
+		}
+	}
+
+	/**
+	 * Builds the local scorer named on the command line: "mostFrequent",
+	 * "hmm", "maxent" or "perceptron" (trained on numThreads threads).
+	 */
+	static LocalTrigramScorer getLocalTrigramScorer(String scorer,
+			int numThreads, Map<String, String> argMap) {
+		if (scorer.equalsIgnoreCase("mostFrequent")) {
+			return new MostFrequentTagScorer(false);
+		} else if (scorer.equalsIgnoreCase("hmm")) {
+			return new HmmTrigramScorer();
+		} else if (scorer.equalsIgnoreCase("maxent")) {
+			// the number of feature hash buckets is 2^hashBits
+			int hashBits = 16;
+			double sigma = 1.0;
+			int iterations = 40;
+			if (argMap.containsKey("-hashBits"))
+				hashBits = Integer.parseInt(argMap.get("-hashBits"));
+			if (argMap.containsKey("-sigma"))
+				sigma = Double.parseDouble(argMap.get("-sigma"));
+			if (argMap.containsKey("-iterations"))
+				iterations = Integer.parseInt(argMap.get("-iterations"));
+			return new HashedMaxEntScorer(hashBits, sigma, iterations);
+		} else if (scorer.equalsIgnoreCase("perceptron")) {
+			int hashBits = 16;
+			int epochs = 10;
+			if (argMap.containsKey("-hashBits"))
+				hashBits = Integer.parseInt(argMap.get("-hashBits"));
+			if (argMap.containsKey("-epochs"))
+				epochs = Integer.parseInt(argMap.get("-epochs"));
+			return new PerceptronScorer(hashBits, epochs, numThreads);
+		} else {
+			throw new RuntimeException("Unknown scorer descriptor: " + scorer);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
 		// Parse command line flags and arguments
 		Map<String, String> argMap = CommandLineUtils
 				.simpleCommandLineParser(args);
@@ -716,6 +3088,11 @@ public class POSTaggerTester {
 		String basePath = ".";
 		boolean verbose = false;
 		boolean useValidation = true;
+		boolean useBinaryCorpus = false;
+		String decoder = "viterbi";
+		String scorer = "mostFrequent";
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		int scoreCacheSize = 1 << 16;
 
 		// Update defaults using command line specifications
 
@@ -734,6 +3111,33 @@ public class POSTaggerTester {
 		System.out.println("Testing on: "
 				+ (useValidation ? "validation" : "test"));
 
+		// The decoder to find the best tagging with
+		if (argMap.containsKey("-decoder")) {
+			decoder = argMap.get("-decoder");
+		}
+		System.out.println("Using decoder: " + decoder);
+
+		// The local scorer to tag with
+		if (argMap.containsKey("-scorer")) {
+			scorer = argMap.get("-scorer");
+		}
+		System.out.println("Using scorer: " + scorer);
+
+		// The number of threads to tag with
+		if (argMap.containsKey("-threads")) {
+			numThreads = Integer.parseInt(argMap.get("-threads"));
+		}
+
+		// The number of local score arrays to cache across sentences
+		if (argMap.containsKey("-scoreCache")) {
+			scoreCacheSize = Integer.parseInt(argMap.get("-scoreCache"));
+		}
+
+		// Whether to read the treebank through binary tagged corpora
+		if (argMap.containsKey("-binary")) {
+			useBinaryCorpus = true;
+		}
+
 		// Whether or not to print the individual errors.
 		if (argMap.containsKey("-verbose")) {
 			verbose = true;
@@ -741,32 +3145,38 @@ public class POSTaggerTester {
 
 		// Read in data
 		System.out.print("Loading training sentences...");
-		List<TaggedSentence> trainTaggedSentences = readTaggedSentences(
-				basePath, 200, 2199);
-		Set<String> trainingVocabulary = extractVocabulary(trainTaggedSentences);
+		TaggedCorpus trainCorpus = (useBinaryCorpus ? readBinaryTaggedCorpus(
+				basePath, 200, 2199) : readTaggedCorpus(basePath, 200, 2199));
+		Set<String> trainingVocabulary = extractVocabulary(getTaggedSentences(trainCorpus));
 		System.out.println("done.");
 		System.out.print("Loading validation sentences...");
-		List<TaggedSentence> validationTaggedSentences = readTaggedSentences(
-				basePath, 2200, 2299);
+		TaggedCorpus validationCorpus = (useBinaryCorpus ? readBinaryTaggedCorpus(
+				basePath, 2200, 2299)
+				: readTaggedCorpus(basePath, 2200, 2299));
 		System.out.println("done.");
 		System.out.print("Loading test sentences...");
-		List<TaggedSentence> testTaggedSentences = readTaggedSentences(
-				basePath, 2300, 2399);
+		TaggedCorpus testCorpus = (useBinaryCorpus ? readBinaryTaggedCorpus(
+				basePath, 2300, 2399)
+				: readTaggedCorpus(basePath, 2300, 2399));
 		System.out.println("done.");
 
 		// Construct tagger components
 		// TODO : improve on the MostFrequentTagScorer
-		LocalTrigramScorer localTrigramScorer = new MostFrequentTagScorer(false);
-		// TODO : improve on the GreedyDecoder
-		TrellisDecoder<State> trellisDecoder = new GreedyDecoder<State>();
+		LocalTrigramScorer localTrigramScorer = getLocalTrigramScorer(scorer,
+				numThreads, argMap);
+		TrellisDecoder trellisDecoder = getTrellisDecoder(decoder, argMap);
 
 		// Train tagger
 		POSTagger posTagger = new POSTagger(localTrigramScorer, trellisDecoder);
-		posTagger.train(trainTaggedSentences);
-		posTagger.validate(validationTaggedSentences);
+		posTagger.setScoreCacheSize(scoreCacheSize);
+		posTagger.train(trainCorpus);
+		posTagger.validate(getTaggedSentences(validationCorpus));
 
 		// Test tagger
-		evaluateTagger(posTagger, testTaggedSentences, trainingVocabulary,
-				verbose);
+		evaluateTagger(posTagger, getTaggedSentences(testCorpus),
+				trainingVocabulary, numThreads, verbose);
+		if (posTagger.getScoreCache() != null
+				&& localTrigramScorer instanceof WordLocalTrigramScorer)
+			System.out.println("Score cache: " + posTagger.getScoreCache());
 	}
 }
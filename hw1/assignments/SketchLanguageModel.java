@@ -0,0 +1,198 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.util.CountMinSketch;
+
+/**
+ * A trigram model for corpora too large (or too open-ended) for exact n-gram
+ * tables: unigram, bigram and trigram counts all go into one count-min sketch
+ * of a fixed size, and words are scored with stupid backoff (Brants et al.,
+ * 2007),
+ * <p/>
+ * S(w | u, v) = c(u, v, w) / c(u, v) if c(u, v, w) > 0, else ALPHA * S(w | v),
+ * <p/>
+ * down to (c(w) + 1) / (N + V) for the unigrams, V the number of word types
+ * seen (plus one for unknown words). The scores aren't normalized, so the
+ * perplexity of this model is only comparable to that of other stupid
+ * backoff models. Sentences can be added at any time with addSentence(), and
+ * memory use doesn't grow with them; the model is not thread-safe.
+ * <p/>
+ * Words are identified by a 32-bit hash rather than an index, so that no
+ * vocabulary needs to be kept, and the state of the incremental scorer packs
+ * the hashes of the previous two words.
+ */
+class SketchLanguageModel implements IncrementalLanguageModel {
+
+	static final String START = "<S>";
+	static final String STOP = "</S>";
+	static final double ALPHA = 0.4;
+	static final int SKETCH_DEPTH = 4;
+	static final int RESERVOIR_SIZE = 10000;
+
+	CountMinSketch sketch;
+	long numTokens = 0;
+	long numWordTypes = 0;
+	int startIndex = getWordIndex(START);
+	int stopIndex = getWordIndex(STOP);
+
+	// a uniform sample of the training tokens, for generateSentence()
+	String[] reservoir = new String[RESERVOIR_SIZE];
+	int reservoirSize = 0;
+
+	/**
+	 * Counts the n-grams of the sentence into the sketch.
+	 */
+	public void addSentence(List<String> sentence) {
+		long startKey = ngramKey(0, startIndex);
+		// the start symbols are counted once per sentence, as histories
+		sketch.add(startKey, 1);
+		sketch.add(ngramKey(startKey, startIndex), 1);
+		int prePreviousWord = startIndex;
+		int previousWord = startIndex;
+		for (int i = 0; i <= sentence.size(); i++) {
+			String word = (i < sentence.size() ? sentence.get(i) : STOP);
+			int wordIndex = getWordIndex(word);
+			long unigramKey = ngramKey(0, wordIndex);
+			if (sketch.add(unigramKey, 1) == 1)
+				numWordTypes++;
+			long bigramKey = ngramKey(ngramKey(0, previousWord), wordIndex);
+			sketch.add(bigramKey, 1);
+			sketch.add(ngramKey(ngramKey(ngramKey(0, prePreviousWord),
+					previousWord), wordIndex), 1);
+			sample(word);
+			prePreviousWord = previousWord;
+			previousWord = wordIndex;
+			numTokens++;
+		}
+	}
+
+	private void sample(String word) {
+		if (reservoirSize < reservoir.length) {
+			reservoir[reservoirSize++] = word;
+			return;
+		}
+		long slot = (long) (Math.random() * (numTokens + 1));
+		if (slot < reservoir.length)
+			reservoir[(int) slot] = word;
+	}
+
+	public double getTrigramScore(int prePreviousWord, int previousWord,
+			int word) {
+		long unigramKey = ngramKey(0, previousWord);
+		long bigramKey = ngramKey(ngramKey(0, prePreviousWord), previousWord);
+		int trigramCount = sketch.estimate(ngramKey(bigramKey, word));
+		if (trigramCount > 0)
+			return Math.min(1.0, (double) trigramCount
+					/ sketch.estimate(bigramKey));
+		int bigramCount = sketch.estimate(ngramKey(unigramKey, word));
+		if (bigramCount > 0)
+			return ALPHA
+					* Math.min(1.0, (double) bigramCount
+							/ sketch.estimate(unigramKey));
+		return ALPHA * ALPHA * (sketch.estimate(ngramKey(0, word)) + 1.0)
+				/ (numTokens + numWordTypes + 1.0);
+	}
+
+	public double getSentenceProbability(List<String> sentence) {
+		double probability = 1.0;
+		long state = getStartState();
+		for (int i = 0; i <= sentence.size(); i++) {
+			int word = (i < sentence.size() ? getWordIndex(sentence.get(i))
+					: stopIndex);
+			probability *= getTrigramScore(previousWord(state),
+					lastWord(state), word);
+			state = getNextState(state, word);
+		}
+		return probability;
+	}
+
+	/**
+	 * The word's 32-bit hash; every word has one, so there is no unknown id.
+	 */
+	public int getWordIndex(String word) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < word.length(); i++) {
+			h = (h ^ word.charAt(i)) * 0x100000001b3L;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public int getStopIndex() {
+		return stopIndex;
+	}
+
+	public long getStartState() {
+		return state(startIndex, startIndex);
+	}
+
+	public double getLogProbability(long state, int word) {
+		return Math.log(getTrigramScore(previousWord(state), lastWord(state),
+				word));
+	}
+
+	public long getNextState(long state, int word) {
+		return state(lastWord(state), word);
+	}
+
+	private static long state(int previousWord, int word) {
+		return ((long) previousWord << 32) | (word & 0xffffffffL);
+	}
+
+	private static int previousWord(long state) {
+		return (int) (state >>> 32);
+	}
+
+	private static int lastWord(long state) {
+		return (int) state;
+	}
+
+	/**
+	 * The sketch key of the n-gram which extends the history key (0 for the
+	 * empty history) by the word.
+	 */
+	private static long ngramKey(long historyKey, int word) {
+		long h = (historyKey ^ (word & 0xffffffffL)) * 0x9E3779B97F4A7C15L
+				+ 1;
+		return h ^ (h >>> 31);
+	}
+
+	/**
+	 * Draws words from the sampled unigram distribution.
+	 */
+	public List<String> generateSentence() {
+		List<String> sentence = new ArrayList<String>();
+		if (reservoirSize == 0)
+			return sentence;
+		String word = reservoir[(int) (Math.random() * reservoirSize)];
+		while (!word.equals(STOP)) {
+			sentence.add(word);
+			word = reservoir[(int) (Math.random() * reservoirSize)];
+		}
+		return sentence;
+	}
+
+	public long getNumTokens() {
+		return numTokens;
+	}
+
+	public CountMinSketch getSketch() {
+		return sketch;
+	}
+
+	public SketchLanguageModel(long memoryBytes, boolean conservativeUpdate) {
+		sketch = CountMinSketch.withMemory(memoryBytes, SKETCH_DEPTH,
+				conservativeUpdate);
+	}
+
+	public SketchLanguageModel(Collection<List<String>> sentenceCollection,
+			long memoryBytes, boolean conservativeUpdate) {
+		this(memoryBytes, conservativeUpdate);
+		for (List<String> sentence : sentenceCollection) {
+			addSentence(sentence);
+		}
+	}
+}
@@ -1,98 +1,404 @@
 package nlp.assignments;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+import nlp.util.Indexer;
+import nlp.util.ThreadPools;
 
 class SpeechNBestList {
-	List<String> correctSentence;
-	List<List<String>> nBestSentences;
-	Map<List<String>, Double> acousticScores;
+	int[] correctSentenceIds;
+	int[][] nBestSentenceIds;
+	HypothesisTrie hypothesisTrie;
+	Indexer<String> wordIndexer;
+
+	/**
+	 * A prefix trie over the word ids of the n-best sentences. Node 0 is the
+	 * root (the empty prefix); every other node extends its parent by one
+	 * word. The node at which hypothesis i ends carries i and its acoustic
+	 * score, so hypotheses which share a prefix share the nodes for it.
+	 * Children are kept as sibling chains, since n-best lists branch little.
+	 */
+	static class HypothesisTrie {
+		static final int ROOT = 0;
+		static final int NONE = -1;
+
+		int[] words = new int[16];
+		int[] parents = new int[16];
+		int[] firstChildren = new int[16];
+		int[] nextSiblings = new int[16];
+		int[] hypotheses = new int[16];
+		int numNodes = 0;
+		int[] endNodes = new int[4];
+		double[] acousticScores = new double[4];
+		int numHypotheses = 0;
+
+		public int size() {
+			return numNodes;
+		}
+
+		public int getNumHypotheses() {
+			return numHypotheses;
+		}
+
+		public int getWord(int node) {
+			return words[node];
+		}
+
+		public int getParent(int node) {
+			return parents[node];
+		}
+
+		public int getFirstChild(int node) {
+			return firstChildren[node];
+		}
+
+		public int getNextSibling(int node) {
+			return nextSiblings[node];
+		}
+
+		/**
+		 * The hypothesis ending at this node, or NONE.
+		 */
+		public int getHypothesis(int node) {
+			return hypotheses[node];
+		}
+
+		public int getEndNode(int hypothesis) {
+			return endNodes[hypothesis];
+		}
+
+		public double getAcousticScore(int hypothesis) {
+			return acousticScores[hypothesis];
+		}
+
+		/**
+		 * Returns the node reached by following the given word ids from the
+		 * root, or NONE if the trie contains no such prefix.
+		 */
+		public int find(int[] sentence) {
+			int node = ROOT;
+			for (int i = 0; i < sentence.length && node != NONE; i++) {
+				node = findChild(node, sentence[i]);
+			}
+			return node;
+		}
+
+		/**
+		 * Adds a hypothesis with the given acoustic score and returns its
+		 * index. A sentence which is already in the trie keeps its index and
+		 * the higher of the two scores.
+		 */
+		public int add(int[] sentence, double acousticScore) {
+			int node = ROOT;
+			for (int i = 0; i < sentence.length; i++) {
+				int child = findChild(node, sentence[i]);
+				if (child == NONE)
+					child = addNode(node, sentence[i]);
+				node = child;
+			}
+			int hypothesis = hypotheses[node];
+			if (hypothesis != NONE) {
+				if (acousticScore > acousticScores[hypothesis])
+					acousticScores[hypothesis] = acousticScore;
+				return hypothesis;
+			}
+			if (numHypotheses == endNodes.length) {
+				endNodes = Arrays.copyOf(endNodes, 2 * numHypotheses);
+				acousticScores = Arrays.copyOf(acousticScores,
+						2 * numHypotheses);
+			}
+			hypothesis = numHypotheses++;
+			hypotheses[node] = hypothesis;
+			endNodes[hypothesis] = node;
+			acousticScores[hypothesis] = acousticScore;
+			return hypothesis;
+		}
+
+		private int findChild(int node, int word) {
+			int child = firstChildren[node];
+			while (child != NONE && words[child] != word) {
+				child = nextSiblings[child];
+			}
+			return child;
+		}
+
+		private int addNode(int parent, int word) {
+			if (numNodes == words.length) {
+				int capacity = 2 * numNodes;
+				words = Arrays.copyOf(words, capacity);
+				parents = Arrays.copyOf(parents, capacity);
+				firstChildren = Arrays.copyOf(firstChildren, capacity);
+				nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+				hypotheses = Arrays.copyOf(hypotheses, capacity);
+			}
+			int node = numNodes++;
+			words[node] = word;
+			parents[node] = parent;
+			firstChildren[node] = NONE;
+			hypotheses[node] = NONE;
+			if (parent == NONE) {
+				nextSiblings[node] = NONE;
+			} else {
+				nextSiblings[node] = firstChildren[parent];
+				firstChildren[parent] = node;
+			}
+			return node;
+		}
+
+		public HypothesisTrie() {
+			addNode(NONE, NONE);
+		}
+	}
+
+	/**
+	 * A read-only List view of a word id array.
+	 */
+	static class WordIdList extends AbstractList<String> {
+		int[] ids;
+		Indexer<String> wordIndexer;
+
+		public String get(int index) {
+			return wordIndexer.get(ids[index]);
+		}
+
+		public int size() {
+			return ids.length;
+		}
+
+		public WordIdList(int[] ids, Indexer<String> wordIndexer) {
+			this.ids = ids;
+			this.wordIndexer = wordIndexer;
+		}
+	}
 
 	public List<String> getCorrectSentence() {
-		return correctSentence;
+		return new WordIdList(correctSentenceIds, wordIndexer);
 	}
 
 	public List<List<String>> getNBestSentences() {
-		return nBestSentences;
+		return new AbstractList<List<String>>() {
+			public List<String> get(int index) {
+				return new WordIdList(nBestSentenceIds[index], wordIndexer);
+			}
+
+			public int size() {
+				return nBestSentenceIds.length;
+			}
+		};
 	}
 
 	public double getAcousticScore(List<String> sentence) {
-		return acousticScores.get(sentence);
+		int[] ids = new int[sentence.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = wordIndexer.indexOf(sentence.get(i));
+			if (ids[i] < 0)
+				throw new NoSuchElementException("Not an n-best sentence: "
+						+ sentence);
+		}
+		int node = hypothesisTrie.find(ids);
+		if (node == HypothesisTrie.NONE
+				|| hypothesisTrie.getHypothesis(node) == HypothesisTrie.NONE)
+			throw new NoSuchElementException("Not an n-best sentence: "
+					+ sentence);
+		return hypothesisTrie.getAcousticScore(hypothesisTrie
+				.getHypothesis(node));
+	}
+
+	/**
+	 * The acoustic score of the i-th sentence of getNBestSentences().
+	 */
+	public double getAcousticScore(int hypothesis) {
+		return hypothesisTrie.getAcousticScore(hypothesis);
+	}
+
+	/**
+	 * The correct sentence as word ids from the reader's word indexer.
+	 */
+	public int[] getCorrectSentenceIds() {
+		return correctSentenceIds;
+	}
+
+	/**
+	 * The n-best sentences as word ids, in the order of getNBestSentences().
+	 */
+	public int[][] getNBestSentenceIds() {
+		return nBestSentenceIds;
 	}
 
-	public SpeechNBestList(List<String> correctSentence,
-			List<List<String>> nBestSentences,
-			Map<List<String>, Double> acousticScores) {
-		this.correctSentence = correctSentence;
-		this.nBestSentences = nBestSentences;
-		this.acousticScores = acousticScores;
+	/**
+	 * The n-best sentences as a prefix trie; hypothesis indexes follow the
+	 * order of getNBestSentences().
+	 */
+	public HypothesisTrie getHypothesisTrie() {
+		return hypothesisTrie;
 	}
 
+	/**
+	 * The indexer mapping words to the ids used in this list (shared by all
+	 * lists from the same reader).
+	 */
+	public Indexer<String> getWordIndexer() {
+		return wordIndexer;
+	}
+
+	public SpeechNBestList(int[] correctSentenceIds,
+			int[][] nBestSentenceIds, HypothesisTrie hypothesisTrie,
+			Indexer<String> wordIndexer) {
+		this.correctSentenceIds = correctSentenceIds;
+		this.nBestSentenceIds = nBestSentenceIds;
+		this.hypothesisTrie = hypothesisTrie;
+		this.wordIndexer = wordIndexer;
+	}
+
+	/**
+	 * Reads the n-best lists of a directory. Each prefix's word and score
+	 * files are parsed on a pool of worker threads; the results are then
+	 * indexed in sorted prefix order, so both the list order and the word
+	 * ids are deterministic.
+	 */
 	static class Reader {
+		private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+		/**
+		 * The in-vocabulary sentences of one prefix, with their total
+		 * acoustic scores, before word indexing.
+		 */
+		private static class ParsedNBestList {
+			List<String> correctSentence;
+			String[][] sentences;
+			double[] scores;
+		}
+
 		public static List<SpeechNBestList> readSpeechNBestLists(String path,
 				Set<String> vocabulary) throws IOException {
-			List<SpeechNBestList> speechNBestLists = new ArrayList<SpeechNBestList>();
-			BufferedReader correctSentenceReader = open(path + "/REF.HUB1");
-			Map<String, List<String>> correctSentenceMap = readCorrectSentences(correctSentenceReader);
-			List<String> prefixList = getPrefixes(path);
-			for (String prefix : prefixList) {
-				if(prefix.equals(".DS_Store")){
-					continue;
+			return readSpeechNBestLists(path, vocabulary, Runtime.getRuntime()
+					.availableProcessors());
+		}
+
+		public static List<SpeechNBestList> readSpeechNBestLists(
+				final String path, final Set<String> vocabulary,
+				int numThreads) throws IOException {
+			Path directory = Paths.get(path);
+			final Map<String, List<String>> correctSentenceMap = readCorrectSentences(directory
+					.resolve("REF.HUB1"));
+			List<String> prefixList = getPrefixes(directory);
+			ExecutorService executor = ThreadPools.newDaemonPool(numThreads,
+					"SpeechNBestList.Reader");
+			try {
+				List<Future<ParsedNBestList>> futures = new ArrayList<Future<ParsedNBestList>>();
+				for (final String prefix : prefixList) {
+					futures.add(executor.submit(new Callable<ParsedNBestList>() {
+						public ParsedNBestList call() throws IOException {
+							return parse(correctSentenceMap.get(prefix),
+									Paths.get(path, prefix),
+									Paths.get(path, prefix + ".acc"),
+									vocabulary);
+						}
+					}));
+				}
+				List<SpeechNBestList> speechNBestLists = new ArrayList<SpeechNBestList>();
+				Indexer<String> wordIndexer = new Indexer<String>();
+				for (Future<ParsedNBestList> future : futures) {
+					SpeechNBestList speechNBestList = buildSpeechNBestList(
+							getResult(future), wordIndexer);
+					if (speechNBestList != null)
+						speechNBestLists.add(speechNBestList);
 				}
-				BufferedReader wordReader = open(path + "/" + prefix);
-				BufferedReader scoreReader = open(path + "/" + prefix + ".acc");
-				List<String> correctSentence = correctSentenceMap.get(prefix);
-				SpeechNBestList speechNBestList = buildSpeechNBestList(
-						correctSentence, wordReader, scoreReader, vocabulary);
-				if (speechNBestList != null)
-					speechNBestLists.add(speechNBestList);
-				wordReader.close();
-				scoreReader.close();
+				return speechNBestLists;
+			} finally {
+				executor.shutdownNow();
 			}
-			correctSentenceReader.close();
-			return speechNBestLists;
 		}
 
-		private static SpeechNBestList buildSpeechNBestList(
-				List<String> correctSentence, BufferedReader wordReader,
-				BufferedReader scoreReader, Set<String> vocabulary)
+		private static ParsedNBestList getResult(Future<ParsedNBestList> future)
+				throws IOException {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		private static ParsedNBestList parse(List<String> correctSentence,
+				Path wordFile, Path scoreFile, Set<String> vocabulary)
 				throws IOException {
-			List<Double> scoreList = readScores(scoreReader);
-			List<List<String>> sentenceList = readSentences(wordReader);
-			List<List<String>> uniqueSentenceList = new ArrayList<List<String>>();
-			Map<List<String>, Double> sentencesToScores = new HashMap<List<String>, Double>();
-			List<String> tokenizedCorrectSentence = null;
-			for (int i = 0; i < sentenceList.size(); i++) {
-				List<String> sentence = sentenceList.get(i);
-				if (!inVocabulary(sentence, vocabulary)) // && i <
-															// sentenceList.size()-1)
+			List<String> wordLines = Files.readAllLines(wordFile,
+					Charset.defaultCharset());
+			List<String> scoreLines = Files.readAllLines(scoreFile,
+					Charset.defaultCharset());
+			String[][] sentences = new String[wordLines.size()][];
+			double[] scores = new double[wordLines.size()];
+			int numSentences = 0;
+			for (int i = 0; i < wordLines.size(); i++) {
+				String[] sentence = WHITESPACE.split(wordLines.get(i));
+				for (int j = 0; j < sentence.length; j++) {
+					sentence[j] = sentence[j].toLowerCase();
+				}
+				if (!inVocabulary(sentence, vocabulary))
 					continue;
-				Double score = scoreList.get(i);
-				Double bestScoreForSentence = sentencesToScores.get(sentence);
-				if (!sentencesToScores.containsKey(sentence)) {
-					uniqueSentenceList.add(sentence);
-					if (equalsIgnoreSpaces(correctSentence, sentence)) {
+				sentences[numSentences] = sentence;
+				scores[numSentences] = parseScore(scoreLines.get(i));
+				numSentences++;
+			}
+			ParsedNBestList parsed = new ParsedNBestList();
+			parsed.correctSentence = correctSentence;
+			parsed.sentences = Arrays.copyOf(sentences, numSentences);
+			parsed.scores = Arrays.copyOf(scores, numSentences);
+			return parsed;
+		}
+
+		private static double parseScore(String line) {
+			String[] scoreStrings = WHITESPACE.split(line);
+			double totalScore = 0.0;
+			for (int i = 0; i < scoreStrings.length; i++) {
+				totalScore += Double.parseDouble(scoreStrings[i]);
+			}
+			return totalScore;
+		}
+
+		private static SpeechNBestList buildSpeechNBestList(
+				ParsedNBestList parsed, Indexer<String> wordIndexer) {
+			List<int[]> uniqueSentenceIds = new ArrayList<int[]>();
+			HypothesisTrie hypothesisTrie = new HypothesisTrie();
+			int[] tokenizedCorrectSentence = null;
+			for (int i = 0; i < parsed.sentences.length; i++) {
+				String[] sentence = parsed.sentences[i];
+				int[] ids = new int[sentence.length];
+				for (int j = 0; j < ids.length; j++) {
+					ids[j] = wordIndexer.addAndGetIndex(sentence[j]);
+				}
+				int hypothesis = hypothesisTrie.add(ids, parsed.scores[i]);
+				if (hypothesis == uniqueSentenceIds.size()) {
+					uniqueSentenceIds.add(ids);
+					if (equalsIgnoreSpaces(parsed.correctSentence, sentence)) {
 						if (tokenizedCorrectSentence != null) {
 							System.out.println("WARNING: SPEECH LATTICE ERROR");
 						}
-						tokenizedCorrectSentence = sentence;
+						tokenizedCorrectSentence = ids;
 					}
 				}
-				if (bestScoreForSentence == null
-						|| score > bestScoreForSentence) {
-					sentencesToScores.put(sentence, score);
-				}
 			}
-			if (uniqueSentenceList.isEmpty())
+			if (uniqueSentenceIds.isEmpty())
 				return null;
 			if (tokenizedCorrectSentence == null)
 				return null;
 			return new SpeechNBestList(tokenizedCorrectSentence,
-					uniqueSentenceList, sentencesToScores);
+					uniqueSentenceIds.toArray(new int[0][]), hypothesisTrie,
+					wordIndexer);
 		}
 
 		private static boolean equalsIgnoreSpaces(List<String> sentence1,
-				List<String> sentence2) {
+				String[] sentence2) {
 			StringBuilder sb1 = new StringBuilder();
 			StringBuilder sb2 = new StringBuilder();
 			for (String word1 : sentence1) {
@@ -104,7 +410,7 @@ class SpeechNBestList {
 			return sb1.toString().equalsIgnoreCase(sb2.toString());
 		}
 
-		private static boolean inVocabulary(List<String> sentence,
+		private static boolean inVocabulary(String[] sentence,
 				Set<String> vocabulary) {
 			for (String word : sentence) {
 				if (!vocabulary.contains(word))
@@ -113,67 +419,35 @@ class SpeechNBestList {
 			return true;
 		}
 
-		private static List<Double> readScores(BufferedReader scoreReader)
+		private static List<String> getPrefixes(Path directory)
 				throws IOException {
-			List<Double> scoreList = new ArrayList<Double>();
-			while (scoreReader.ready()) {
-				String line = scoreReader.readLine();
-				String[] scoreStrings = line.split("\\s+");
-				double totalScore = 0.0;
-				for (int i = 0; i < scoreStrings.length; i++) {
-					String scoreString = scoreStrings[i];
-					totalScore += Double.parseDouble(scoreString);
-				}
-				scoreList.add(totalScore);
-			}
-			return scoreList;
-		}
-
-		private static List<List<String>> readSentences(
-				BufferedReader wordReader) throws IOException {
-			List<List<String>> sentenceList = new ArrayList<List<String>>();
-			while (wordReader.ready()) {
-				String line = wordReader.readLine();
-				String[] words = line.split("\\s+");
-				List<String> sentence = new ArrayList<String>();
-				for (int i = 0; i < words.length; i++) {
-					String word = words[i];
-					sentence.add(word.toLowerCase());
-				}
-				sentenceList.add(sentence);
-			}
-			return sentenceList;
-		}
-
-		private static List<String> getPrefixes(String path) {
-			Set<String> prefixSet = new HashSet<String>();
-			List<String> prefixList = new ArrayList<String>();
-			File directory = new File(path);
-			File[] files = directory.listFiles();
-			for (int i = 0; i < files.length; i++) {
-				File file = files[i];
-				String fileName = file.getName();
-				if (fileName.startsWith("REF"))
-					continue;
-				String prefix = fileName;
-				int extensionIndex = fileName.lastIndexOf('.');
-				if (extensionIndex > 0) {
-					prefix = fileName.substring(0, extensionIndex);
+			Set<String> prefixSet = new TreeSet<String>();
+			DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+			try {
+				for (Path file : files) {
+					String fileName = file.getFileName().toString();
+					if (fileName.startsWith("REF")
+							|| fileName.equals(".DS_Store"))
+						continue;
+					String prefix = fileName;
+					int extensionIndex = fileName.lastIndexOf('.');
+					if (extensionIndex > 0) {
+						prefix = fileName.substring(0, extensionIndex);
+					}
+					prefixSet.add(prefix);
 				}
-				if (prefixSet.contains(prefix))
-					continue;
-				prefixSet.add(prefix);
-				prefixList.add(prefix);
+			} finally {
+				files.close();
 			}
-			return prefixList;
+			return new ArrayList<String>(prefixSet);
 		}
 
 		private static Map<String, List<String>> readCorrectSentences(
-				BufferedReader reader) throws IOException {
+				Path file) throws IOException {
 			Map<String, List<String>> correctSentenceMap = new HashMap<String, List<String>>();
-			while (reader.ready()) {
-				String line = reader.readLine();
-				String[] words = line.split("\\s+");
+			for (String line : Files.readAllLines(file,
+					Charset.defaultCharset())) {
+				String[] words = WHITESPACE.split(line);
 				List<String> sentence = new ArrayList<String>();
 				for (int i = 0; i < words.length - 1; i++) {
 					String word = words[i];
@@ -185,11 +459,6 @@ class SpeechNBestList {
 			}
 			return correctSentenceMap;
 		}
-
-		private static BufferedReader open(String fileName)
-				throws FileNotFoundException {
-			return new BufferedReader(new FileReader(fileName));
-		}
 	}
 
 }
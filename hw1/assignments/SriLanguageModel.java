@@ -6,14 +6,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import nlp.langmodel.LanguageModel;
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.langmodel.NgramKeys;
 import nlp.util.Counter;
+import nlp.util.Indexer;
+import nlp.util.LongDoubleHashMap;
 
 /**
  * A dummy language model -- uses empirical unigram counts, plus a single
  * fictitious count for unknown words.
  */
-class SriLanguageModel implements LanguageModel {
+class SriLanguageModel implements IncrementalLanguageModel {
 
 	static final String START = "<s>";
 	static final String STOP = "</s>";
@@ -22,47 +25,86 @@ class SriLanguageModel implements LanguageModel {
 	Counter<String> probabilities = new Counter<String>();
 	Counter<String> backoffs = new Counter<String>();
 
+	// the parameters over word ids, in natural logs. Words not in the model
+	// share one id past the end of the index, which is in no n-gram and
+	// has UNKNOWN's probability and no backoff: an unknown word is scored
+	// by the unigram of UNKNOWN, and an unknown history backs off with a
+	// weight of 1, as when the n-grams were looked up by their strings
+	Indexer<String> wordIndexer = new Indexer<String>();
+	int outOfVocabularyIndex;
+	double[] unigramLogProbabilities;
+	double[] unigramLogBackoffs;
+	LongDoubleHashMap bigramLogProbabilities = new LongDoubleHashMap();
+	LongDoubleHashMap bigramLogBackoffs = new LongDoubleHashMap();
+	LongDoubleHashMap trigramLogProbabilities = new LongDoubleHashMap();
+
 	public double getTrigramProbability(String prePreviousWord,
 			String previousWord, String word) {
-		double trigramProbability = probabilities.getCount(prePreviousWord
-				+ " " + previousWord + " " + word);
-		if (trigramProbability != 0)
-			return Math.exp(trigramProbability);
-
-		double bigramProbability = probabilities.getCount(previousWord + " "
-				+ word);
-		if (bigramProbability != 0)
-			return Math.exp(bigramProbability
-					+ backoffs.getCount(prePreviousWord + " " + previousWord));
-
-		double unigramProbability = probabilities.getCount(word);
-		if (unigramProbability == 0) {
+		if (!wordIndexer.contains(word))
 			System.out.println("UNKNOWN Word: " + word);
-			unigramProbability = probabilities.getCount(UNKNOWN);
-		}
-		return Math.exp(unigramProbability + backoffs.getCount(previousWord));
+		return Math.exp(getTrigramLogProbability(
+				getWordIndex(prePreviousWord), getWordIndex(previousWord),
+				getWordIndex(word)));
+	}
+
+	public double getTrigramLogProbability(int prePreviousWord,
+			int previousWord, int word) {
+		// absent n-grams are NaN, as a log probability may be 0
+		double trigramProbability = trigramLogProbabilities.get(
+				NgramKeys.trigram(prePreviousWord, previousWord, word),
+				Double.NaN);
+		if (!Double.isNaN(trigramProbability))
+			return trigramProbability;
+
+		double bigramProbability = bigramLogProbabilities.get(
+				NgramKeys.bigram(previousWord, word), Double.NaN);
+		if (!Double.isNaN(bigramProbability))
+			return bigramProbability
+					+ bigramLogBackoffs.get(
+							NgramKeys.bigram(prePreviousWord, previousWord),
+							0.0);
+
+		return unigramLogProbabilities[word]
+				+ unigramLogBackoffs[previousWord];
 	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
 		double probability = 1.0;
-		String prePreviousWord = stoppedSentence.get(0);
-		String previousWord = stoppedSentence.get(1);
-		for (int i = 2; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
-			probability *= getTrigramProbability(prePreviousWord, previousWord,
-					word);
-			prePreviousWord = previousWord;
-			previousWord = word;
+		long state = getStartState();
+		for (int i = 0; i <= sentence.size(); i++) {
+			int word = (i < sentence.size() ? getWordIndex(sentence.get(i))
+					: getStopIndex());
+			probability *= Math.exp(getLogProbability(state, word));
+			state = getNextState(state, word);
 		}
 		if (probability == 0)
 			System.err.println("Underflow");
 		return probability;
 	}
 
+	public int getWordIndex(String word) {
+		int index = wordIndexer.indexOf(word);
+		return index < 0 ? outOfVocabularyIndex : index;
+	}
+
+	public int getStopIndex() {
+		return wordIndexer.indexOf(STOP);
+	}
+
+	public long getStartState() {
+		int start = wordIndexer.indexOf(START);
+		return NgramKeys.bigram(start, start);
+	}
+
+	public double getLogProbability(long state, int word) {
+		return getTrigramLogProbability(NgramKeys.previousWord(state),
+				NgramKeys.lastWord(state), word);
+	}
+
+	public long getNextState(long state, int word) {
+		return NgramKeys.shift(state, word);
+	}
+
 	String generateWord() {
 		return UNKNOWN;
 	}
@@ -83,7 +125,11 @@ class SriLanguageModel implements LanguageModel {
 			reader = new BufferedReader(new FileReader(fileName));
 			String line = reader.readLine();
 			while (line != null) {
-				if (!line.isEmpty() && line.charAt(0) == '-') {
+				// n-gram entries start with their log probability, which is
+				// 0 rather than negative for an n-gram of probability 1
+				if (!line.isEmpty()
+						&& (line.charAt(0) == '-' || Character.isDigit(line
+								.charAt(0)))) {
 					String[] parts = line.split("\t");
 					if (parts.length != 2 && parts.length != 3) {
 						System.err.println("BUG: " + Arrays.toString(parts));
@@ -102,7 +148,45 @@ class SriLanguageModel implements LanguageModel {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		indexParameters();
+	}
 
+	private void indexParameters() {
+		wordIndexer.add(START);
+		wordIndexer.add(STOP);
+		wordIndexer.add(UNKNOWN);
+		for (String ngram : probabilities.keySet()) {
+			wordIndexer.addAll(Arrays.asList(ngram.split(" ")));
+		}
+		// the out-of-vocabulary id is one past the index
+		NgramKeys.checkNumWords(wordIndexer.size() + 1);
+		outOfVocabularyIndex = wordIndexer.size();
+		unigramLogProbabilities = new double[wordIndexer.size() + 1];
+		unigramLogBackoffs = new double[wordIndexer.size() + 1];
+		unigramLogProbabilities[outOfVocabularyIndex] = probabilities
+				.getCount(UNKNOWN);
+		for (int index = 0; index < wordIndexer.size(); index++) {
+			String word = wordIndexer.get(index);
+			unigramLogProbabilities[index] = probabilities.getCount(probabilities
+					.containsKey(word) ? word : UNKNOWN);
+			unigramLogBackoffs[index] = backoffs.getCount(word);
+		}
+		for (String ngram : probabilities.keySet()) {
+			String[] words = ngram.split(" ");
+			int[] indexes = new int[words.length];
+			for (int i = 0; i < words.length; i++) {
+				indexes[i] = getWordIndex(words[i]);
+			}
+			if (words.length == 2) {
+				long key = NgramKeys.bigram(indexes[0], indexes[1]);
+				bigramLogProbabilities.put(key, probabilities.getCount(ngram));
+				if (backoffs.containsKey(ngram))
+					bigramLogBackoffs.put(key, backoffs.getCount(ngram));
+			} else if (words.length == 3) {
+				trigramLogProbabilities.put(NgramKeys.trigram(indexes[0],
+						indexes[1], indexes[2]), probabilities.getCount(ngram));
+			}
+		}
 	}
 
 }
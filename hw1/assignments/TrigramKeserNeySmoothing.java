@@ -1,17 +1,23 @@
 package nlp.assignments;
 
-import nlp.langmodel.LanguageModel;
+import nlp.langmodel.EntropyPruner;
+import nlp.langmodel.IncrementalLanguageModel;
+import nlp.langmodel.NgramKeys;
+import nlp.langmodel.PrunableLanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.Indexer;
+import nlp.util.LongDoubleHashMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
 /**
  * Created by mattdenaci on 9/16/15.
  */
-public class TrigramKeserNeySmoothing implements LanguageModel {
+public class TrigramKeserNeySmoothing implements IncrementalLanguageModel, PrunableLanguageModel {
     static final String START = "<S>";
     static final String STOP = "</S>";
     static final String UNKNOWN = "*UNKNOWN*";
@@ -23,41 +29,291 @@ public class TrigramKeserNeySmoothing implements LanguageModel {
     CounterMap<String, String> trigramCounter = new CounterMap<String, String>();
 
 
-    public double lambda1 = 0.5;
-    public double lambda2 = 0.3;
+    // the interpolation weights per history-count bucket (see
+    // getHistoryBucket); a single bucket, set by the constructor or
+    // setLambdas(), until fitLambdas() is called with more
+    double[] bucketLambda1s;
+    double[] bucketLambda2s;
+
+    Indexer<String> wordIndexer = new Indexer<String>();
+    double[] continuationProbabilities;
+    LongDoubleHashMap bigramProbabilities;
+    LongDoubleHashMap trigramProbabilities;
+    // the training count of each trigram history
+    LongDoubleHashMap historyCounts;
+    // per-history weights of the lower-order terms, set by prune(); absent
+    // histories have weight 1
+    LongDoubleHashMap trigramBackoffWeights;
 
 
 
     public double getTrigramProb(String prePreviousWord, String previousWord, String word) {
-        double bigramProbability = bigramCounter.getCount(previousWord, word);
-        double trigramProbability = trigramCounter.getCount(prePreviousWord + previousWord, word);
-        double continuationProbablitity = continuationCounter.getCount(word);
-        if (continuationProbablitity == 0) {
-            continuationProbablitity = continuationCounter.getCount(UNKNOWN);
+        return getTrigramProb(getWordIndex(prePreviousWord), getWordIndex(previousWord), getWordIndex(word));
+    }
+
+    public double getTrigramProb(int prePreviousWord, int previousWord, int word) {
+        double bigramProbability = bigramProbabilities.get(NgramKeys.bigram(previousWord, word), 0.0);
+        double trigramProbability = trigramProbabilities.get(NgramKeys.trigram(prePreviousWord, previousWord, word), 0.0);
+        double continuationProbablitity = continuationProbabilities[word];
+        int bucket = getHistoryBucket(prePreviousWord, previousWord);
+        double lambda1 = bucketLambda1s[bucket];
+        double lambda2 = bucketLambda2s[bucket];
+
+        if (trigramBackoffWeights == null) {
+            return lambda1 * trigramProbability + lambda2 * bigramProbability + (1 - lambda1 - lambda2) * continuationProbablitity;
         }
+        double backoffWeight = trigramBackoffWeights.get(NgramKeys.bigram(prePreviousWord, previousWord), 1.0);
+        return lambda1 * trigramProbability + backoffWeight * getLowerTrigramProb(bucket, previousWord, word);
+    }
 
-        return lambda1 * trigramProbability + lambda2 * bigramProbability + (1 - lambda1 - lambda2) * continuationProbablitity;
+    private double getLowerTrigramProb(int bucket, int previousWord, int word) {
+        double lambda1 = bucketLambda1s[bucket];
+        double lambda2 = bucketLambda2s[bucket];
+        return lambda2 * bigramProbabilities.get(NgramKeys.bigram(previousWord, word), 0.0) + (1 - lambda1 - lambda2) * continuationProbabilities[word];
+    }
+
+    /**
+     * The bucket of the history's interpolation weights: 0 for histories
+     * unseen in training, else 1 + floor(log2(count)), capped at the last
+     * bucket.
+     */
+    int getHistoryBucket(int prePreviousWord, int previousWord) {
+        int numBuckets = bucketLambda1s.length;
+        if (numBuckets == 1) {
+            return 0;
+        }
+        long count = (long) historyCounts.get(NgramKeys.bigram(prePreviousWord, previousWord), 0.0);
+        if (count == 0) {
+            return 0;
+        }
+        return Math.min(numBuckets - 1, 64 - Long.numberOfLeadingZeros(count));
+    }
+
+    /**
+     * Fits the interpolation weights to the held-out sentences by EM, with
+     * separate weights for each of numBuckets history-count buckets, and
+     * returns the held-out perplexity. The three component probabilities of
+     * every held-out token are computed once up front, so the iterations
+     * only touch primitive arrays. Must be called before prune().
+     */
+    public double fitLambdas(Collection<List<String>> heldOutSentences, int numBuckets, int maxIterations) {
+        if (trigramBackoffWeights != null) {
+            throw new IllegalStateException("Interpolation weights must be fit before pruning");
+        }
+        if (numBuckets < 1) {
+            throw new IllegalArgumentException("Bad number of buckets: " + numBuckets);
+        }
+        // start every bucket from the current weights of unseen histories
+        double[] lambda1s = new double[numBuckets];
+        double[] lambda2s = new double[numBuckets];
+        Arrays.fill(lambda1s, bucketLambda1s[0]);
+        Arrays.fill(lambda2s, bucketLambda2s[0]);
+        bucketLambda1s = lambda1s;
+        bucketLambda2s = lambda2s;
+
+        int numTokens = 0;
+        for (List<String> sentence : heldOutSentences) {
+            numTokens += sentence.size() + 1;
+        }
+        double[] trigramProbs = new double[numTokens];
+        double[] bigramProbs = new double[numTokens];
+        double[] continuationProbs = new double[numTokens];
+        int[] buckets = new int[numTokens];
+        int n = 0;
+        for (List<String> sentence : heldOutSentences) {
+            long state = getStartState();
+            for (int i = 0; i <= sentence.size(); i++) {
+                int word = (i < sentence.size() ? getWordIndex(sentence.get(i)) : getStopIndex());
+                int prePreviousWord = NgramKeys.previousWord(state);
+                int previousWord = NgramKeys.lastWord(state);
+                trigramProbs[n] = trigramProbabilities.get(NgramKeys.trigram(prePreviousWord, previousWord, word), 0.0);
+                bigramProbs[n] = bigramProbabilities.get(NgramKeys.bigram(previousWord, word), 0.0);
+                continuationProbs[n] = continuationProbabilities[word];
+                buckets[n] = getHistoryBucket(prePreviousWord, previousWord);
+                n++;
+                state = getNextState(state, word);
+            }
+        }
+
+        double[] expected1s = new double[numBuckets];
+        double[] expected2s = new double[numBuckets];
+        double[] bucketSizes = new double[numBuckets];
+        double logLikelihood = Double.NEGATIVE_INFINITY;
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            Arrays.fill(expected1s, 0.0);
+            Arrays.fill(expected2s, 0.0);
+            Arrays.fill(bucketSizes, 0.0);
+            double newLogLikelihood = 0.0;
+            for (int i = 0; i < numTokens; i++) {
+                int bucket = buckets[i];
+                double part1 = lambda1s[bucket] * trigramProbs[i];
+                double part2 = lambda2s[bucket] * bigramProbs[i];
+                double probability = part1 + part2 + (1 - lambda1s[bucket] - lambda2s[bucket]) * continuationProbs[i];
+                newLogLikelihood += Math.log(probability);
+                expected1s[bucket] += part1 / probability;
+                expected2s[bucket] += part2 / probability;
+                bucketSizes[bucket]++;
+            }
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                if (bucketSizes[bucket] > 0) {
+                    lambda1s[bucket] = expected1s[bucket] / bucketSizes[bucket];
+                    // keep the continuation weight from rounding below 0
+                    lambda2s[bucket] = Math.min(expected2s[bucket] / bucketSizes[bucket], 1 - lambda1s[bucket]);
+                }
+            }
+            boolean converged = newLogLikelihood - logLikelihood < 1e-6 * Math.abs(newLogLikelihood);
+            logLikelihood = newLogLikelihood;
+            if (converged) {
+                break;
+            }
+        }
+        logLikelihood = 0.0;
+        for (int i = 0; i < numTokens; i++) {
+            int bucket = buckets[i];
+            logLikelihood += Math.log(lambda1s[bucket] * trigramProbs[i] + lambda2s[bucket] * bigramProbs[i] + (1 - lambda1s[bucket] - lambda2s[bucket]) * continuationProbs[i]);
+        }
+        return Math.exp(-logLikelihood / numTokens);
+    }
+
+    /**
+     * Sets a single pair of interpolation weights for all histories,
+     * replacing any fit by fitLambdas(). Must be called before prune().
+     */
+    public void setLambdas(double lambda1, double lambda2) {
+        if (trigramBackoffWeights != null) {
+            throw new IllegalStateException("Interpolation weights must be set before pruning");
+        }
+        bucketLambda1s = new double[] { lambda1 };
+        bucketLambda2s = new double[] { lambda2 };
+    }
+
+    public double[] getLambda1s() {
+        return bucketLambda1s.clone();
+    }
+
+    public double[] getLambda2s() {
+        return bucketLambda2s.clone();
     }
 
     public double getSentenceProbability(List<String> sentence) {
-        List<String> stoppedSentence = new ArrayList<String>(sentence);
-        stoppedSentence.add(0, START);
-        stoppedSentence.add(0, START);
-        stoppedSentence.add(STOP);
         double probability = 1.0;
-        String prePreviousWord = stoppedSentence.get(0);
-        String previousWord = stoppedSentence.get(1);
-        for (int i = 2; i < stoppedSentence.size(); i++) {
-            String word = stoppedSentence.get(i);
-            probability *= getTrigramProb(prePreviousWord, previousWord,
-                    word);
-            prePreviousWord = previousWord;
-            previousWord = word;
+        long state = getStartState();
+        for (int i = 0; i <= sentence.size(); i++) {
+            int word = (i < sentence.size() ? getWordIndex(sentence.get(i)) : getStopIndex());
+            probability *= getTrigramProb(NgramKeys.previousWord(state), NgramKeys.lastWord(state), word);
+            state = getNextState(state, word);
         }
         return probability;
     }
 
+    public int getWordIndex(String word) {
+        int index = wordIndexer.indexOf(word);
+        return index < 0 ? wordIndexer.indexOf(UNKNOWN) : index;
+    }
 
+    public int getStopIndex() {
+        return wordIndexer.indexOf(STOP);
+    }
+
+    public long getStartState() {
+        int start = wordIndexer.indexOf(START);
+        return NgramKeys.bigram(start, start);
+    }
+
+    public double getLogProbability(long state, int word) {
+        return Math.log(getTrigramProb(NgramKeys.previousWord(state), NgramKeys.lastWord(state), word));
+    }
+
+    public long getNextState(long state, int word) {
+        return NgramKeys.shift(state, word);
+    }
+
+    public int getNumNgrams() {
+        return trigramProbabilities.size();
+    }
+
+    /**
+     * Entropy-prunes the trigrams (the bigrams are left alone). A pruned
+     * trigram is left to the bigram and continuation terms, whose weight for
+     * the history is re-estimated; kept trigrams are restated so their
+     * probabilities don't change.
+     */
+    public int prune(double threshold) {
+        if (trigramBackoffWeights == null) {
+            trigramBackoffWeights = new LongDoubleHashMap();
+        }
+        final int start = wordIndexer.indexOf(START);
+        final int stop = getStopIndex();
+        double continuationMass = 0.0;
+        for (int index = 0; index < continuationProbabilities.length; index++) {
+            if (index != start) {
+                continuationMass += continuationProbabilities[index];
+            }
+        }
+        final double[] bigramMasses = new double[wordIndexer.size()];
+        for (int slot = 0; slot < bigramProbabilities.capacity(); slot++) {
+            if (bigramProbabilities.isOccupied(slot)) {
+                bigramMasses[NgramKeys.previousWord(bigramProbabilities.keyAt(slot))] += bigramProbabilities.valueAt(slot);
+            }
+        }
+        final double lowerContinuationMass = continuationMass;
+        return new EntropyPruner() {
+            protected long getHistory(long ngram) {
+                return NgramKeys.history(ngram);
+            }
+
+            protected double getProbability(long ngram) {
+                return getTrigramProb((int) NgramKeys.history(NgramKeys.history(ngram)), NgramKeys.previousWord(ngram), NgramKeys.lastWord(ngram));
+            }
+
+            protected double getLowerProbability(long ngram) {
+                return getLowerTrigramProb(getBucket(NgramKeys.history(ngram)), NgramKeys.previousWord(ngram), NgramKeys.lastWord(ngram));
+            }
+
+            protected double getLowerMass(long history) {
+                int bucket = getBucket(history);
+                return bucketLambda2s[bucket] * bigramMasses[NgramKeys.lastWord(history)] + (1 - bucketLambda1s[bucket] - bucketLambda2s[bucket]) * lowerContinuationMass;
+            }
+
+            private int getBucket(long history) {
+                return getHistoryBucket(NgramKeys.previousWord(history), NgramKeys.lastWord(history));
+            }
+
+            protected double getBackoffWeight(long history) {
+                return trigramBackoffWeights.get(history, 1.0);
+            }
+
+            protected void setBackoffWeight(long history, double weight) {
+                trigramBackoffWeights.put(history, weight);
+            }
+
+            protected double getHistoryProbability(long history) {
+                // P(u, v) = P(u) P(v | u), falling back to P(v) for unseen pairs
+                int prePreviousWord = NgramKeys.previousWord(history);
+                int previousWord = NgramKeys.lastWord(history);
+                double bigramProbability = bigramProbabilities.get(history, 0.0);
+                if (bigramProbability == 0) {
+                    bigramProbability = getUnigramProb(getHistoryWord(previousWord, start, stop));
+                }
+                return getUnigramProb(getHistoryWord(prePreviousWord, start, stop)) * bigramProbability;
+            }
+
+            protected void keepProbability(long ngram, double probability) {
+                long history = NgramKeys.history(ngram);
+                int bucket = getBucket(history);
+                if (bucketLambda1s[bucket] == 0) {
+                    // the trigram doesn't contribute
+                    return;
+                }
+                double lowerProbability = getLowerTrigramProb(bucket, NgramKeys.previousWord(ngram), NgramKeys.lastWord(ngram));
+                trigramProbabilities.put(ngram, (probability - getBackoffWeight(history) * lowerProbability) / bucketLambda1s[bucket]);
+            }
+        }.prune(trigramProbabilities, threshold);
+    }
+
+    private double getUnigramProb(int word) {
+        return wordCounter.getCount(wordIndexer.get(word)) / wordCounter.totalCount();
+    }
 
     String generateWord() {
         double sample = Math.random();
@@ -83,8 +339,7 @@ public class TrigramKeserNeySmoothing implements LanguageModel {
 
     public TrigramKeserNeySmoothing(
             Collection<List<String>> sentenceCollection, double lambda1, double lambda2) {
-        this.lambda1 = lambda1;
-        this.lambda2 = lambda2;
+        setLambdas(lambda1, lambda2);
         for (List<String> sentence : sentenceCollection) {
             List<String> stoppedSentence = new ArrayList<String>(sentence);
             stoppedSentence.add(0, START);
@@ -95,20 +350,61 @@ public class TrigramKeserNeySmoothing implements LanguageModel {
             for (int i = 2; i < stoppedSentence.size(); i++) {
                 String word = stoppedSentence.get(i);
                 wordCounter.incrementCount(word, 1.0);
-                trigramCounter.incrementCount(prePreviousWord + previousWord, word, 1.0);
+                trigramCounter.incrementCount(prePreviousWord + " " + previousWord, word, 1.0);
                 bigramCounter.incrementCount(previousWord, word, 1.0);
                 prePreviousWord = previousWord;
                 previousWord = word;
             }
         }
 
-        for(String word : bigramCounter.keySet()){
-            Counter<String> bigramCountsForWord = trigramCounter.getCounter(word);
-            continuationCounter.setCount(word, bigramCountsForWord.size());
+        // the continuation count of a word is the number of distinct words
+        // it follows
+        for (String previousWord : bigramCounter.keySet()) {
+            for (String word : bigramCounter.getCounter(previousWord).keySet()) {
+                continuationCounter.incrementCount(word, 1.0);
+            }
         }
 
         continuationCounter.incrementCount(UNKNOWN, 1.0);
+        Counter<String> historyCounter = new Counter<String>();
+        for (String history : trigramCounter.keySet()) {
+            historyCounter.setCount(history, trigramCounter.getCounter(history).totalCount());
+        }
         normalizeDistributions();
+        indexDistributions(historyCounter);
+    }
+
+    private void indexDistributions(Counter<String> historyCounter) {
+        wordIndexer.add(START);
+        wordIndexer.add(STOP);
+        wordIndexer.add(UNKNOWN);
+        wordIndexer.addAll(wordCounter.keySet());
+        NgramKeys.checkNumWords(wordIndexer.size() + 1);
+        continuationProbabilities = new double[wordIndexer.size()];
+        for (int index = 0; index < wordIndexer.size(); index++) {
+            double continuationProbability = continuationCounter.getCount(wordIndexer.get(index));
+            continuationProbabilities[index] = continuationProbability == 0 ? continuationCounter.getCount(UNKNOWN) : continuationProbability;
+        }
+        bigramProbabilities = new LongDoubleHashMap(bigramCounter.totalSize());
+        for (String previousWord : bigramCounter.keySet()) {
+            Counter<String> counter = bigramCounter.getCounter(previousWord);
+            int previousIndex = wordIndexer.indexOf(previousWord);
+            for (String word : counter.keySet()) {
+                bigramProbabilities.put(NgramKeys.bigram(previousIndex, wordIndexer.indexOf(word)), counter.getCount(word));
+            }
+        }
+        trigramProbabilities = new LongDoubleHashMap(trigramCounter.totalSize());
+        historyCounts = new LongDoubleHashMap(trigramCounter.size());
+        for (String history : trigramCounter.keySet()) {
+            Counter<String> counter = trigramCounter.getCounter(history);
+            String[] historyWords = history.split(" ");
+            int prePreviousIndex = wordIndexer.indexOf(historyWords[0]);
+            int previousIndex = wordIndexer.indexOf(historyWords[1]);
+            for (String word : counter.keySet()) {
+                trigramProbabilities.put(NgramKeys.trigram(prePreviousIndex, previousIndex, wordIndexer.indexOf(word)), counter.getCount(word));
+            }
+            historyCounts.put(NgramKeys.bigram(prePreviousIndex, previousIndex), historyCounter.getCount(history));
+        }
     }
 
 
@@ -0,0 +1,230 @@
+package nlp.io;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import nlp.util.Indexer;
+
+/**
+ * A corpus of sentences stored as word ids in a memory-mapped file. Use
+ * write() once to convert a text collection, then open() the result. The
+ * corpus is a Collection of List<String> (each sentence a read-only view over
+ * the mapped ids, with a constant-time size()), and also offers primitive
+ * access to the ids for passes which don't need the strings.
+ * <p/>
+ * File layout (big-endian): magic, number of sentences, number of tokens,
+ * byte offset of the vocabulary (a long); then numSentences + 1 sentence
+ * start offsets; then the token ids; then the vocabulary, one writeUTF()
+ * string per id.
+ */
+public class BinaryCorpus extends AbstractCollection<List<String>> {
+	private static final int MAGIC = 0x4e4c5043;
+	private static final int HEADER_BYTES = 20;
+
+	Indexer<String> wordIndexer;
+	IntBuffer sentenceStarts;
+	IntBuffer tokens;
+	int numSentences;
+
+	class SentenceView extends AbstractList<String> {
+		int start;
+		int size;
+
+		public String get(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index);
+			return wordIndexer.get(tokens.get(start + index));
+		}
+
+		public int size() {
+			return size;
+		}
+
+		SentenceView(int sentence) {
+			this.start = getSentenceStart(sentence);
+			this.size = getSentenceLength(sentence);
+		}
+	}
+
+	public Iterator<List<String>> iterator() {
+		return new Iterator<List<String>>() {
+			int sentence = 0;
+
+			public boolean hasNext() {
+				return sentence < numSentences;
+			}
+
+			public List<String> next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return new SentenceView(sentence++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public int size() {
+		return numSentences;
+	}
+
+	public List<String> getSentence(int sentence) {
+		return new SentenceView(sentence);
+	}
+
+	public Indexer<String> getWordIndexer() {
+		return wordIndexer;
+	}
+
+	public int getNumTokens() {
+		return tokens.limit();
+	}
+
+	/**
+	 * The position in the token array of the first word of the sentence.
+	 */
+	public int getSentenceStart(int sentence) {
+		return sentenceStarts.get(sentence);
+	}
+
+	public int getSentenceLength(int sentence) {
+		return sentenceStarts.get(sentence + 1) - sentenceStarts.get(sentence);
+	}
+
+	/**
+	 * The word id at a position of the token array.
+	 */
+	public int getWordId(int tokenPosition) {
+		return tokens.get(tokenPosition);
+	}
+
+	/**
+	 * Copies the word ids of a sentence into the buffer, which must be at
+	 * least getSentenceLength(sentence) long, and returns the length.
+	 */
+	public int getSentenceIds(int sentence, int[] buffer) {
+		int start = getSentenceStart(sentence);
+		int length = getSentenceLength(sentence);
+		for (int i = 0; i < length; i++) {
+			buffer[i] = tokens.get(start + i);
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the sentences in the binary format.
+	 */
+	public static void write(Iterable<List<String>> sentences, String fileName)
+			throws IOException {
+		Indexer<String> wordIndexer = new Indexer<String>();
+		int[] starts = new int[1024];
+		int[] ids = new int[1 << 16];
+		int numSentences = 0;
+		int numTokens = 0;
+		for (List<String> sentence : sentences) {
+			if (numSentences + 1 == starts.length)
+				starts = Arrays.copyOf(starts, 2 * starts.length);
+			starts[numSentences++] = numTokens;
+			for (String word : sentence) {
+				if (numTokens == ids.length)
+					ids = Arrays.copyOf(ids, 2 * ids.length);
+				ids[numTokens++] = wordIndexer.addAndGetIndex(word);
+			}
+		}
+		starts[numSentences] = numTokens;
+		long vocabularyOffset = HEADER_BYTES + 4L * (numSentences + 1) + 4L
+				* numTokens;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(numSentences);
+			out.writeInt(numTokens);
+			out.writeLong(vocabularyOffset);
+			for (int i = 0; i <= numSentences; i++) {
+				out.writeInt(starts[i]);
+			}
+			for (int i = 0; i < numTokens; i++) {
+				out.writeInt(ids[i]);
+			}
+			out.writeInt(wordIndexer.size());
+			for (String word : wordIndexer) {
+				out.writeUTF(word);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Maps a file written by write().
+	 */
+	public static BinaryCorpus open(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			if (file.readInt() != MAGIC)
+				throw new IOException("Not a binary corpus: " + fileName);
+			int numSentences = file.readInt();
+			int numTokens = file.readInt();
+			long vocabularyOffset = file.readLong();
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer starts = channel.map(
+					FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+					4L * (numSentences + 1));
+			MappedByteBuffer ids = channel.map(FileChannel.MapMode.READ_ONLY,
+					HEADER_BYTES + 4L * (numSentences + 1), 4L * numTokens);
+			file.seek(vocabularyOffset);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file.getFD())));
+			int numWords = in.readInt();
+			Indexer<String> wordIndexer = new Indexer<String>();
+			for (int i = 0; i < numWords; i++) {
+				wordIndexer.add(in.readUTF());
+			}
+			return new BinaryCorpus(wordIndexer, starts.order(
+					ByteOrder.BIG_ENDIAN).asIntBuffer(), ids.order(
+					ByteOrder.BIG_ENDIAN).asIntBuffer(), numSentences);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Opens the binary form of a text corpus, (re)writing it to binaryFileName
+	 * first if it is missing or older than the text file. It is written to a
+	 * temporary file which then replaces it, so that an interrupted write or a
+	 * concurrent reader never sees it half written.
+	 */
+	public static BinaryCorpus openOrConvert(
+			Collection<List<String>> textSentences, String textFileName,
+			String binaryFileName) throws IOException {
+		File binaryFile = new File(binaryFileName);
+		if (!binaryFile.exists()
+				|| binaryFile.lastModified() < new File(textFileName)
+						.lastModified()) {
+			File tempFile = File.createTempFile(binaryFile.getName(), ".tmp",
+					binaryFile.getAbsoluteFile().getParentFile());
+			try {
+				write(textSentences, tempFile.getPath());
+				IOUtils.replaceFile(tempFile, binaryFile);
+			} finally {
+				tempFile.delete();
+			}
+		}
+		return open(binaryFileName);
+	}
+
+	BinaryCorpus(Indexer<String> wordIndexer, IntBuffer sentenceStarts,
+			IntBuffer tokens, int numSentences) {
+		this.wordIndexer = wordIndexer;
+		this.sentenceStarts = sentenceStarts;
+		this.tokens = tokens;
+		this.numSentences = numSentences;
+	}
+}
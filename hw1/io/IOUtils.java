@@ -2,11 +2,16 @@ package nlp.io;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.ArrayList;
 
 /**
- * Utilities for getting files recursively, with a filter.
+ * Utilities for getting files recursively, with a filter, and for replacing
+ * a file with another.
  */
 public class IOUtils {
 	public static List<File> getFilesUnder(String path, FileFilter fileFilter) {
@@ -33,4 +38,23 @@ public class IOUtils {
 		}
 	}
 
+	/**
+	 * Moves source over target, replacing target if it exists, atomically so
+	 * that readers of target see either the old file or the whole new one.
+	 * Source should be in the same directory as target. Where the file system
+	 * can't move atomically, it is moved with a plain replacing move, which
+	 * still never deletes target before the new file takes its place.
+	 */
+	public static void replaceFile(File source, File target)
+			throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 }
@@ -105,6 +105,21 @@ public class PennTreebankReader {
 		return new TreeCollection(path, lowFileNum, highFileNumber);
 	}
 
+	/**
+	 * The latest modification time of the tree files which readTrees() would
+	 * read, or 0 if there are none.
+	 */
+	public static long lastModified(String path, int lowFileNum,
+			int highFileNumber) {
+		TreeCollection trees = new TreeCollection(path, lowFileNum,
+				highFileNumber);
+		long lastModified = 0;
+		for (File file : trees.files) {
+			lastModified = Math.max(lastModified, file.lastModified());
+		}
+		return lastModified;
+	}
+
 	public static void main(String[] args) {
 		Collection<Tree<String>> trees = readTrees(args[0]);
 		for (Tree<String> tree : trees) {
@@ -0,0 +1,256 @@
+package nlp.io;
+
+import java.io.*;
+import java.util.*;
+
+import nlp.util.Indexer;
+
+/**
+ * A corpus of tagged sentences stored as ints: the word and tag ids of all
+ * tokens, sentence after sentence, in two contiguous arrays, with the offset
+ * of each sentence's first token. The ids are over the corpus's own indexers,
+ * which begin with the boundary symbols (START and STOP), so that getWord()
+ * and getTag() pad a sentence with them beyond its ends without any lookup;
+ * getWords() and getTags() are read-only views of a sentence which pad it the
+ * same way with the boundary strings, as a BoundedList would, without copying.
+ * <p/>
+ * File layout (big-endian): magic, number of sentences, number of tokens;
+ * then numSentences + 1 sentence start offsets; then the word ids; then the
+ * tag ids, as unsigned shorts; then the word and tag vocabularies, each a
+ * count and one writeUTF() string per id.
+ */
+public class TaggedCorpus {
+	private static final int MAGIC = 0x4e4c5054;
+
+	/**
+	 * The ids of the boundary symbols, in both indexers.
+	 */
+	public static final int START = 0;
+	public static final int STOP = 1;
+
+	Indexer<String> wordIndexer = new Indexer<String>();
+	Indexer<String> tagIndexer = new Indexer<String>();
+	int numSentences;
+	int numTokens;
+	int[] sentenceStarts = new int[1024];
+	int[] words = new int[1 << 16];
+	int[] tags = new int[1 << 16];
+
+	class PaddedView extends AbstractList<String> {
+		Indexer<String> indexer;
+		int[] ids;
+		int start;
+		int size;
+
+		public String get(int index) {
+			if (index < 0)
+				return indexer.get(START);
+			if (index >= size)
+				return indexer.get(STOP);
+			return indexer.get(ids[start + index]);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		PaddedView(Indexer<String> indexer, int[] ids, int sentence) {
+			this.indexer = indexer;
+			this.ids = ids;
+			this.start = getSentenceStart(sentence);
+			this.size = getSentenceLength(sentence);
+		}
+	}
+
+	public int size() {
+		return numSentences;
+	}
+
+	public int getNumTokens() {
+		return numTokens;
+	}
+
+	public Indexer<String> getWordIndexer() {
+		return wordIndexer;
+	}
+
+	public Indexer<String> getTagIndexer() {
+		return tagIndexer;
+	}
+
+	/**
+	 * The position in the token arrays of the first word of the sentence.
+	 */
+	public int getSentenceStart(int sentence) {
+		return sentenceStarts[sentence];
+	}
+
+	public int getSentenceLength(int sentence) {
+		return sentenceStarts[sentence + 1] - sentenceStarts[sentence];
+	}
+
+	/**
+	 * The word id at a position of the token array.
+	 */
+	public int getWordId(int tokenPosition) {
+		return words[tokenPosition];
+	}
+
+	public int getTagId(int tokenPosition) {
+		return tags[tokenPosition];
+	}
+
+	/**
+	 * The word id at a position of the sentence: START before it and STOP
+	 * after it.
+	 */
+	public int getWord(int sentence, int position) {
+		if (position < 0)
+			return START;
+		if (position >= getSentenceLength(sentence))
+			return STOP;
+		return words[sentenceStarts[sentence] + position];
+	}
+
+	public int getTag(int sentence, int position) {
+		if (position < 0)
+			return START;
+		if (position >= getSentenceLength(sentence))
+			return STOP;
+		return tags[sentenceStarts[sentence] + position];
+	}
+
+	/**
+	 * The words of the sentence, padded with the start and stop words.
+	 */
+	public List<String> getWords(int sentence) {
+		return new PaddedView(wordIndexer, words, sentence);
+	}
+
+	/**
+	 * The tags of the sentence, padded with the start and stop tags.
+	 */
+	public List<String> getTags(int sentence) {
+		return new PaddedView(tagIndexer, tags, sentence);
+	}
+
+	/**
+	 * Appends a sentence, which must have a tag for each word.
+	 */
+	public void add(List<String> sentenceWords, List<String> sentenceTags) {
+		if (sentenceWords.size() != sentenceTags.size())
+			throw new IllegalArgumentException(sentenceWords.size()
+					+ " words but " + sentenceTags.size() + " tags");
+		if (numSentences + 2 > sentenceStarts.length)
+			sentenceStarts = Arrays.copyOf(sentenceStarts,
+					2 * sentenceStarts.length);
+		int length = sentenceWords.size();
+		if (numTokens + length > words.length) {
+			int capacity = Math.max(numTokens + length, 2 * words.length);
+			words = Arrays.copyOf(words, capacity);
+			tags = Arrays.copyOf(tags, capacity);
+		}
+		for (int i = 0; i < length; i++) {
+			words[numTokens] = wordIndexer.addAndGetIndex(sentenceWords.get(i));
+			tags[numTokens++] = tagIndexer.addAndGetIndex(sentenceTags.get(i));
+		}
+		sentenceStarts[++numSentences] = numTokens;
+	}
+
+	/**
+	 * Writes the corpus in the binary format.
+	 */
+	public void write(String fileName) throws IOException {
+		if (tagIndexer.size() > 1 << 16)
+			throw new IOException("Too many tags to write: "
+					+ tagIndexer.size());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(numSentences);
+			out.writeInt(numTokens);
+			for (int i = 0; i <= numSentences; i++) {
+				out.writeInt(sentenceStarts[i]);
+			}
+			for (int i = 0; i < numTokens; i++) {
+				out.writeInt(words[i]);
+			}
+			for (int i = 0; i < numTokens; i++) {
+				out.writeShort(tags[i]);
+			}
+			writeIndexer(out, wordIndexer);
+			writeIndexer(out, tagIndexer);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeIndexer(DataOutputStream out,
+			Indexer<String> indexer) throws IOException {
+		out.writeInt(indexer.size());
+		for (String symbol : indexer) {
+			out.writeUTF(symbol);
+		}
+	}
+
+	/**
+	 * Reads a file written by write().
+	 */
+	public static TaggedCorpus read(String fileName) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(fileName)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a tagged corpus: " + fileName);
+			TaggedCorpus corpus = new TaggedCorpus();
+			corpus.numSentences = in.readInt();
+			corpus.numTokens = in.readInt();
+			corpus.sentenceStarts = new int[corpus.numSentences + 1];
+			for (int i = 0; i <= corpus.numSentences; i++) {
+				corpus.sentenceStarts[i] = in.readInt();
+			}
+			corpus.words = new int[corpus.numTokens];
+			for (int i = 0; i < corpus.numTokens; i++) {
+				corpus.words[i] = in.readInt();
+			}
+			corpus.tags = new int[corpus.numTokens];
+			for (int i = 0; i < corpus.numTokens; i++) {
+				corpus.tags[i] = in.readUnsignedShort();
+			}
+			corpus.wordIndexer = readIndexer(in);
+			corpus.tagIndexer = readIndexer(in);
+			return corpus;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Indexer<String> readIndexer(DataInputStream in)
+			throws IOException {
+		int size = in.readInt();
+		Indexer<String> indexer = new Indexer<String>();
+		for (int i = 0; i < size; i++) {
+			indexer.add(in.readUTF());
+		}
+		return indexer;
+	}
+
+	private TaggedCorpus() {
+	}
+
+	/**
+	 * An empty corpus whose sentences will be padded with the given boundary
+	 * symbols.
+	 */
+	public TaggedCorpus(String startWord, String stopWord, String startTag,
+			String stopTag) {
+		if (startWord.equals(stopWord) || startTag.equals(stopTag))
+			throw new IllegalArgumentException(
+					"Start and stop symbols must differ");
+		wordIndexer.add(startWord);
+		wordIndexer.add(stopWord);
+		tagIndexer.add(startTag);
+		tagIndexer.add(stopTag);
+	}
+}
@@ -0,0 +1,150 @@
+package nlp.langmodel;
+
+import nlp.util.LongDoubleHashMap;
+
+/**
+ * Relative-entropy pruning of a backoff table (Stolcke, 1998). The model is
+ * viewed as P(w|h) = p(h,w) for the explicit n-grams of history h, and
+ * alpha(h) * q(w|h) for all other words, where q is the lower-order
+ * distribution. Removing an explicit n-gram moves its probability into the
+ * backed-off mass, which changes alpha(h); the pruner estimates the
+ * resulting increase in relative entropy,
+ * <p/>
+ * D = -P(h) { p(h,w) [log alpha'(h) q(w|h) - log p(h,w)] + N(h) [log
+ * alpha'(h) - log alpha(h)] }
+ * <p/>
+ * with N(h) the backed-off mass, for each n-gram independently, removes the
+ * n-grams with D below the threshold, and then recomputes the backoff weights
+ * so that each history keeps its total mass. Subclasses describe their
+ * model's tables; explicit n-grams are the keys of the map passed to prune().
+ */
+public abstract class EntropyPruner {
+
+	/**
+	 * The history key of an explicit n-gram.
+	 */
+	protected abstract long getHistory(long ngram);
+
+	/**
+	 * P(w|h) for an explicit n-gram.
+	 */
+	protected abstract double getProbability(long ngram);
+
+	/**
+	 * q(w|h), the lower-order probability of the n-gram's word.
+	 */
+	protected abstract double getLowerProbability(long ngram);
+
+	/**
+	 * The sum of q(w|h) over all words the model predicts.
+	 */
+	protected abstract double getLowerMass(long history);
+
+	protected abstract double getBackoffWeight(long history);
+
+	protected abstract void setBackoffWeight(long history, double weight);
+
+	/**
+	 * The marginal probability of the history.
+	 */
+	protected abstract double getHistoryProbability(long history);
+
+	/**
+	 * The word whose unigram probability is that of the history word: START,
+	 * which the unigrams don't count, is as likely as STOP, as every sentence
+	 * has one START, as it has one STOP.
+	 */
+	protected static int getHistoryWord(int word, int start, int stop) {
+		return (word == start ? stop : word);
+	}
+
+	/**
+	 * Called for each kept n-gram after the backoff weights have changed, so
+	 * that models which interpolate (rather than back off) can restate the
+	 * stored value such that P(w|h) stays as it was.
+	 */
+	protected void keepProbability(long ngram, double probability) {
+	}
+
+	/**
+	 * Prunes the explicit n-grams in the map and returns the number removed.
+	 */
+	public int prune(LongDoubleHashMap ngrams, double threshold) {
+		int numNgrams = ngrams.size();
+		long[] keys = new long[numNgrams];
+		double[] probabilities = new double[numNgrams];
+		double[] lowerProbabilities = new double[numNgrams];
+		LongDoubleHashMap explicitMass = new LongDoubleHashMap();
+		LongDoubleHashMap explicitLowerMass = new LongDoubleHashMap();
+		int n = 0;
+		for (int slot = 0; slot < ngrams.capacity(); slot++) {
+			if (!ngrams.isOccupied(slot))
+				continue;
+			long key = ngrams.keyAt(slot);
+			keys[n] = key;
+			probabilities[n] = getProbability(key);
+			lowerProbabilities[n] = getLowerProbability(key);
+			explicitMass.increment(getHistory(key), probabilities[n]);
+			explicitLowerMass.increment(getHistory(key), lowerProbabilities[n]);
+			n++;
+		}
+
+		// decide every n-gram against the unpruned model
+		boolean[] removed = new boolean[numNgrams];
+		LongDoubleHashMap keptMass = new LongDoubleHashMap();
+		LongDoubleHashMap keptLowerMass = new LongDoubleHashMap();
+		int numRemoved = 0;
+		for (int i = 0; i < numNgrams; i++) {
+			long history = getHistory(keys[i]);
+			double p = probabilities[i];
+			double q = lowerProbabilities[i];
+			double alpha = getBackoffWeight(history);
+			double lowerRemainder = getLowerMass(history)
+					- explicitLowerMass.get(history, 0.0);
+			double backedOffMass = alpha * lowerRemainder;
+			double delta = Double.POSITIVE_INFINITY;
+			if (p <= 0) {
+				delta = 0.0;
+			} else if (q > 0) {
+				double newAlpha = (backedOffMass + p) / (lowerRemainder + q);
+				delta = p * (Math.log(newAlpha * q) - Math.log(p));
+				if (backedOffMass > 0)
+					delta += backedOffMass
+							* (Math.log(newAlpha) - Math.log(alpha));
+				delta *= -getHistoryProbability(history);
+			}
+			if (delta < threshold) {
+				removed[i] = true;
+				numRemoved++;
+			} else {
+				keptMass.increment(history, p);
+				keptLowerMass.increment(history, q);
+			}
+		}
+
+		// each history keeps its total mass: whatever is no longer explicit
+		// is spread over the lower-order distribution
+		for (int slot = 0; slot < explicitMass.capacity(); slot++) {
+			if (!explicitMass.isOccupied(slot))
+				continue;
+			long history = explicitMass.keyAt(slot);
+			double lowerMass = getLowerMass(history);
+			double alpha = getBackoffWeight(history);
+			double totalMass = explicitMass.valueAt(slot) + alpha
+					* (lowerMass - explicitLowerMass.get(history, 0.0));
+			double newLowerRemainder = lowerMass
+					- keptLowerMass.get(history, 0.0);
+			if (newLowerRemainder > 0)
+				setBackoffWeight(history, (totalMass - keptMass.get(history,
+						0.0))
+						/ newLowerRemainder);
+		}
+		for (int i = 0; i < numNgrams; i++) {
+			if (removed[i])
+				ngrams.remove(keys[i], 0.0);
+			else
+				keepProbability(keys[i], probabilities[i]);
+		}
+		return numRemoved;
+	}
+}
@@ -0,0 +1,348 @@
+package nlp.langmodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import nlp.util.LongDoubleHashMap;
+import nlp.util.ThreadPools;
+
+/**
+ * Word clustering by the exchange algorithm (Kneser and Ney, 1993; Martin et
+ * al., 1998), which maximizes the likelihood of a class bigram model. Up to
+ * constants, that is
+ * <p/>
+ * F = sum_{c,d} f(N(c, d)) - sum_c f(N(c, .)) - sum_d f(N(., d)),
+ * <p/>
+ * f(x) = x log x, N(c, d) the number of bigrams whose first word is in c and
+ * second in d. Each pass takes the words in order of decreasing frequency,
+ * removes the word from its class, and puts it in the class where it
+ * increases F the most; the class counts are updated by the word's own
+ * (class-aggregated) bigram counts rather than recomputed. Evaluating the
+ * candidate classes for a word is split over threads when there is enough
+ * work to pay for it.
+ */
+public class ExchangeClustering {
+	// minimum number of count terms for a word's move to be evaluated in
+	// parallel
+	static final int PARALLEL_WORK = 1 << 14;
+
+	int numWords;
+	int numClasses;
+
+	// each word's successors and predecessors with their bigram counts, in
+	// compressed rows
+	int[] successorStarts;
+	int[] successors;
+	long[] successorCounts;
+	int[] predecessorStarts;
+	int[] predecessors;
+	long[] predecessorCounts;
+	long[] leftCounts;
+	long[] rightCounts;
+	long[] selfCounts;
+
+	int[] wordClasses;
+	long[] classBigramCounts;
+	long[] classLeftCounts;
+	long[] classRightCounts;
+
+	// the counts of the word being moved with each class (excluding the word
+	// itself), dense over the classes, and the classes which are nonzero
+	long[] successorClassCounts;
+	long[] predecessorClassCounts;
+	int[] touchedClasses;
+	int numTouched;
+
+	/**
+	 * The best class within a range of candidates for the word being moved.
+	 */
+	class CandidateRange implements Callable<Void> {
+		int firstClass;
+		int endClass;
+		int word;
+		int bestClass;
+		double bestDelta;
+
+		public Void call() {
+			bestClass = -1;
+			bestDelta = Double.NEGATIVE_INFINITY;
+			for (int c = firstClass; c < endClass; c++) {
+				double delta = getMoveDelta(word, c);
+				if (delta > bestDelta) {
+					bestDelta = delta;
+					bestClass = c;
+				}
+			}
+			return null;
+		}
+
+		CandidateRange(int firstClass, int endClass) {
+			this.firstClass = firstClass;
+			this.endClass = endClass;
+		}
+	}
+
+	/**
+	 * Clusters the words for up to maxIterations passes, or until a pass
+	 * moves no word, and returns the class of each word.
+	 */
+	public int[] cluster(int maxIterations, int numThreads) {
+		Integer[] order = new Integer[numWords];
+		for (int word = 0; word < numWords; word++) {
+			order[word] = word;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer word1, Integer word2) {
+				long count1 = leftCounts[word1] + rightCounts[word1];
+				long count2 = leftCounts[word2] + rightCounts[word2];
+				return count1 > count2 ? -1 : (count1 < count2 ? 1 : 0);
+			}
+		});
+		initialize(order);
+		ExecutorService executor = null;
+		List<CandidateRange> ranges = new ArrayList<CandidateRange>();
+		if (numThreads > 1) {
+			executor = ThreadPools.newDaemonPool(numThreads,
+					"ExchangeClustering");
+			for (int i = 0; i < numThreads; i++) {
+				ranges.add(new CandidateRange(i * numClasses / numThreads,
+						(i + 1) * numClasses / numThreads));
+			}
+		}
+		CandidateRange allClasses = new CandidateRange(0, numClasses);
+		try {
+			for (int iteration = 0; iteration < maxIterations; iteration++) {
+				int numMoves = 0;
+				for (int word : order) {
+					if (leftCounts[word] + rightCounts[word] == 0)
+						continue;
+					int oldClass = wordClasses[word];
+					aggregateClassCounts(word);
+					moveWord(word, oldClass, -1);
+					int work = numClasses * (numTouched + 1);
+					int newClass = (executor != null && work >= PARALLEL_WORK ? findBestClass(
+							word, ranges, executor)
+							: findBestClass(word, allClasses));
+					// stay put unless the move is strictly better
+					if (newClass != oldClass
+							&& getMoveDelta(word, newClass) <= getMoveDelta(
+									word, oldClass))
+						newClass = oldClass;
+					moveWord(word, newClass, 1);
+					if (newClass != oldClass)
+						numMoves++;
+				}
+				if (numMoves == 0)
+					break;
+			}
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
+		return wordClasses.clone();
+	}
+
+	private int findBestClass(int word, CandidateRange range) {
+		range.word = word;
+		range.call();
+		return range.bestClass;
+	}
+
+	private int findBestClass(int word, List<CandidateRange> ranges,
+			ExecutorService executor) {
+		for (CandidateRange range : ranges) {
+			range.word = word;
+		}
+		ThreadPools.invokeAll(executor, ranges);
+		int bestClass = -1;
+		double bestDelta = Double.NEGATIVE_INFINITY;
+		for (CandidateRange range : ranges) {
+			if (range.bestClass >= 0 && range.bestDelta > bestDelta) {
+				bestDelta = range.bestDelta;
+				bestClass = range.bestClass;
+			}
+		}
+		return bestClass;
+	}
+
+	/**
+	 * The objective F of the current clustering.
+	 */
+	public double getObjective() {
+		double objective = 0.0;
+		for (int i = 0; i < classBigramCounts.length; i++) {
+			objective += f(classBigramCounts[i]);
+		}
+		for (int c = 0; c < numClasses; c++) {
+			objective -= f(classLeftCounts[c]) + f(classRightCounts[c]);
+		}
+		return objective;
+	}
+
+	/**
+	 * The change in F from adding the word (currently in no class) to the
+	 * class; needs aggregateClassCounts(word) first.
+	 */
+	double getMoveDelta(int word, int c) {
+		double delta = 0.0;
+		int row = c * numClasses;
+		for (int i = 0; i < numTouched; i++) {
+			int d = touchedClasses[i];
+			if (d == c)
+				continue;
+			long successorCount = successorClassCounts[d];
+			if (successorCount != 0) {
+				long count = classBigramCounts[row + d];
+				delta += f(count + successorCount) - f(count);
+			}
+			long predecessorCount = predecessorClassCounts[d];
+			if (predecessorCount != 0) {
+				long count = classBigramCounts[d * numClasses + c];
+				delta += f(count + predecessorCount) - f(count);
+			}
+		}
+		long selfCount = successorClassCounts[c] + predecessorClassCounts[c]
+				+ selfCounts[word];
+		long count = classBigramCounts[row + c];
+		delta += f(count + selfCount) - f(count);
+		delta -= f(classLeftCounts[c] + leftCounts[word])
+				- f(classLeftCounts[c]);
+		delta -= f(classRightCounts[c] + rightCounts[word])
+				- f(classRightCounts[c]);
+		return delta;
+	}
+
+	/**
+	 * Adds (sign 1) or removes (sign -1) the word's counts to or from the
+	 * class; needs aggregateClassCounts(word) first.
+	 */
+	private void moveWord(int word, int c, int sign) {
+		for (int i = 0; i < numTouched; i++) {
+			int d = touchedClasses[i];
+			classBigramCounts[c * numClasses + d] += sign
+					* successorClassCounts[d];
+			classBigramCounts[d * numClasses + c] += sign
+					* predecessorClassCounts[d];
+		}
+		classBigramCounts[c * numClasses + c] += sign * selfCounts[word];
+		classLeftCounts[c] += sign * leftCounts[word];
+		classRightCounts[c] += sign * rightCounts[word];
+		wordClasses[word] = (sign > 0 ? c : -1);
+	}
+
+	private void aggregateClassCounts(int word) {
+		for (int i = 0; i < numTouched; i++) {
+			successorClassCounts[touchedClasses[i]] = 0;
+			predecessorClassCounts[touchedClasses[i]] = 0;
+		}
+		numTouched = 0;
+		for (int i = successorStarts[word]; i < successorStarts[word + 1]; i++) {
+			int c = wordClasses[successors[i]];
+			touch(c);
+			successorClassCounts[c] += successorCounts[i];
+		}
+		for (int i = predecessorStarts[word]; i < predecessorStarts[word + 1]; i++) {
+			int c = wordClasses[predecessors[i]];
+			touch(c);
+			predecessorClassCounts[c] += predecessorCounts[i];
+		}
+	}
+
+	private void touch(int c) {
+		if (successorClassCounts[c] == 0 && predecessorClassCounts[c] == 0)
+			touchedClasses[numTouched++] = c;
+	}
+
+	/**
+	 * Puts the i-th most frequent word in class i mod numClasses, and counts
+	 * the class bigrams from scratch.
+	 */
+	private void initialize(Integer[] order) {
+		wordClasses = new int[numWords];
+		for (int i = 0; i < numWords; i++) {
+			wordClasses[order[i]] = i % numClasses;
+		}
+		classBigramCounts = new long[numClasses * numClasses];
+		classLeftCounts = new long[numClasses];
+		classRightCounts = new long[numClasses];
+		for (int word = 0; word < numWords; word++) {
+			int c = wordClasses[word];
+			for (int i = successorStarts[word]; i < successorStarts[word + 1]; i++) {
+				classBigramCounts[c * numClasses + wordClasses[successors[i]]] += successorCounts[i];
+			}
+			classBigramCounts[c * numClasses + c] += selfCounts[word];
+			classLeftCounts[c] += leftCounts[word];
+			classRightCounts[c] += rightCounts[word];
+		}
+		successorClassCounts = new long[numClasses];
+		predecessorClassCounts = new long[numClasses];
+		touchedClasses = new int[numClasses];
+		numTouched = 0;
+	}
+
+	private static double f(long count) {
+		return count == 0 ? 0.0 : count * Math.log(count);
+	}
+
+	/**
+	 * Takes bigram counts over word ids 0 to numWords - 1, keyed by
+	 * NgramKeys.bigram().
+	 */
+	public ExchangeClustering(int numWords, LongDoubleHashMap bigramCounts,
+			int numClasses) {
+		if (numClasses < 1)
+			throw new IllegalArgumentException("Bad number of classes: "
+					+ numClasses);
+		this.numWords = numWords;
+		this.numClasses = numClasses;
+		leftCounts = new long[numWords];
+		rightCounts = new long[numWords];
+		selfCounts = new long[numWords];
+		successorStarts = new int[numWords + 1];
+		predecessorStarts = new int[numWords + 1];
+		for (int slot = 0; slot < bigramCounts.capacity(); slot++) {
+			if (!bigramCounts.isOccupied(slot))
+				continue;
+			long key = bigramCounts.keyAt(slot);
+			int previousWord = NgramKeys.previousWord(key);
+			int word = NgramKeys.lastWord(key);
+			long count = (long) bigramCounts.valueAt(slot);
+			leftCounts[previousWord] += count;
+			rightCounts[word] += count;
+			if (previousWord == word) {
+				selfCounts[word] += count;
+			} else {
+				successorStarts[previousWord + 1]++;
+				predecessorStarts[word + 1]++;
+			}
+		}
+		for (int word = 0; word < numWords; word++) {
+			successorStarts[word + 1] += successorStarts[word];
+			predecessorStarts[word + 1] += predecessorStarts[word];
+		}
+		successors = new int[successorStarts[numWords]];
+		successorCounts = new long[successors.length];
+		predecessors = new int[predecessorStarts[numWords]];
+		predecessorCounts = new long[predecessors.length];
+		int[] successorEnds = Arrays.copyOf(successorStarts, numWords);
+		int[] predecessorEnds = Arrays.copyOf(predecessorStarts, numWords);
+		for (int slot = 0; slot < bigramCounts.capacity(); slot++) {
+			if (!bigramCounts.isOccupied(slot))
+				continue;
+			long key = bigramCounts.keyAt(slot);
+			int previousWord = NgramKeys.previousWord(key);
+			int word = NgramKeys.lastWord(key);
+			if (previousWord == word)
+				continue;
+			long count = (long) bigramCounts.valueAt(slot);
+			successors[successorEnds[previousWord]] = word;
+			successorCounts[successorEnds[previousWord]++] = count;
+			predecessors[predecessorEnds[word]] = previousWord;
+			predecessorCounts[predecessorEnds[word]++] = count;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package nlp.langmodel;
+
+/**
+ * Language models which can score a sentence one word at a time. Words are
+ * given by the model's own ids (see getWordIndex), and the history a word is
+ * scored in is summarized by a long state: start from getStartState(), and
+ * after scoring each word advance with getNextState. The log probability of
+ * a sentence is the sum of the log probabilities of its words followed by
+ * the stop symbol, which agrees with getSentenceProbability().
+ * <p/>
+ * Implementations keep their distributions over word ids as well as over
+ * strings, so that scoring a word is a few array and hash lookups on
+ * primitive keys, without building n-gram strings; their unknown-word id
+ * stands for every word unseen in training.
+ */
+public interface IncrementalLanguageModel extends LanguageModel {
+	/**
+	 * The model's id for the word, or its unknown-word id if it has none.
+	 */
+	int getWordIndex(String word);
+
+	int getStopIndex();
+
+	long getStartState();
+
+	/**
+	 * The natural log of P(word | state).
+	 */
+	double getLogProbability(long state, int word);
+
+	long getNextState(long state, int word);
+}
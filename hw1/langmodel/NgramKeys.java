@@ -0,0 +1,61 @@
+package nlp.langmodel;
+
+/**
+ * Packs word ids into long keys for n-gram tables and history states. Each
+ * word takes WORD_BITS bits, so up to three words fit in a key.
+ */
+public class NgramKeys {
+	public static final int WORD_BITS = 21;
+	public static final int MAX_WORDS = 1 << WORD_BITS;
+	private static final long WORD_MASK = MAX_WORDS - 1;
+
+	/**
+	 * Checks that the ids of numWords words fit in a key, as ids which don't
+	 * would silently make different n-grams share one.
+	 */
+	public static void checkNumWords(int numWords) {
+		if (numWords > MAX_WORDS)
+			throw new IllegalStateException("Too many words for n-gram keys: "
+					+ numWords + " > " + MAX_WORDS);
+	}
+
+	public static long bigram(int previousWord, int word) {
+		return ((long) previousWord << WORD_BITS) | word;
+	}
+
+	public static long trigram(int previousPreviousWord, int previousWord,
+			int word) {
+		return ((long) previousPreviousWord << (2 * WORD_BITS))
+				| ((long) previousWord << WORD_BITS) | word;
+	}
+
+	/**
+	 * The most recent word of a key.
+	 */
+	public static int lastWord(long key) {
+		return (int) (key & WORD_MASK);
+	}
+
+	/**
+	 * The word before the most recent one.
+	 */
+	public static int previousWord(long key) {
+		return (int) ((key >>> WORD_BITS) & WORD_MASK);
+	}
+
+	/**
+	 * The key of all but the most recent word, e.g. the history (u, v) of the
+	 * trigram (u, v, w).
+	 */
+	public static long history(long key) {
+		return key >>> WORD_BITS;
+	}
+
+	/**
+	 * Drops all but the most recent word of a key and appends the given word,
+	 * which turns the bigram history (u, v) into (v, w).
+	 */
+	public static long shift(long key, int word) {
+		return bigram(lastWord(key), word);
+	}
+}
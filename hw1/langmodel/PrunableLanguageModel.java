@@ -0,0 +1,18 @@
+package nlp.langmodel;
+
+/**
+ * Language models whose explicit highest-order n-grams can be pruned, with
+ * the pruned n-grams answered by the backoff distribution instead.
+ */
+public interface PrunableLanguageModel extends LanguageModel {
+	/**
+	 * The number of explicitly stored highest-order n-grams.
+	 */
+	int getNumNgrams();
+
+	/**
+	 * Removes the n-grams whose removal changes the model's relative entropy
+	 * by less than the threshold, and returns how many were removed.
+	 */
+	int prune(double threshold);
+}
@@ -0,0 +1,215 @@
+package nlp.ling;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+import nlp.util.Indexer;
+
+/**
+ * Guesses the tags of unknown words from their suffixes, as in TnT (Brants,
+ * 2000). The rare words of the training data (seen at most maxWordCount
+ * times) are put in a trie of their reversed suffixes, up to
+ * maxSuffixLength characters, with one root for capitalized words and one
+ * for the rest. Each node holds the distribution of tags given its suffix,
+ * smoothed with its parent's,
+ * <p/>
+ * P(t | l_n-i+1 ... l_n) = (P^(t | l_n-i+1 ... l_n) + theta P(t | l_n-i+2 ...
+ * l_n)) / (1 + theta),
+ * <p/>
+ * where P^ is the relative frequency and theta is the standard deviation of
+ * the rare words' tag probabilities; the roots are smoothed towards the tag
+ * distribution of all rare words. All distributions are computed by build(),
+ * over the tags of rare words, so a lookup is one walk down the trie, to the
+ * longest known suffix of the word; the node each word type ends at is
+ * cached. Once built, the model may be used from many threads.
+ */
+public class SuffixTagModel {
+	static final int MAX_CACHED_WORDS = 1 << 16;
+
+	int maxSuffixLength;
+	int maxWordCount;
+	CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>();
+
+	Indexer<String> tagIndexer = new Indexer<String>();
+	// the trie, nodes numbered parents first: each node's child characters
+	// (sorted) and child nodes, and its tag probabilities, flattened as
+	// node * numTags + tag
+	char[][] childCharacters;
+	int[][] childNodes;
+	double[] tagProbabilities;
+	Map<String, Integer> nodeCache = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Counts a training token.
+	 */
+	public void addTagging(String word, String tag) {
+		wordToTagCounters.incrementCount(word, tag, 1.0);
+	}
+
+	/**
+	 * The tags unknown words may take, in order of their index.
+	 */
+	public Indexer<String> getTagIndexer() {
+		return tagIndexer;
+	}
+
+	/**
+	 * The probabilities of the tags given the word's longest known suffix,
+	 * over getTagIndexer(), from offset getTagOffset(word); the array must not
+	 * be modified.
+	 */
+	public double[] getTagProbabilities() {
+		return tagProbabilities;
+	}
+
+	public int getTagOffset(String word) {
+		return getNode(word) * tagIndexer.size();
+	}
+
+	public double getProbability(String word, String tag) {
+		int tagIndex = tagIndexer.indexOf(tag);
+		if (tagIndex < 0)
+			return 0.0;
+		return tagProbabilities[getTagOffset(word) + tagIndex];
+	}
+
+	public Counter<String> getTagDistribution(String word) {
+		Counter<String> tagDistribution = new Counter<String>();
+		int offset = getTagOffset(word);
+		for (int tag = 0; tag < tagIndexer.size(); tag++) {
+			tagDistribution.setCount(tagIndexer.get(tag),
+					tagProbabilities[offset + tag]);
+		}
+		return tagDistribution;
+	}
+
+	private int getNode(String word) {
+		Integer cachedNode = nodeCache.get(word);
+		if (cachedNode != null)
+			return cachedNode;
+		int node = getRoot(word);
+		for (int i = 1; i <= maxSuffixLength && i <= word.length(); i++) {
+			int child = Arrays.binarySearch(childCharacters[node], word
+					.charAt(word.length() - i));
+			if (child < 0)
+				break;
+			node = childNodes[node][child];
+		}
+		if (nodeCache.size() < MAX_CACHED_WORDS)
+			nodeCache.put(word, node);
+		return node;
+	}
+
+	private static int getRoot(String word) {
+		return (word.length() > 0 && Character.isUpperCase(word.charAt(0)) ? 1
+				: 0);
+	}
+
+	/**
+	 * Builds the trie and its distributions from the taggings added so far.
+	 */
+	public void build() {
+		Counter<String> rareTagCounter = new Counter<String>();
+		List<String> rareWords = new ArrayList<String>();
+		for (String word : wordToTagCounters.keySet()) {
+			Counter<String> tagCounter = wordToTagCounters.getCounter(word);
+			if (tagCounter.totalCount() > maxWordCount)
+				continue;
+			rareWords.add(word);
+			for (String tag : tagCounter.keySet()) {
+				rareTagCounter.incrementCount(tag, tagCounter.getCount(tag));
+			}
+		}
+		Collections.sort(rareWords);
+		tagIndexer = new Indexer<String>(rareTagCounter.keySet());
+		int numTags = tagIndexer.size();
+		double[] rareTagProbabilities = new double[numTags];
+		for (int tag = 0; tag < numTags; tag++) {
+			rareTagProbabilities[tag] = rareTagCounter.getCount(tagIndexer
+					.get(tag))
+					/ rareTagCounter.totalCount();
+		}
+		double theta = getStandardDeviation(rareTagProbabilities);
+
+		// count the tags of each suffix
+		List<Map<Character, Integer>> children = new ArrayList<Map<Character, Integer>>();
+		List<Integer> parents = new ArrayList<Integer>();
+		List<double[]> tagCounts = new ArrayList<double[]>();
+		for (int root = 0; root < 2; root++) {
+			children.add(new TreeMap<Character, Integer>());
+			parents.add(-1);
+			tagCounts.add(new double[numTags]);
+		}
+		for (String word : rareWords) {
+			Counter<String> tagCounter = wordToTagCounters.getCounter(word);
+			int node = getRoot(word);
+			for (int i = 0; i <= maxSuffixLength && i <= word.length(); i++) {
+				if (i > 0) {
+					Character c = word.charAt(word.length() - i);
+					Integer child = children.get(node).get(c);
+					if (child == null) {
+						child = children.size();
+						children.get(node).put(c, child);
+						children.add(new TreeMap<Character, Integer>());
+						parents.add(node);
+						tagCounts.add(new double[numTags]);
+					}
+					node = child;
+				}
+				double[] counts = tagCounts.get(node);
+				for (String tag : tagCounter.keySet()) {
+					counts[tagIndexer.indexOf(tag)] += tagCounter.getCount(tag);
+				}
+			}
+		}
+
+		// smooth each node's distribution with its parent's
+		int numNodes = children.size();
+		childCharacters = new char[numNodes][];
+		childNodes = new int[numNodes][];
+		tagProbabilities = new double[numNodes * numTags];
+		for (int node = 0; node < numNodes; node++) {
+			Map<Character, Integer> nodeChildren = children.get(node);
+			childCharacters[node] = new char[nodeChildren.size()];
+			childNodes[node] = new int[nodeChildren.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> child : nodeChildren.entrySet()) {
+				childCharacters[node][i] = child.getKey();
+				childNodes[node][i++] = child.getValue();
+			}
+			double[] counts = tagCounts.get(node);
+			double total = 0.0;
+			for (double count : counts) {
+				total += count;
+			}
+			int parent = parents.get(node);
+			for (int tag = 0; tag < numTags; tag++) {
+				double backoff = (parent < 0 ? rareTagProbabilities[tag]
+						: tagProbabilities[parent * numTags + tag]);
+				tagProbabilities[node * numTags + tag] = (total == 0.0 ? backoff
+						: (counts[tag] / total + theta * backoff)
+								/ (1.0 + theta));
+			}
+		}
+		nodeCache.clear();
+		wordToTagCounters = new CounterMap<String, String>();
+	}
+
+	private static double getStandardDeviation(double[] probabilities) {
+		if (probabilities.length < 2)
+			return 0.0;
+		double mean = 1.0 / probabilities.length;
+		double sum = 0.0;
+		for (double probability : probabilities) {
+			sum += (probability - mean) * (probability - mean);
+		}
+		return Math.sqrt(sum / (probabilities.length - 1));
+	}
+
+	public SuffixTagModel(int maxSuffixLength, int maxWordCount) {
+		this.maxSuffixLength = maxSuffixLength;
+		this.maxWordCount = maxWordCount;
+	}
+}
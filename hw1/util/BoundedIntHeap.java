@@ -0,0 +1,96 @@
+package nlp.util;
+
+import java.io.Serializable;
+
+/**
+ * Keeps the (at most) capacity ints with the highest priorities offered to
+ * it, in a binary min-heap over primitive arrays, so that the lowest kept
+ * priority is at the root and each offer costs O(log capacity) without
+ * allocating. Items are retrieved in heap order with getItem(i) for i from 0
+ * to size().
+ */
+public class BoundedIntHeap implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	int[] items;
+	double[] priorities;
+	int size;
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds the item if the heap has room or its priority beats the lowest
+	 * kept one (which is then dropped); returns whether it was added.
+	 */
+	public boolean offer(int item, double priority) {
+		if (size < items.length) {
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (priorities[parent] <= priority)
+					break;
+				items[i] = items[parent];
+				priorities[i] = priorities[parent];
+				i = parent;
+			}
+			items[i] = item;
+			priorities[i] = priority;
+			return true;
+		}
+		if (size == 0 || priority <= priorities[0])
+			return false;
+		siftDown(item, priority);
+		return true;
+	}
+
+	/**
+	 * The lowest kept priority, or Double.NEGATIVE_INFINITY if the heap isn't
+	 * full (so anything would be kept).
+	 */
+	public double getThreshold() {
+		return size < items.length ? Double.NEGATIVE_INFINITY : priorities[0];
+	}
+
+	public int getItem(int i) {
+		return items[i];
+	}
+
+	public double getPriority(int i) {
+		return priorities[i];
+	}
+
+	private void siftDown(int item, double priority) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && priorities[child + 1] < priorities[child])
+				child++;
+			if (priorities[child] >= priority)
+				break;
+			items[i] = items[child];
+			priorities[i] = priorities[child];
+			i = child;
+		}
+		items[i] = item;
+		priorities[i] = priority;
+	}
+
+	public BoundedIntHeap(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Bad capacity: " + capacity);
+		items = new int[capacity];
+		priorities = new double[capacity];
+	}
+}
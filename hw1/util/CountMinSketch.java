@@ -0,0 +1,120 @@
+package nlp.util;
+
+import java.io.Serializable;
+
+/**
+ * Approximate counts of long keys in a fixed amount of memory (Cormode and
+ * Muthukrishnan's count-min sketch). Each key is hashed into one cell of each
+ * of depth rows, adding increments to all of them; the estimate is the
+ * smallest of the key's cells, which never undercounts, and overcounts by at
+ * most a (2 / width) fraction of the total with probability 1 - 2^-depth. With
+ * conservative update, an increment raises each cell only as far as the
+ * key's new estimate, which leaves the guarantees intact and makes the
+ * overcounting much smaller in practice (but only allows positive
+ * increments).
+ */
+public class CountMinSketch implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	int[] cells;
+	int depth;
+	int widthBits;
+	boolean conservativeUpdate;
+	long totalCount;
+
+	/**
+	 * Adds the increment to the key's count, and returns the new estimate.
+	 */
+	public int add(long key, int increment) {
+		if (increment < 0)
+			throw new IllegalArgumentException("Negative increment: "
+					+ increment);
+		totalCount += increment;
+		int estimate = Integer.MAX_VALUE;
+		if (conservativeUpdate) {
+			for (int row = 0; row < depth; row++) {
+				estimate = Math.min(estimate, cells[cell(row, key)]);
+			}
+			int newEstimate = saturatedAdd(estimate, increment);
+			for (int row = 0; row < depth; row++) {
+				int cell = cell(row, key);
+				if (cells[cell] < newEstimate)
+					cells[cell] = newEstimate;
+			}
+			return newEstimate;
+		}
+		for (int row = 0; row < depth; row++) {
+			int cell = cell(row, key);
+			cells[cell] = saturatedAdd(cells[cell], increment);
+			estimate = Math.min(estimate, cells[cell]);
+		}
+		return estimate;
+	}
+
+	public int estimate(long key) {
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, cells[cell(row, key)]);
+		}
+		return estimate;
+	}
+
+	/**
+	 * The sum of all increments so far.
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getWidth() {
+		return 1 << widthBits;
+	}
+
+	public long getMemoryBytes() {
+		return 4L * cells.length;
+	}
+
+	private int cell(int row, long key) {
+		// a different multiplier per row gives (nearly) independent hashes
+		long h = (key + row) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L + 2 * row;
+		h ^= h >>> 32;
+		return (row << widthBits) | (int) (h & ((1 << widthBits) - 1));
+	}
+
+	private static int saturatedAdd(int count, int increment) {
+		int sum = count + increment;
+		return sum < count ? Integer.MAX_VALUE : sum;
+	}
+
+	/**
+	 * A sketch with depth rows of 2^widthBits counters each.
+	 */
+	public CountMinSketch(int depth, int widthBits, boolean conservativeUpdate) {
+		if (depth < 1 || widthBits < 1 || widthBits > 30
+				|| ((long) depth << widthBits) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Bad sketch size: " + depth
+					+ " x 2^" + widthBits);
+		this.depth = depth;
+		this.widthBits = widthBits;
+		this.conservativeUpdate = conservativeUpdate;
+		this.cells = new int[depth << widthBits];
+	}
+
+	/**
+	 * The widest sketch of the given depth which fits in memoryBytes.
+	 */
+	public static CountMinSketch withMemory(long memoryBytes, int depth,
+			boolean conservativeUpdate) {
+		int widthBits = 1;
+		while (widthBits < 30 && 4L * depth << (widthBits + 1) <= memoryBytes) {
+			widthBits++;
+		}
+		return new CountMinSketch(depth, widthBits, conservativeUpdate);
+	}
+}
@@ -0,0 +1,159 @@
+package nlp.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A map from primitive longs to primitive doubles, using open addressing with
+ * linear probing (and backward-shift deletion, so removals leave no
+ * tombstones). Keys not in the map return the supplied default value. For
+ * iteration, walk the slots from 0 to capacity() and skip the ones for which
+ * isOccupied() is false.
+ */
+public class LongDoubleHashMap implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final double MAX_LOAD_FACTOR = 0.5;
+
+	long[] keys;
+	double[] values;
+	boolean[] occupied;
+	int size;
+	int mask;
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return occupied[findSlot(key)];
+	}
+
+	/**
+	 * Returns the value for the key, or defaultValue if the key is absent.
+	 */
+	public double get(long key, double defaultValue) {
+		int slot = findSlot(key);
+		return occupied[slot] ? values[slot] : defaultValue;
+	}
+
+	public void put(long key, double value) {
+		int slot = findSlot(key);
+		if (!occupied[slot]) {
+			if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+				rehash(2 * keys.length);
+				slot = findSlot(key);
+			}
+			occupied[slot] = true;
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+	}
+
+	public void increment(long key, double increment) {
+		put(key, get(key, 0.0) + increment);
+	}
+
+	/**
+	 * Removes the key, returning its value (or defaultValue if it was absent).
+	 */
+	public double remove(long key, double defaultValue) {
+		int slot = findSlot(key);
+		if (!occupied[slot])
+			return defaultValue;
+		double value = values[slot];
+		occupied[slot] = false;
+		size--;
+		// shift back any entries which probed past the freed slot
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while (occupied[next]) {
+			int home = hash(keys[next]);
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				keys[free] = keys[next];
+				values[free] = values[next];
+				occupied[free] = true;
+				occupied[next] = false;
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		return value;
+	}
+
+	public void clear() {
+		Arrays.fill(occupied, false);
+		size = 0;
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	public boolean isOccupied(int slot) {
+		return occupied[slot];
+	}
+
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	public double valueAt(int slot) {
+		return values[slot];
+	}
+
+	public void setValueAt(int slot, double value) {
+		values[slot] = value;
+	}
+
+	private int findSlot(long key) {
+		int slot = hash(key);
+		while (occupied[slot] && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = keys;
+		double[] oldValues = values;
+		boolean[] oldOccupied = occupied;
+		allocate(newCapacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldOccupied[i]) {
+				int slot = findSlot(oldKeys[i]);
+				occupied[slot] = true;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new double[capacity];
+		occupied = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	public LongDoubleHashMap() {
+		this(16);
+	}
+
+	public LongDoubleHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+			capacity *= 2;
+		}
+		allocate(capacity);
+	}
+}
@@ -0,0 +1,107 @@
+package nlp.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A map from primitive longs to objects, using open addressing with linear
+ * probing, for keys which are combinations of int ids. Removal isn't
+ * supported; clear() empties the map but keeps its capacity, so a map can be
+ * reused without reallocating.
+ */
+public class LongObjectHashMap<V> implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final double MAX_LOAD_FACTOR = 0.5;
+
+	long[] keys;
+	Object[] values;
+	boolean[] occupied;
+	int size;
+	int mask;
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the value for the key, or null if the key is absent.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = findSlot(key);
+		return occupied[slot] ? (V) values[slot] : null;
+	}
+
+	public void put(long key, V value) {
+		int slot = findSlot(key);
+		if (!occupied[slot]) {
+			if (size + 1 > MAX_LOAD_FACTOR * keys.length) {
+				rehash(2 * keys.length);
+				slot = findSlot(key);
+			}
+			occupied[slot] = true;
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+	}
+
+	public void clear() {
+		if (size == 0)
+			return;
+		Arrays.fill(occupied, false);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private int findSlot(long key) {
+		int slot = hash(key);
+		while (occupied[slot] && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldOccupied = occupied;
+		allocate(newCapacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldOccupied[i]) {
+				int slot = findSlot(oldKeys[i]);
+				occupied[slot] = true;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		occupied = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	public LongObjectHashMap() {
+		this(16);
+	}
+
+	public LongObjectHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+			capacity *= 2;
+		}
+		allocate(capacity);
+	}
+}
@@ -0,0 +1,62 @@
+package nlp.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pools of daemon worker threads, which don't keep the JVM alive, and a way
+ * to run a batch of tasks on one that rethrows the tasks' failures as they
+ * were thrown.
+ */
+public class ThreadPools {
+
+	/**
+	 * Makes daemon threads with the given name.
+	 */
+	public static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public static ExecutorService newDaemonPool(int numThreads, String name) {
+		return Executors.newFixedThreadPool(numThreads, daemonThreads(name));
+	}
+
+	/**
+	 * Runs the tasks on the executor and returns their results in order. A
+	 * task's RuntimeException or Error is rethrown as is, any other exception
+	 * wrapped in a RuntimeException; an interruption is too, with the
+	 * thread's interrupt flag set again.
+	 */
+	public static <T> List<T> invokeAll(ExecutorService executor,
+			Collection<? extends Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>();
+		try {
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+}